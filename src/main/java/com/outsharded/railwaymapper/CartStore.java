@@ -0,0 +1,297 @@
+package com.outsharded.railwaymapper;
+
+import com.outsharded.railwaymapper.MinecartTracker.MinecartData;
+import org.bukkit.util.Vector;
+
+import java.util.*;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Latest sample of every tracked cart, stored as parallel primitive arrays
+ * indexed by slot. The main thread writes in place without allocating;
+ * other threads get consistent per-cart copies through optimistic reads
+ * (a seqlock: {@link StampedLock#tryOptimisticRead} plus validation, with
+ * a read lock only as fallback when a write raced the copy).
+ * World and passenger names are interned to small integer IDs.
+ */
+public class CartStore {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final StampedLock lock = new StampedLock();
+
+    private UUID[] ids;
+    private double[] x, y, z;
+    private float[] vx, vy, vz;
+    private boolean[] occupied;
+    private int[] worldId;
+    private int[] passengerId;
+    private int[] lineId;
+    private double[] lineOffset;
+    private long[] timestamp;
+    // Bumped on every write with a store-wide counter; 0 marks a free slot
+    private long[] version;
+
+    private long nextVersion = 1;
+    private int highWater;
+    private int size;
+    private int[] freeSlots = new int[INITIAL_CAPACITY];
+    private int freeCount;
+
+    // Main thread only
+    private final Map<UUID, Integer> slotIndex = new HashMap<>();
+
+    private final StringTable worlds = new StringTable();
+    private final StringTable passengers = new StringTable();
+
+    public CartStore() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Returns the slot for a cart, assigning a free one if it's new. Main thread only.
+     */
+    public int acquire(UUID id) {
+        Integer existing = slotIndex.get(id);
+        if (existing != null) {
+            return existing;
+        }
+
+        long stamp = lock.writeLock();
+        try {
+            int slot;
+            if (freeCount > 0) {
+                slot = freeSlots[--freeCount];
+            } else {
+                if (highWater == ids.length) {
+                    allocate(ids.length * 2);
+                }
+                slot = highWater++;
+            }
+            ids[slot] = id;
+            version[slot] = 0;
+            size++;
+            slotIndex.put(id, slot);
+            return slot;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Frees a cart's slot. Main thread only.
+     */
+    public void release(UUID id) {
+        Integer slot = slotIndex.remove(id);
+        if (slot == null) {
+            return;
+        }
+
+        long stamp = lock.writeLock();
+        try {
+            ids[slot] = null;
+            version[slot] = 0;
+            lineId[slot] = -1;
+            if (freeCount == freeSlots.length) {
+                freeSlots = Arrays.copyOf(freeSlots, freeSlots.length * 2);
+            }
+            freeSlots[freeCount++] = slot;
+            size--;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Overwrites a slot with a new sample. Main thread only; never allocates.
+     */
+    public void write(int slot, double px, double py, double pz, double velX, double velY, double velZ,
+                      boolean isOccupied, int world, int passenger, long time, int line, double offset) {
+        long stamp = lock.writeLock();
+        try {
+            x[slot] = px;
+            y[slot] = py;
+            z[slot] = pz;
+            vx[slot] = (float) velX;
+            vy[slot] = (float) velY;
+            vz[slot] = (float) velZ;
+            occupied[slot] = isOccupied;
+            worldId[slot] = world;
+            passengerId[slot] = passenger;
+            timestamp[slot] = time;
+            lineId[slot] = line;
+            lineOffset[slot] = offset;
+            version[slot] = nextVersion++;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Consistent copy of a slot if it has been written since {@code sinceVersion},
+     * otherwise null. Safe from any thread.
+     */
+    public MinecartData readIfChanged(int slot, long sinceVersion) {
+        long stamp = lock.tryOptimisticRead();
+        MinecartData data;
+        try {
+            data = copy(slot, sinceVersion);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            // acquire() swapped in larger arrays mid-copy; validation fails and we retry under the lock
+            data = null;
+        }
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                data = copy(slot, sinceVersion);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Version of the last write to a slot (0 if free or never written)
+     */
+    public long versionOf(int slot) {
+        long stamp = lock.tryOptimisticRead();
+        long[] versions = version;
+        long v = slot < versions.length ? versions[slot] : 0;
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                v = slot < version.length ? version[slot] : 0;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return v;
+    }
+
+    /**
+     * Consistent copies of every written slot, optionally filtered by world (null for all)
+     */
+    public List<MinecartData> snapshot(String worldName) {
+        List<MinecartData> result = new ArrayList<>();
+        int limit = getHighWater();
+        for (int slot = 0; slot < limit; slot++) {
+            MinecartData data = readIfChanged(slot, 0);
+            if (data != null && (worldName == null || data.getWorld().equals(worldName))) {
+                result.add(data);
+            }
+        }
+        return result;
+    }
+
+    // Caller validates the stamp; garbage read during a racing write is discarded. The arrays
+    // aren't volatile, so an optimistic copy may see a mix of old and new ones and overrun the
+    // shorter; the caller catches that too.
+    private MinecartData copy(int slot, long sinceVersion) {
+        long[] versions = version;
+        if (slot >= versions.length) {
+            return null;
+        }
+        long v = versions[slot];
+        UUID id = ids[slot];
+        if (v == 0 || v <= sinceVersion || id == null) {
+            return null;
+        }
+        return new MinecartData(
+            id,
+            x[slot], y[slot], z[slot],
+            worlds.get(worldId[slot]),
+            new Vector(vx[slot], vy[slot], vz[slot]),
+            occupied[slot],
+            passengers.get(passengerId[slot]),
+            timestamp[slot],
+            lineId[slot],
+            lineOffset[slot]
+        );
+    }
+
+    public int internWorld(String name) {
+        return worlds.intern(name);
+    }
+
+    /**
+     * Interns a passenger name; null maps to ID 0
+     */
+    public int internPassenger(String name) {
+        return name == null ? 0 : passengers.intern(name);
+    }
+
+    /**
+     * One past the highest slot ever used
+     */
+    public int getHighWater() {
+        long stamp = lock.tryOptimisticRead();
+        int hw = highWater;
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                hw = highWater;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return hw;
+    }
+
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // Called with the write lock held (or from the constructor)
+    private void allocate(int capacity) {
+        int keep = ids == null ? 0 : Math.min(highWater, capacity);
+        ids = grow(ids, new UUID[capacity], keep);
+        x = grow(x, new double[capacity], keep);
+        y = grow(y, new double[capacity], keep);
+        z = grow(z, new double[capacity], keep);
+        vx = grow(vx, new float[capacity], keep);
+        vy = grow(vy, new float[capacity], keep);
+        vz = grow(vz, new float[capacity], keep);
+        occupied = grow(occupied, new boolean[capacity], keep);
+        worldId = grow(worldId, new int[capacity], keep);
+        passengerId = grow(passengerId, new int[capacity], keep);
+        lineId = grow(lineId, new int[capacity], keep);
+        lineOffset = grow(lineOffset, new double[capacity], keep);
+        timestamp = grow(timestamp, new long[capacity], keep);
+        version = grow(version, new long[capacity], keep);
+    }
+
+    private static <T> T grow(T from, T to, int length) {
+        if (from != null && length > 0) {
+            System.arraycopy(from, 0, to, 0, length);
+        }
+        return to;
+    }
+
+    /**
+     * Append-only string interning table; ID 0 is reserved for null
+     */
+    private static class StringTable {
+        private final Map<String, Integer> ids = new HashMap<>();
+        private final List<String> names = new ArrayList<>(Collections.singletonList(null));
+
+        synchronized int intern(String name) {
+            Integer id = ids.get(name);
+            if (id == null) {
+                id = names.size();
+                names.add(name);
+                ids.put(name, id);
+            }
+            return id;
+        }
+
+        synchronized String get(int id) {
+            return id > 0 && id < names.size() ? names.get(id) : null;
+        }
+    }
+}
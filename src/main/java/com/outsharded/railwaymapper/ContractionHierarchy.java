@@ -0,0 +1,340 @@
+package com.outsharded.railwaymapper;
+
+import java.util.*;
+
+/**
+ * Contraction hierarchy over an undirected, weighted graph, for shortest
+ * path queries that only touch a few hundred nodes however large the graph.
+ *
+ * Nodes are contracted one at a time, cheapest first (by edge difference,
+ * neighbours already contracted and depth, re-evaluated lazily).
+ * Contracting a node adds a shortcut between each pair of its remaining
+ * neighbours unless a bounded witness search finds a path at least as
+ * short that avoids it. Every edge then points from its lower-ranked to
+ * its higher-ranked end, and a query is a bidirectional Dijkstra that
+ * only goes upwards; shortcuts remember the node they bypass so the path
+ * can be unpacked back into original edges.
+ *
+ * Immutable once built; safe to query from any thread.
+ */
+public class ContractionHierarchy {
+
+    // Nodes a witness search may settle before giving up (and adding the shortcut)
+    private static final int WITNESS_SETTLE_LIMIT = 64;
+
+    private final int[] rank;
+    // Upward edges per node, from upStart[v] to upStart[v + 1]
+    private final int[] upStart;
+    private final int[] upTarget;
+    private final double[] upWeight;
+    private final int[] upMiddle; // bypassed node, or -1 for an original edge
+
+    private ContractionHierarchy(int[] rank, int[] upStart, int[] upTarget, double[] upWeight, int[] upMiddle) {
+        this.rank = rank;
+        this.upStart = upStart;
+        this.upTarget = upTarget;
+        this.upWeight = upWeight;
+        this.upMiddle = upMiddle;
+    }
+
+    /**
+     * Builds the hierarchy; edge i joins from[i] and to[i]. Parallel edges keep the lightest.
+     */
+    public static ContractionHierarchy build(int nodeCount, int[] from, int[] to, double[] weight) {
+        return new Builder(nodeCount, from, to, weight).build();
+    }
+
+    private static class Builder {
+        final int nodeCount;
+        final List<Map<Integer, Edge>> adjacent;
+        final int[] contractedNeighbours;
+        // One more than the highest level among contracted neighbours, which keeps the hierarchy shallow
+        final int[] level;
+
+        // Witness search state, reset through the touched list between searches
+        final double[] dist;
+        final int[] touched;
+        int touchedCount;
+        final PriorityQueue<double[]> heap = new PriorityQueue<>(Comparator.comparingDouble(e -> e[0]));
+
+        Builder(int nodeCount, int[] from, int[] to, double[] weight) {
+            this.nodeCount = nodeCount;
+            adjacent = new ArrayList<>(nodeCount);
+            for (int v = 0; v < nodeCount; v++) adjacent.add(new HashMap<>());
+            for (int i = 0; i < from.length; i++) {
+                connect(from[i], to[i], weight[i], -1);
+            }
+            contractedNeighbours = new int[nodeCount];
+            level = new int[nodeCount];
+            dist = new double[nodeCount];
+            Arrays.fill(dist, Double.POSITIVE_INFINITY);
+            touched = new int[nodeCount];
+        }
+
+        ContractionHierarchy build() {
+            int[] rank = new int[nodeCount];
+            boolean[] contracted = new boolean[nodeCount];
+            // Edges to the neighbours still uncontracted when each node is, i.e. ranked higher
+            List<Map<Integer, Edge>> upward = new ArrayList<>(Collections.nCopies(nodeCount, null));
+
+            PriorityQueue<double[]> queue = new PriorityQueue<>(Comparator.comparingDouble(e -> e[0]));
+            for (int v = 0; v < nodeCount; v++) {
+                queue.add(new double[]{priority(v), v});
+            }
+            int order = 0;
+            while (!queue.isEmpty()) {
+                int v = (int) queue.poll()[1];
+                if (contracted[v]) continue;
+                // Lazy update: only contract if it's still the cheapest
+                double p = priority(v);
+                if (!queue.isEmpty() && p > queue.peek()[0]) {
+                    queue.add(new double[]{p, v});
+                    continue;
+                }
+
+                Map<Integer, Edge> neighbours = adjacent.get(v);
+                for (int[] shortcut : shortcuts(v)) {
+                    connect(shortcut[0], shortcut[1],
+                            neighbours.get(shortcut[0]).weight + neighbours.get(shortcut[1]).weight, v);
+                }
+                contracted[v] = true;
+                rank[v] = order++;
+                for (int u : neighbours.keySet()) {
+                    adjacent.get(u).remove(v);
+                    contractedNeighbours[u]++;
+                    level[u] = Math.max(level[u], level[v] + 1);
+                }
+                upward.set(v, neighbours);
+                adjacent.set(v, new HashMap<>());
+            }
+
+            int total = 0;
+            for (Map<Integer, Edge> edges : upward) total += edges.size();
+            int[] upStart = new int[nodeCount + 1];
+            int[] upTarget = new int[total];
+            double[] upWeight = new double[total];
+            int[] upMiddle = new int[total];
+            int at = 0;
+            for (int v = 0; v < nodeCount; v++) {
+                upStart[v] = at;
+                for (Map.Entry<Integer, Edge> entry : upward.get(v).entrySet()) {
+                    upTarget[at] = entry.getKey();
+                    upWeight[at] = entry.getValue().weight;
+                    upMiddle[at] = entry.getValue().middle;
+                    at++;
+                }
+            }
+            upStart[nodeCount] = at;
+            return new ContractionHierarchy(rank, upStart, upTarget, upWeight, upMiddle);
+        }
+
+        void connect(int a, int b, double weight, int middle) {
+            if (a == b) return;
+            Edge existing = adjacent.get(a).get(b);
+            if (existing != null && existing.weight <= weight) return;
+            Edge edge = new Edge(weight, middle);
+            adjacent.get(a).put(b, edge);
+            adjacent.get(b).put(a, edge);
+        }
+
+        double priority(int v) {
+            return 2 * (shortcuts(v).size() - adjacent.get(v).size()) + contractedNeighbours[v] + level[v];
+        }
+
+        /**
+         * Pairs of v's neighbours that would need a shortcut if v were contracted
+         */
+        List<int[]> shortcuts(int v) {
+            List<int[]> shortcuts = new ArrayList<>();
+            Map<Integer, Edge> neighbours = adjacent.get(v);
+            if (neighbours.size() < 2) {
+                return shortcuts;
+            }
+            int[] around = new int[neighbours.size()];
+            double[] weights = new double[around.length];
+            int n = 0;
+            for (Map.Entry<Integer, Edge> entry : neighbours.entrySet()) {
+                around[n] = entry.getKey();
+                weights[n++] = entry.getValue().weight;
+            }
+            for (int i = 0; i < around.length - 1; i++) {
+                double limit = 0;
+                for (int j = i + 1; j < around.length; j++) {
+                    limit = Math.max(limit, weights[i] + weights[j]);
+                }
+                witnessSearch(around[i], v, limit);
+                for (int j = i + 1; j < around.length; j++) {
+                    if (dist[around[j]] > weights[i] + weights[j]) {
+                        shortcuts.add(new int[]{around[i], around[j]});
+                    }
+                }
+            }
+            return shortcuts;
+        }
+
+        // Dijkstra from source avoiding one node, up to a distance and a number of settled nodes
+        void witnessSearch(int source, int avoid, double limit) {
+            for (int i = 0; i < touchedCount; i++) dist[touched[i]] = Double.POSITIVE_INFINITY;
+            touchedCount = 0;
+            heap.clear();
+            dist[source] = 0;
+            touched[touchedCount++] = source;
+            heap.add(new double[]{0, source});
+            int settled = 0;
+            while (!heap.isEmpty() && settled < WITNESS_SETTLE_LIMIT) {
+                double[] top = heap.poll();
+                int node = (int) top[1];
+                if (top[0] > dist[node]) continue;
+                if (top[0] > limit) break;
+                settled++;
+                for (Map.Entry<Integer, Edge> entry : adjacent.get(node).entrySet()) {
+                    int next = entry.getKey();
+                    if (next == avoid) continue;
+                    double d = top[0] + entry.getValue().weight;
+                    if (d < dist[next]) {
+                        if (dist[next] == Double.POSITIVE_INFINITY) touched[touchedCount++] = next;
+                        dist[next] = d;
+                        heap.add(new double[]{d, next});
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Shortest path between two nodes, or null if they aren't connected
+     */
+    public Path query(int source, int target) {
+        if (source == target) {
+            return new Path(0, new int[]{source});
+        }
+        Search forward = new Search(source);
+        Search backward = new Search(target);
+        double best = Double.POSITIVE_INFINITY;
+        int meet = -1;
+        while (forward.hasNext(best) || backward.hasNext(best)) {
+            for (Search search : new Search[]{forward, backward}) {
+                if (!search.hasNext(best)) continue;
+                int node = search.next();
+                Search other = search == forward ? backward : forward;
+                double[] there = other.labels.get(node);
+                if (there != null) {
+                    double total = search.labels.get(node)[0] + there[0];
+                    if (total < best) {
+                        best = total;
+                        meet = node;
+                    }
+                }
+            }
+        }
+        if (meet < 0) {
+            return null;
+        }
+
+        // Up from the source to the meeting node, then down to the target
+        List<Integer> up = new ArrayList<>();
+        for (int node = meet; node != source; node = (int) forward.labels.get(node)[1]) up.add(node);
+        up.add(source);
+        Collections.reverse(up);
+        List<Integer> down = new ArrayList<>();
+        for (int node = meet; node != target; node = (int) backward.labels.get(node)[1]) {
+            down.add((int) backward.labels.get(node)[1]);
+        }
+
+        List<Integer> path = new ArrayList<>();
+        path.add(source);
+        for (int i = 1; i < up.size(); i++) unpack(up.get(i - 1), up.get(i), path);
+        int previous = meet;
+        for (int node : down) {
+            unpack(previous, node, path);
+            previous = node;
+        }
+        return new Path(best, path.stream().mapToInt(Integer::intValue).toArray());
+    }
+
+    /**
+     * Appends the original nodes after a on the way to b (b included)
+     */
+    private void unpack(int a, int b, List<Integer> path) {
+        Deque<int[]> stack = new ArrayDeque<>();
+        stack.push(new int[]{a, b});
+        while (!stack.isEmpty()) {
+            int[] edge = stack.pop();
+            int middle = middleOf(edge[0], edge[1]);
+            if (middle < 0) {
+                path.add(edge[1]);
+            } else {
+                stack.push(new int[]{middle, edge[1]});
+                stack.push(new int[]{edge[0], middle});
+            }
+        }
+    }
+
+    // Edges are stored once, at their lower-ranked end
+    private int middleOf(int a, int b) {
+        int low = rank[a] < rank[b] ? a : b, high = low == a ? b : a;
+        for (int e = upStart[low]; e < upStart[low + 1]; e++) {
+            if (upTarget[e] == high) return upMiddle[e];
+        }
+        throw new IllegalStateException("No edge between " + a + " and " + b);
+    }
+
+    /**
+     * One direction of a query: Dijkstra over upward edges, labels are {distance, parent}
+     */
+    private class Search {
+        final Map<Integer, double[]> labels = new HashMap<>();
+        final PriorityQueue<double[]> queue = new PriorityQueue<>(Comparator.comparingDouble(e -> e[0]));
+
+        Search(int source) {
+            labels.put(source, new double[]{0, -1});
+            queue.add(new double[]{0, source});
+        }
+
+        // Nothing left below the best meeting distance can improve it
+        boolean hasNext(double best) {
+            while (!queue.isEmpty() && queue.peek()[0] > labels.get((int) queue.peek()[1])[0]) {
+                queue.poll();
+            }
+            return !queue.isEmpty() && queue.peek()[0] < best;
+        }
+
+        int next() {
+            double[] top = queue.poll();
+            int node = (int) top[1];
+            for (int e = upStart[node]; e < upStart[node + 1]; e++) {
+                int up = upTarget[e];
+                double d = top[0] + upWeight[e];
+                double[] label = labels.get(up);
+                if (label == null || d < label[0]) {
+                    labels.put(up, new double[]{d, node});
+                    queue.add(new double[]{d, up});
+                }
+            }
+            return node;
+        }
+    }
+
+    /**
+     * A shortest path: its total weight and every node along it, source first
+     */
+    public static class Path {
+        public final double cost;
+        public final int[] nodes;
+
+        Path(double cost, int[] nodes) {
+            this.cost = cost;
+            this.nodes = nodes;
+        }
+    }
+
+    private static class Edge {
+        final double weight;
+        final int middle;
+
+        Edge(double weight, int middle) {
+            this.weight = weight;
+            this.middle = middle;
+        }
+    }
+}
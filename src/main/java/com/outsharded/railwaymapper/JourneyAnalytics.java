@@ -0,0 +1,305 @@
+package com.outsharded.railwaymapper;
+
+import org.bukkit.scheduler.BukkitRunnable;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+
+/**
+ * Streaming journey detection over minecart samples.
+ * An occupied cart leaving a station's radius starts a trip; entering a
+ * different station's radius while still occupied completes it. Completed
+ * trips only update small aggregates (per route, per line, per hour of day)
+ * which are added onto the database totals periodically and then reset,
+ * so memory stays bounded and no raw history is kept.
+ */
+public class JourneyAnalytics implements RailwayCache.ChangeListener {
+
+    private final RailwayMapperPlugin plugin;
+    private final RailwayCache cache;
+    private final RailwayDatabase database;
+
+    private final double stationRadius;
+    private final int maxRoutes;
+    private final ZoneId zone = ZoneId.systemDefault();
+
+    private final Map<String, StationGrid> stationGrids = new ConcurrentHashMap<>();
+    private final Set<String> loading = ConcurrentHashMap.newKeySet();
+    // Bumped on every station change so a grid built from an older list is discarded
+    private final Map<String, Long> stationGenerations = new ConcurrentHashMap<>();
+
+    // Per-cart trip state; main thread only
+    private final Map<UUID, CartJourney> journeys = new HashMap<>();
+
+    // Aggregates since the last flush; guarded by this
+    private final Map<String, RouteStats> routes;
+    private List<RouteStats> evictedRoutes = new ArrayList<>();
+    private Map<String, Map<Integer, Long>> lineRiders = new HashMap<>();
+    private Map<String, long[]> hourlyTrips = new HashMap<>();
+
+    private BukkitTask flushTask;
+
+    public JourneyAnalytics(RailwayMapperPlugin plugin, RailwayCache cache, RailwayDatabase database) {
+        this.plugin = plugin;
+        this.cache = cache;
+        this.database = database;
+        this.stationRadius = plugin.getConfig().getDouble("analytics.station-radius", 6.0);
+        this.maxRoutes = Math.max(1, plugin.getConfig().getInt("analytics.max-routes", 4096));
+        // Past the cap the least recently used route is handed to the next flush rather than dropped
+        this.routes = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, RouteStats> eldest) {
+                if (size() <= maxRoutes) {
+                    return false;
+                }
+                evictedRoutes.add(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    public void start() {
+        long flushInterval = Math.max(20L, plugin.getConfig().getLong("analytics.flush-interval", 1200L));
+        flushTask = new BukkitRunnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }.runTaskTimerAsynchronously(plugin, flushInterval, flushInterval);
+    }
+
+    /**
+     * Feeds one cart sample through the trip detector. Main thread only;
+     * allocates only when a cart starts its first journey.
+     */
+    public void onSample(UUID cartId, String worldName, double x, double y, double z,
+                         boolean occupied, long timestamp, int lineId) {
+        if (!occupied) {
+            // Passenger left: whatever trip was in progress is abandoned
+            journeys.remove(cartId);
+            return;
+        }
+
+        StationGrid grid = getStations(worldName);
+        if (grid == null) {
+            return;
+        }
+
+        CartJourney journey = journeys.get(cartId);
+        if (journey == null) {
+            journey = new CartJourney();
+            journeys.put(cartId, journey);
+        }
+
+        boolean onLine = lineId >= 0;
+        RailwayDatabase.Station station = grid.find(x, y, z, stationRadius);
+        if (station != null) {
+            if (journey.departedFrom != null && !journey.departedFrom.name.equals(station.name)
+                    && worldName.equals(journey.world)) {
+                recordTrip(journey, station, timestamp);
+            }
+            journey.departedFrom = null;
+            journey.currentStation = station;
+            journey.world = worldName;
+        } else if (journey.currentStation != null) {
+            // Just left a station
+            journey.departedFrom = journey.currentStation;
+            journey.departedAt = timestamp;
+            journey.currentStation = null;
+            journey.world = worldName;
+            if (onLine) {
+                recordRider(worldName, lineId);
+            } else {
+                journey.awaitingLine = true;
+            }
+        } else if (journey.awaitingLine && onLine) {
+            // First matched line after leaving the platform area
+            journey.awaitingLine = false;
+            recordRider(worldName, lineId);
+        }
+    }
+
+    /**
+     * Drops trip state for a cart that despawned
+     */
+    public void forget(UUID cartId) {
+        journeys.remove(cartId);
+    }
+
+    private synchronized void recordTrip(CartJourney journey, RailwayDatabase.Station arrival, long arrivedAt) {
+        long duration = Math.max(0, arrivedAt - journey.departedAt);
+        String key = journey.world + '\0' + journey.departedFrom.name + '\0' + arrival.name;
+        RouteStats route = routes.get(key);
+        if (route == null) {
+            route = new RouteStats(journey.world, journey.departedFrom.name, arrival.name);
+            routes.put(key, route);
+        }
+        route.add(duration);
+
+        int hour = Instant.ofEpochMilli(journey.departedAt).atZone(zone).getHour();
+        hourlyTrips.computeIfAbsent(journey.world, w -> new long[24])[hour]++;
+    }
+
+    private synchronized void recordRider(String worldName, int lineId) {
+        lineRiders.computeIfAbsent(worldName, w -> new HashMap<>()).merge(lineId, 1L, Long::sum);
+    }
+
+    /**
+     * Adds everything collected since the last flush to the database and resets it
+     */
+    public void flush() {
+        List<RouteStats> routeBatch;
+        Map<String, Map<Integer, Long>> riderBatch;
+        Map<String, long[]> hourBatch;
+        synchronized (this) {
+            if (routes.isEmpty() && evictedRoutes.isEmpty() && lineRiders.isEmpty() && hourlyTrips.isEmpty()) {
+                return;
+            }
+            routeBatch = evictedRoutes;
+            routeBatch.addAll(routes.values());
+            evictedRoutes = new ArrayList<>();
+            routes.clear();
+            riderBatch = lineRiders;
+            lineRiders = new HashMap<>();
+            hourBatch = hourlyTrips;
+            hourlyTrips = new HashMap<>();
+        }
+
+        try {
+            database.saveJourneySummaries(routeBatch, riderBatch, hourBatch);
+        } catch (Exception e) {
+            plugin.getLogger().log(Level.SEVERE, "Error flushing journey analytics", e);
+        }
+    }
+
+    private StationGrid getStations(String worldName) {
+        StationGrid grid = stationGrids.get(worldName);
+        if (grid == null && loading.add(worldName)) {
+            new BukkitRunnable() {
+                @Override
+                public void run() {
+                    try {
+                        Long seen = stationGenerations.get(worldName);
+                        StationGrid loaded = new StationGrid(cache.getStations(worldName), stationRadius);
+                        // Atomic with the bump in onStationsChanged, so a change mid-load wins
+                        stationGenerations.compute(worldName, (w, current) -> {
+                            if (Objects.equals(current, seen)) {
+                                stationGrids.put(worldName, loaded);
+                            }
+                            return current;
+                        });
+                    } finally {
+                        loading.remove(worldName);
+                    }
+                }
+            }.runTaskAsynchronously(plugin);
+        }
+        return grid;
+    }
+
+    @Override
+    public void onRailLinesChanged(String worldName) {
+    }
+
+    @Override
+    public void onStationsChanged(String worldName) {
+        stationGenerations.merge(worldName, 1L, Long::sum);
+        stationGrids.remove(worldName);
+    }
+
+    public void shutdown() {
+        if (flushTask != null) {
+            flushTask.cancel();
+            flushTask = null;
+        }
+        flush();
+        journeys.clear();
+    }
+
+    /**
+     * Aggregated travel times for one station-to-station route
+     */
+    public static class RouteStats {
+        public final String world;
+        public final String fromStation;
+        public final String toStation;
+        public long trips;
+        public long totalMs;
+        public long minMs = Long.MAX_VALUE;
+        public long maxMs;
+
+        public RouteStats(String world, String fromStation, String toStation) {
+            this.world = world;
+            this.fromStation = fromStation;
+            this.toStation = toStation;
+        }
+
+        void add(long durationMs) {
+            trips++;
+            totalMs += durationMs;
+            minMs = Math.min(minMs, durationMs);
+            maxMs = Math.max(maxMs, durationMs);
+        }
+
+        public long getAverageMs() {
+            return trips == 0 ? 0 : totalMs / trips;
+        }
+    }
+
+    private static class CartJourney {
+        String world;
+        RailwayDatabase.Station currentStation;
+        RailwayDatabase.Station departedFrom;
+        long departedAt;
+        boolean awaitingLine;
+    }
+
+    /**
+     * Grid of stations bucketed by the detection radius, so a lookup only
+     * checks the 3x3 cells around the cart
+     */
+    private static class StationGrid {
+        private final Map<Long, List<RailwayDatabase.Station>> cells = new HashMap<>();
+        private final int cellSize;
+
+        StationGrid(List<RailwayDatabase.Station> stations, double radius) {
+            this.cellSize = Math.max(1, (int) Math.ceil(radius));
+            for (RailwayDatabase.Station station : stations) {
+                long key = key(Math.floorDiv(station.x, cellSize), Math.floorDiv(station.z, cellSize));
+                cells.computeIfAbsent(key, k -> new ArrayList<>()).add(station);
+            }
+        }
+
+        RailwayDatabase.Station find(double x, double y, double z, double radius) {
+            int cx = Math.floorDiv((int) Math.floor(x), cellSize);
+            int cz = Math.floorDiv((int) Math.floor(z), cellSize);
+            double radiusSq = radius * radius;
+            RailwayDatabase.Station best = null;
+            double bestDist = radiusSq;
+            for (int dx = -1; dx <= 1; dx++) {
+                for (int dz = -1; dz <= 1; dz++) {
+                    List<RailwayDatabase.Station> cell = cells.get(key(cx + dx, cz + dz));
+                    if (cell == null) continue;
+                    for (RailwayDatabase.Station station : cell) {
+                        double sx = station.x + 0.5 - x;
+                        double sz = station.z + 0.5 - z;
+                        double d = sx * sx + sz * sz;
+                        if (d <= bestDist && Math.abs(station.y - y) <= radius) {
+                            bestDist = d;
+                            best = station;
+                        }
+                    }
+                }
+            }
+            return best;
+        }
+
+        private static long key(int cx, int cz) {
+            return ((long) cx << 32) | (cz & 0xFFFFFFFFL);
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package com.outsharded.railwaymapper;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Minimal streaming JSON writer that encodes UTF-8 straight into a fixed
+ * buffer and drains it to a channel, so memory use doesn't grow with the
+ * document. Strings are escaped per RFC 8259 (plus U+2028/U+2029, which
+ * would otherwise break the output if embedded in a script).
+ * Commas are inserted automatically; callers only describe the structure.
+ */
+public class JsonStreamWriter implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    private final WritableByteChannel out;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    // Per open container: whether the next element needs a leading comma
+    private boolean[] needsComma = new boolean[16];
+    private int depth;
+    private boolean afterName;
+
+    public JsonStreamWriter(WritableByteChannel out) {
+        this.out = out;
+    }
+
+    public JsonStreamWriter beginObject() throws IOException {
+        return open('{');
+    }
+
+    public JsonStreamWriter endObject() throws IOException {
+        return close('}');
+    }
+
+    public JsonStreamWriter beginArray() throws IOException {
+        return open('[');
+    }
+
+    public JsonStreamWriter endArray() throws IOException {
+        return close(']');
+    }
+
+    public JsonStreamWriter name(String name) throws IOException {
+        separator();
+        string(name);
+        put((byte) ':');
+        afterName = true;
+        return this;
+    }
+
+    public JsonStreamWriter value(String value) throws IOException {
+        if (value == null) {
+            return nullValue();
+        }
+        separator();
+        string(value);
+        return this;
+    }
+
+    public JsonStreamWriter value(long value) throws IOException {
+        separator();
+        ascii(Long.toString(value));
+        return this;
+    }
+
+    /**
+     * Writes a number; NaN and infinities (not valid JSON) become null
+     */
+    public JsonStreamWriter value(double value) throws IOException {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return nullValue();
+        }
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return value((long) value);
+        }
+        separator();
+        ascii(Double.toString(value));
+        return this;
+    }
+
+    public JsonStreamWriter value(boolean value) throws IOException {
+        separator();
+        ascii(value ? "true" : "false");
+        return this;
+    }
+
+    public JsonStreamWriter nullValue() throws IOException {
+        separator();
+        ascii("null");
+        return this;
+    }
+
+    /**
+     * Writes a value that's already valid, UTF-8 encoded JSON
+     */
+    public JsonStreamWriter rawValue(byte[] json) throws IOException {
+        separator();
+        for (byte b : json) {
+            put(b);
+        }
+        return this;
+    }
+
+    /**
+     * Drains buffered output to the channel
+     */
+    public void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Flushes; the channel itself is left open for the caller to close
+     */
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+
+    private JsonStreamWriter open(char bracket) throws IOException {
+        separator();
+        put((byte) bracket);
+        if (depth == needsComma.length) {
+            needsComma = Arrays.copyOf(needsComma, depth * 2);
+        }
+        needsComma[depth++] = false;
+        return this;
+    }
+
+    private JsonStreamWriter close(char bracket) throws IOException {
+        if (depth == 0) {
+            throw new IllegalStateException("Unbalanced " + bracket);
+        }
+        depth--;
+        put((byte) bracket);
+        return this;
+    }
+
+    private void separator() throws IOException {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+        if (depth > 0) {
+            if (needsComma[depth - 1]) {
+                put((byte) ',');
+            }
+            needsComma[depth - 1] = true;
+        }
+    }
+
+    private void string(String s) throws IOException {
+        put((byte) '"');
+        int len = s.length();
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"': put((byte) '\\'); put((byte) '"'); break;
+                case '\\': put((byte) '\\'); put((byte) '\\'); break;
+                case '\n': put((byte) '\\'); put((byte) 'n'); break;
+                case '\r': put((byte) '\\'); put((byte) 'r'); break;
+                case '\t': put((byte) '\\'); put((byte) 't'); break;
+                case '\b': put((byte) '\\'); put((byte) 'b'); break;
+                case '\f': put((byte) '\\'); put((byte) 'f'); break;
+                default:
+                    if (c < 0x20 || c == 0x2028 || c == 0x2029) {
+                        unicodeEscape(c);
+                    } else if (c < 0x80) {
+                        put((byte) c);
+                    } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                        utf8(Character.toCodePoint(c, s.charAt(++i)));
+                    } else if (Character.isSurrogate(c)) {
+                        // Lone surrogate: not encodable as UTF-8
+                        unicodeEscape(c);
+                    } else {
+                        utf8(c);
+                    }
+            }
+        }
+        put((byte) '"');
+    }
+
+    private void unicodeEscape(char c) throws IOException {
+        ensure(6);
+        buffer.put((byte) '\\').put((byte) 'u')
+              .put(HEX[(c >> 12) & 0xF]).put(HEX[(c >> 8) & 0xF])
+              .put(HEX[(c >> 4) & 0xF]).put(HEX[c & 0xF]);
+    }
+
+    private void utf8(int cp) throws IOException {
+        ensure(4);
+        if (cp < 0x800) {
+            buffer.put((byte) (0xC0 | (cp >> 6)));
+        } else if (cp < 0x10000) {
+            buffer.put((byte) (0xE0 | (cp >> 12)));
+            buffer.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+        } else {
+            buffer.put((byte) (0xF0 | (cp >> 18)));
+            buffer.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+            buffer.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+        }
+        buffer.put((byte) (0x80 | (cp & 0x3F)));
+    }
+
+    private void ascii(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            put((byte) s.charAt(i));
+        }
+    }
+
+    private void put(byte b) throws IOException {
+        ensure(1);
+        buffer.put(b);
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+}
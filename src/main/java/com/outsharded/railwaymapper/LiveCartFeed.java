@@ -0,0 +1,325 @@
+package com.outsharded.railwaymapper;
+
+import com.outsharded.railwaymapper.MinecartTracker.MinecartData;
+import org.bukkit.scheduler.BukkitRunnable;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+
+/**
+ * Live cart positions for map viewers, as Server-Sent Event frames.
+ * Every interval, each watched world's carts are compared (by store
+ * version, then by quantized position) against what viewers already have,
+ * and only the changes go into a delta frame. A frame is encoded once and
+ * the same bytes go to every viewer, so the cost barely depends on how
+ * many are watching.
+ *
+ * Only the latest frame is kept. A viewer that is still writing an earlier
+ * one when the next arrives skips the frames in between and receives a
+ * keyframe of the current state instead (built once per frame and shared),
+ * so a slow client never queues anything.
+ *
+ * Frames are JSON; carts are {@code [slot, x, z, vx, vz, occupied]} with
+ * positions in {@value #POSITION_SCALE}ths of a block and velocities in
+ * {@value #VELOCITY_SCALE}ths of a block per tick:
+ * <pre>
+ *   event: key     data: {"seq":n,"carts":[...]}               full state
+ *   event: delta   data: {"seq":n,"carts":[...],"gone":[slot...]}  changes since n - 1
+ * </pre>
+ */
+public class LiveCartFeed {
+
+    public static final int POSITION_SCALE = 8;
+    public static final int VELOCITY_SCALE = 100;
+
+    private final RailwayMapperPlugin plugin;
+    private final CartStore store;
+    private final long interval;
+    private final int maxViewers;
+
+    // Worlds with at least one viewer; guarded by itself
+    private final Map<String, WorldFeed> worlds = new HashMap<>();
+    private int viewers;
+    private volatile boolean closed;
+    private BukkitTask task;
+
+    public LiveCartFeed(RailwayMapperPlugin plugin, CartStore store) {
+        this.plugin = plugin;
+        this.store = store;
+        this.interval = Math.max(1L, plugin.getConfig().getLong("live.interval", 2L));
+        this.maxViewers = Math.max(1, plugin.getConfig().getInt("live.max-viewers", 256));
+    }
+
+    public void start() {
+        // The store is safe to read from any thread, so frames are built off the main thread
+        task = new BukkitRunnable() {
+            @Override
+            public void run() {
+                publishFrames();
+            }
+        }.runTaskTimerAsynchronously(plugin, interval, interval);
+    }
+
+    /**
+     * Starts watching a world, or returns null if the viewer limit is reached.
+     * Pair with {@link #unwatch}.
+     */
+    public WorldFeed watch(String worldName) {
+        synchronized (worlds) {
+            if (closed || viewers >= maxViewers) {
+                return null;
+            }
+            viewers++;
+            WorldFeed feed = worlds.computeIfAbsent(worldName, WorldFeed::new);
+            feed.viewers++;
+            return feed;
+        }
+    }
+
+    public void unwatch(WorldFeed feed) {
+        synchronized (worlds) {
+            viewers--;
+            if (--feed.viewers == 0) {
+                worlds.remove(feed.worldName, feed);
+            }
+        }
+    }
+
+    /**
+     * Builds and publishes the next frame for every watched world
+     */
+    public void publishFrames() {
+        WorldFeed[] feeds;
+        synchronized (worlds) {
+            feeds = worlds.values().toArray(new WorldFeed[0]);
+        }
+        for (WorldFeed feed : feeds) {
+            try {
+                feed.update();
+            } catch (IOException | RuntimeException e) {
+                plugin.getLogger().log(Level.WARNING, "Error building live cart frame for " + feed.worldName, e);
+            }
+        }
+    }
+
+    public void shutdown() {
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+        closed = true;
+        synchronized (worlds) {
+            for (WorldFeed feed : worlds.values()) {
+                feed.close();
+            }
+            worlds.clear();
+        }
+    }
+
+    /**
+     * An encoded event ready to write, and the state sequence number it brings a viewer to
+     */
+    public static class Frame {
+        public final long seq;
+        public final byte[] bytes;
+
+        Frame(long seq, byte[] bytes) {
+            this.seq = seq;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Frames for one world. Waiting uses a {@link ReentrantLock} rather than
+     * monitors so viewers on virtual threads don't pin their carrier.
+     */
+    public class WorldFeed {
+        final String worldName;
+        int viewers; // guarded by LiveCartFeed.this.worlds
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition published = lock.newCondition();
+
+        // What viewers have after applying frame seq, per store slot
+        private long[] sentVersion = new long[64];
+        private boolean[] present = new boolean[64];
+        private int[] state = new int[64 * 5]; // x, z, vx, vz, occupied
+        private long seq;
+        private Frame delta;
+        private Frame keyframe;
+        private boolean ended;
+
+        WorldFeed(String worldName) {
+            this.worldName = worldName;
+        }
+
+        /**
+         * Blocks until there's a frame newer than {@code afterSeq} (-1 for a
+         * new viewer) and returns it: the delta if the viewer is exactly one
+         * behind, otherwise a keyframe. Returns null on timeout and a frame
+         * with seq -1 once the feed has shut down.
+         */
+        public Frame next(long afterSeq, long timeoutMs) throws InterruptedException {
+            lock.lock();
+            try {
+                long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+                while (!ended && seq <= afterSeq) {
+                    if (nanos <= 0) {
+                        return null;
+                    }
+                    nanos = published.awaitNanos(nanos);
+                }
+                if (ended) {
+                    return new Frame(-1, new byte[0]);
+                }
+                if (afterSeq >= 0 && delta != null && delta.seq == afterSeq + 1) {
+                    return delta;
+                }
+                if (keyframe == null || keyframe.seq != seq) {
+                    keyframe = encodeKeyframe();
+                }
+                return keyframe;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void update() throws IOException {
+            int limit = store.getHighWater();
+            lock.lock();
+            try {
+                ensureCapacity(limit);
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                int[] gone = new int[8];
+                int goneCount = 0;
+                int changed = 0;
+                try (JsonStreamWriter json = new JsonStreamWriter(Channels.newChannel(body))) {
+                    json.beginObject();
+                    json.name("seq").value(seq + 1);
+                    json.name("carts").beginArray();
+                    for (int slot = 0; slot < present.length; slot++) {
+                        // Freeing a slot resets its version, so removals show up here too
+                        long version = slot < limit ? store.versionOf(slot) : 0;
+                        if (version == sentVersion[slot]) continue;
+                        sentVersion[slot] = version;
+                        MinecartData data = version == 0 ? null : store.readIfChanged(slot, 0);
+                        if (data == null || !worldName.equals(data.getWorld())) {
+                            // Removed or moved to another world
+                            if (present[slot]) {
+                                present[slot] = false;
+                                if (goneCount == gone.length) gone = Arrays.copyOf(gone, goneCount * 2);
+                                gone[goneCount++] = slot;
+                            }
+                            continue;
+                        }
+
+                        int x = quantize(data.getX(), POSITION_SCALE);
+                        int z = quantize(data.getZ(), POSITION_SCALE);
+                        int vx = quantize(data.getVelocity().getX(), VELOCITY_SCALE);
+                        int vz = quantize(data.getVelocity().getZ(), VELOCITY_SCALE);
+                        int occupied = data.isOccupied() ? 1 : 0;
+                        int at = slot * 5;
+                        if (present[slot] && state[at] == x && state[at + 1] == z && state[at + 2] == vx
+                                && state[at + 3] == vz && state[at + 4] == occupied) {
+                            continue;
+                        }
+                        present[slot] = true;
+                        state[at] = x;
+                        state[at + 1] = z;
+                        state[at + 2] = vx;
+                        state[at + 3] = vz;
+                        state[at + 4] = occupied;
+                        writeCart(json, slot);
+                        changed++;
+                    }
+                    json.endArray();
+                    if (goneCount > 0) {
+                        json.name("gone").beginArray();
+                        for (int i = 0; i < goneCount; i++) json.value(gone[i]);
+                        json.endArray();
+                    }
+                    json.endObject();
+                }
+                if (changed + goneCount == 0) {
+                    return;
+                }
+                seq++;
+                delta = new Frame(seq, event("delta", body.toByteArray()));
+                published.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void close() {
+            lock.lock();
+            try {
+                ended = true;
+                published.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Called with the lock held
+        private Frame encodeKeyframe() {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try (JsonStreamWriter json = new JsonStreamWriter(Channels.newChannel(body))) {
+                json.beginObject();
+                json.name("seq").value(seq);
+                json.name("carts").beginArray();
+                for (int slot = 0; slot < present.length; slot++) {
+                    if (present[slot]) {
+                        writeCart(json, slot);
+                    }
+                }
+                json.endArray();
+                json.endObject();
+            } catch (IOException e) {
+                // Writing to memory
+                throw new IllegalStateException(e);
+            }
+            return new Frame(seq, event("key", body.toByteArray()));
+        }
+
+        private void writeCart(JsonStreamWriter json, int slot) throws IOException {
+            int at = slot * 5;
+            json.beginArray().value(slot);
+            for (int i = 0; i < 5; i++) {
+                json.value(state[at + i]);
+            }
+            json.endArray();
+        }
+
+        private void ensureCapacity(int slots) {
+            if (slots > present.length) {
+                sentVersion = Arrays.copyOf(sentVersion, slots);
+                present = Arrays.copyOf(present, slots);
+                state = Arrays.copyOf(state, slots * 5);
+            }
+        }
+
+        private byte[] event(String name, byte[] data) {
+            byte[] head = ("id: " + seq + "\nevent: " + name + "\ndata: ").getBytes(StandardCharsets.UTF_8);
+            byte[] bytes = Arrays.copyOf(head, head.length + data.length + 2);
+            System.arraycopy(data, 0, bytes, head.length, data.length);
+            bytes[bytes.length - 2] = '\n';
+            bytes[bytes.length - 1] = '\n';
+            return bytes;
+        }
+    }
+
+    private static int quantize(double value, int scale) {
+        return (int) Math.round(value * scale);
+    }
+}
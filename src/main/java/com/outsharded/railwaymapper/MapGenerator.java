@@ -1,73 +1,215 @@
 package com.outsharded.railwaymapper;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 import org.bukkit.plugin.Plugin;
 
 public class MapGenerator {
 
     private final RailwayMapperPlugin plugin;
-    private final RailwayDatabase database;
+    private final RailwayCache cache;
+    private final TrafficHeatmap heatmap;
+    private final MapTiler tiler;
+    private final SchematicLayout schematic;
+    // Keep published files in memory for the embedded web server
+    private final boolean serveFromMemory;
+    private final int keepPatches;
 
-    public MapGenerator(RailwayMapperPlugin plugin, RailwayDatabase database) {
+    private volatile MapPublisher publisher;
+    // Last tiles and schematic per world, reused while its lines and stations are unchanged
+    private final Map<String, Layout> layouts = new ConcurrentHashMap<>();
+    // Last published data and recent patches per world
+    private final Map<String, History> histories = new ConcurrentHashMap<>();
+
+    public MapGenerator(RailwayMapperPlugin plugin, RailwayCache cache, RailIndexCache indexes,
+                        TrafficHeatmap heatmap) {
         this.plugin = plugin;
-        this.database = database;
+        this.cache = cache;
+        this.heatmap = heatmap;
+        this.tiler = new MapTiler(plugin);
+        this.schematic = new SchematicLayout(plugin, indexes);
+        this.serveFromMemory = plugin.getConfig().getBoolean("web-server.enabled", false);
+        this.keepPatches = Math.max(0, plugin.getConfig().getInt("map.keep-patches", 10));
     }
 
     public void generateMap(String worldName) throws IOException {
-        plugin.getLogger().info("Generating map HTML for world: " + worldName);
+        plugin.getLogger().fine("Generating map for world: " + worldName);
 
-        // Get Dynmap plugin for web directory
+        // Get Dynmap plugin for web directory; the embedded web server needs no files
         Plugin dynmap = plugin.getServer().getPluginManager().getPlugin("dynmap");
-        if (dynmap == null) {
-            plugin.getLogger().severe("Dynmap not found! Cannot save web files.");
+        File webDir = null;
+        if (dynmap != null) {
+            webDir = new File(dynmap.getDataFolder(), "web/railwaymapper");
+            if (!webDir.exists() && !webDir.mkdirs()) {
+                plugin.getLogger().severe("Failed to create Dynmap web directory: " + webDir.getAbsolutePath());
+                return;
+            }
+        } else if (!serveFromMemory) {
+            plugin.getLogger().severe("Dynmap not found and web-server is disabled! Cannot publish the map.");
             return;
         }
 
-        File webDir = new File(dynmap.getDataFolder(), "web/railwaymapper");
-        if (!webDir.exists() && !webDir.mkdirs()) {
-            plugin.getLogger().severe("Failed to create Dynmap web directory: " + webDir.getAbsolutePath());
+        MapPublisher publisher = getPublisher(webDir);
+
+        // Generate static HTML with embedded world list
+        if (publisher.publishFixed("railmap.html", generateHTMLWithWorldList().getBytes(StandardCharsets.UTF_8))
+                && webDir != null) {
+            plugin.getLogger().info("✓ HTML saved to: " + new File(webDir, "railmap.html").getAbsolutePath());
+        }
+        
+        // Geometry goes out as tiles first, then the world data that points at them
+        List<RailLine> lines = cache.getRailLines(worldName);
+        List<RailwayDatabase.Station> stations = cache.getStations(worldName);
+        Layout layout = getLayout(publisher, worldName, lines, stations);
+
+        History history = histories.computeIfAbsent(worldName, k -> new History());
+        WorldData previous = history.current;
+        long version = previous == null ? System.currentTimeMillis()
+                                         : Math.max(System.currentTimeMillis(), previous.version + 1);
+        WorldData data = new WorldData(version, worldName, lines, layout.tiling, layout.schematicFile,
+                                       layout.stationTree, currentHeat(worldName, lines));
+        if (data.sameContent(previous)) {
             return;
         }
 
-        // Generate static HTML with embedded world list (generated fresh each time)
-        File mapFile = new File(webDir, "railmap.html");
-        String html = generateHTMLWithWorldList();
-        Files.writeString(mapFile.toPath(), html);
-        plugin.getLogger().info("✓ HTML saved to: " + mapFile.getAbsolutePath());
-        
-        // Also generate the world-specific data JSON file in Dynmap folder so HTML can load it
-        File dataFile = new File(webDir, worldName + "_data.json");
-        String jsonData = generateWorldData(worldName);
-        Files.writeString(dataFile.toPath(), jsonData);
-        plugin.getLogger().info("✓ JSON saved to: " + dataFile.getAbsolutePath());
+        // World data goes out under a content-hashed name listed in the manifest, then the
+        // patch log, so a client that sees the new log can always fall back to the new data
+        String dataFile = publisher.publishVersioned(worldName + "_data.json", out -> {
+            try (JsonStreamWriter json = new JsonStreamWriter(out)) {
+                data.writeFull(json);
+            }
+        });
+        if (previous != null && keepPatches > 0) {
+            ByteArrayOutputStream patch = new ByteArrayOutputStream();
+            try (JsonStreamWriter json = new JsonStreamWriter(Channels.newChannel(patch))) {
+                data.writePatch(json, previous);
+            }
+            history.patches.addLast(patch.toByteArray());
+            while (history.patches.size() > keepPatches) {
+                history.patches.removeFirst();
+            }
+        }
+        history.current = data;
+        publisher.publishVersioned(worldName + "_patches.json", out -> {
+            try (JsonStreamWriter json = new JsonStreamWriter(out)) {
+                json.beginObject();
+                json.name("world").value(worldName);
+                json.name("version").value(data.version);
+                json.name("patches").beginArray();
+                for (byte[] patch : history.patches) {
+                    json.rawValue(patch);
+                }
+                json.endArray();
+                json.endObject();
+            }
+        });
+        plugin.getLogger().fine("✓ JSON published as: " + dataFile + " (" + layout.tiling.tiles.size() + " tiles, "
+                                + history.patches.size() + " patches)");
+    }
+
+    // The web directory only changes if Dynmap's data folder does (or Dynmap comes or goes)
+    private synchronized MapPublisher getPublisher(File webDir) {
+        if (publisher == null || !Objects.equals(publisher.getDirectory(), webDir)) {
+            publisher = new MapPublisher(plugin, webDir, serveFromMemory);
+            layouts.clear();
+            histories.clear();
+        }
+        return publisher;
+    }
 
-        plugin.getLogger().info("Map HTML and data generated for world: " + worldName);
+    /**
+     * The publisher holding the current map files, or null before the first map is generated
+     */
+    public MapPublisher getPublisher() {
+        return publisher;
     }
 
-    private String generateWorldData(String worldName) {
-        String railNetworks = database.getRailNetworks(worldName);
-        java.util.List<RailwayDatabase.Station> stations = database.getStations(worldName);
-        
-        StringBuilder json = new StringBuilder();
-        json.append("{\"world\":\"").append(worldName).append("\",\"railLines\": ");
-        json.append(railNetworks);
-        json.append(", \"stations\": [");
-        
-        for (int i = 0; i < stations.size(); i++) {
-            RailwayDatabase.Station s = stations.get(i);
-            if (i > 0) json.append(",");
-            json.append(String.format("{\"x\":%d,\"y\":%d,\"z\":%d,\"name\":\"%s\"}", s.x, s.y, s.z, s.name));
+    // The cache hands out the same list instances until the data changes
+    private Layout getLayout(MapPublisher publisher, String worldName, List<RailLine> lines,
+                             List<RailwayDatabase.Station> stations) throws IOException {
+        Layout cached = layouts.get(worldName);
+        if (cached != null && cached.lines == lines && cached.stations == stations) {
+            return cached;
         }
-        
-        json.append("]}");
-        return json.toString();
+        Layout layout = new Layout(lines, stations,
+                                   tiler.publishTiles(publisher, worldName, lines, stations),
+                                   schematic.publish(publisher, worldName, lines, stations),
+                                   MapHitIndex.kdOrder(stations));
+        layouts.put(worldName, layout);
+        return layout;
+    }
+
+    /**
+     * Patches oldest first, each from the previous version to the next; only
+     * touched by the (single) regenerating thread
+     */
+    private static class History {
+        WorldData current;
+        final Deque<byte[]> patches = new ArrayDeque<>();
+    }
+
+    private static class Layout {
+        final List<RailLine> lines;
+        final List<RailwayDatabase.Station> stations;
+        final MapTiler.Tiling tiling;
+        final String schematicFile;
+        // stations in k-d tree order, as published
+        final List<RailwayDatabase.Station> stationTree;
+
+        Layout(List<RailLine> lines, List<RailwayDatabase.Station> stations, MapTiler.Tiling tiling,
+               String schematicFile, List<RailwayDatabase.Station> stationTree) {
+            this.lines = lines;
+            this.stations = stations;
+            this.tiling = tiling;
+            this.schematicFile = schematicFile;
+            this.stationTree = stationTree;
+        }
+    }
+
+    // Heat per segment, one array per entry of lines (segment i runs from original vertex i to i+1),
+    // or null if there's no heat for these lines
+    private double[][] currentHeat(String worldName, List<RailLine> lines) {
+        TrafficHeatmap.Snapshot snapshot = heatmap.getHeat(worldName);
+        if (snapshot == null || !matchesLines(snapshot.index, lines)) {
+            return null;
+        }
+
+        double[][] heat = new double[lines.size()][];
+        for (int l = 0; l < lines.size(); l++) {
+            int first = snapshot.index.firstSegmentOf(l);
+            heat[l] = new double[snapshot.index.segmentCountOf(l)];
+            for (int i = 0; i < heat[l].length; i++) {
+                heat[l][i] = Math.round(snapshot.heat[first + i] * 100) / 100.0;
+            }
+        }
+        return heat;
+    }
+
+    // The index may predate a rescan that hasn't reached the matcher yet
+    private static boolean matchesLines(RailSpatialIndex index, List<RailLine> lines) {
+        if (index.getLineCount() != lines.size()) {
+            return false;
+        }
+        for (int l = 0; l < lines.size(); l++) {
+            if (index.segmentCountOf(l) != Math.max(0, lines.get(l).vertices.size() - 1)) {
+                return false;
+            }
+        }
+        return true;
     }
 
     private String generateHTMLWithWorldList() {
-        // Get all available worlds from database
-        java.util.List<String> worlds = database.getAllWorlds();
+        // Get all available worlds (cached)
+        java.util.List<String> worlds = cache.getAllWorlds();
         
         // Build world options HTML
         StringBuilder worldOptions = new StringBuilder();
@@ -88,6 +230,8 @@ public class MapGenerator {
            ".controls-bar select { padding: 10px 15px; font-size: 16px; border-radius: 5px; border: 1px solid #ccc; }\n" +
            ".map-container { display: flex; justify-content: center; margin-top: 20px; box-shadow: 0 2px 8px rgba(0,0,0,0.1); }\n" +
            "canvas { border: 3px solid #333; background: #fff; cursor: move; display: block; }\n" +
+           ".map-stack { position: relative; }\n" +
+           "#overlay { position: absolute; left: 0; top: 0; border-color: transparent; background: transparent; pointer-events: none; }\n" +
            ".legend { margin-top: 20px; padding: 15px; background: #fff; border-radius: 5px; box-shadow: 0 2px 8px rgba(0,0,0,0.1); }\n" +
            ".legend h3 { margin: 0 0 10px 0; color: #E21836; }\n" +
            ".legend-content { display: grid; grid-template-columns: 1fr 1fr; gap: 10px; }\n" +
@@ -106,119 +250,664 @@ public class MapGenerator {
            "    <option value=''>-- Select a world --</option>\n" +
            worldOptions.toString() +
            "  </select>\n" +
+           "  <label><input type='checkbox' id='heat-toggle' onchange='scheduleDraw()'> Show traffic</label>\n" +
+           "  <label><input type='checkbox' id='schematic-toggle' onchange='setSchematic(this.checked)'> Schematic</label>\n" +
            "</div>\n" +
-           "<div class='map-container'><canvas id='railmap' width='2000' height='2000'></canvas></div>\n" +
+           "<div class='map-container'><div class='map-stack'>\n" +
+           "  <canvas id='railmap' width='2000' height='2000'></canvas>\n" +
+           "  <canvas id='overlay' width='2000' height='2000'></canvas>\n" +
+           "</div></div>\n" +
            "<div class='legend'>\n" +
            "  <h3>Map Guide</h3>\n" +
            "  <div class='legend-content'>\n" +
            "    <div class='legend-item'><div class='legend-item-icon' style='background: #E21836;'></div>Rail Networks</div>\n" +
            "    <div class='legend-item'><div class='legend-item-circle' style='background: #FFD700; border: 2px solid #333;'></div>Stations</div>\n" +
+           "    <div class='legend-item'><div class='legend-item-icon' style='background: linear-gradient(to right, #FFDC00, #FF0000);'></div>Traffic (quiet to busy)</div>\n" +
+           "    <div class='legend-item'><div class='legend-item-circle' style='background: #E21836; border: 2px solid #fff;'></div>Live cart (grey when empty)</div>\n" +
            "  </div>\n" +
            "  <div class='controls'>\n" +
-           "    <strong>Controls:</strong> Drag to pan • Scroll to zoom • Hover over stations to see names\n" +
+           "    <strong>Controls:</strong> Drag to pan • Scroll to zoom • Hover over stations or lines for details\n" +
            "  </div>\n" +
            "</div>\n" +
            "<script>\n" +
            "const canvas = document.getElementById('railmap');\n" +
            "const ctx = canvas.getContext('2d');\n" +
+           "// Hover and tooltips go on a transparent canvas above the map so they never repaint it\n" +
+           "const overlay = document.getElementById('overlay');\n" +
+           "const octx = overlay.getContext('2d');\n" +
            "const worldSelect = document.getElementById('world-select');\n" +
+           "const heatToggle = document.getElementById('heat-toggle');\n" +
+           "const schematicToggle = document.getElementById('schematic-toggle');\n" +
            "let scale = 1, offsetX = 0, offsetY = 0, isDragging = false, startX, startY;\n" +
-           "let hoveredStation = null, mapData = null, currentWorld = null;\n" +
+           "let hoveredStation = null, hoveredSegment = null, mapData = null, currentWorld = null;\n" +
+           "// Data files sit next to the page, whether Dynmap or the embedded server serves it\n" +
+           "const basePath = location.pathname.replace(/[^/]*$/, '');\n" +
+           "// Tiles by file name, oldest first; bounded so memory doesn't grow with the world.\n" +
+           "// Tile files never change, so cached tiles stay valid across data updates.\n" +
+           "const MAX_TILES = 512;\n" +
+           "let tileCache = new Map(), tilesLoading = new Set();\n" +
+           "// Open pages poll for new data and apply the published patches on top of mapData\n" +
+           "const UPDATE_INTERVAL_MS = 30000;\n" +
+           "let patchLogFile = null;\n" +
+           "// Redraws are coalesced into at most one per animation frame\n" +
+           "let mapDirty = false, overlayDirty = false, frameRequested = false;\n" +
+           "const HEAT_BUCKETS = 8;\n" +
+           "// Live carts by slot, streamed from the built-in web server when it's in use.\n" +
+           "// Positions arrive in 1/8 blocks.\n" +
+           "let cartSource = null, carts = new Map();\n" +
+           "const CART_SCALE = 8;\n" +
+           "// Screen-space grid used to keep station labels from overlapping\n" +
+           "const LABEL_CELL = 64, MAX_LABELS = 2000;\n" +
+           "// Schematic diagram of the current data (see SchematicLayout), loaded when first shown\n" +
+           "let schematic = null;\n" +
            "\n" +
            "function loadWorld(world) {\n" +
            "  if (!world) return;\n" +
            "  currentWorld = world;\n" +
-           "  scale = 1; offsetX = 0; offsetY = 0; hoveredStation = null;\n" +
-           "  const dataPath = '/plugins/dynmap/web/railwaymapper/' + world + '_data.json';\n" +
-           "  fetch(dataPath)\n" +
-           "    .then(res => {\n" +
-           "      if (!res.ok) throw new Error('Failed to load ' + dataPath + ': ' + res.status);\n" +
-           "      return res.json();\n" +
-           "    })\n" +
-           "    .then(data => { mapData = data; drawMap(); })\n" +
+           "  mapData = null; patchLogFile = null;\n" +
+           "  tileCache = new Map(); tilesLoading = new Set();\n" +
+           "  scale = 1; offsetX = 0; offsetY = 0; hoveredStation = null; hoveredSegment = null; schematic = null;\n" +
+           "  connectCarts(world);\n" +
+           "  fetchManifest()\n" +
+           "    .then(manifest => loadWorldData(world, manifest))\n" +
            "    .catch(err => {\n" +
            "      console.error('Error loading world data:', err);\n" +
            "      alert('Failed to load map data for ' + world + '. Check console for details.');\n" +
            "    });\n" +
            "}\n" +
            "\n" +
-           "canvas.addEventListener('mousedown', e => { isDragging = true; startX = e.clientX - offsetX; startY = e.clientY - offsetY; });\n" +
-           "canvas.addEventListener('mousemove', e => { if (isDragging) { offsetX = e.clientX - startX; offsetY = e.clientY - startY; drawMap(); } else { checkStationHover(e); } });\n" +
+           "// The manifest is small and always revalidated; data files are immutable once published\n" +
+           "function fetchManifest() {\n" +
+           "  return fetch(basePath + 'manifest.json', {cache: 'no-cache'}).then(res => {\n" +
+           "    if (!res.ok) throw new Error('Failed to load manifest: ' + res.status);\n" +
+           "    return res.json();\n" +
+           "  });\n" +
+           "}\n" +
+           "\n" +
+           "// Full load of a world's current data; the view is kept so a reload doesn't jump\n" +
+           "function loadWorldData(world, manifest) {\n" +
+           "  const file = manifest.files[world + '_data.json'];\n" +
+           "  if (!file) return Promise.reject(new Error('No map data published for ' + world));\n" +
+           "  return fetch(basePath + file)\n" +
+           "    .then(res => {\n" +
+           "      if (!res.ok) throw new Error('Failed to load map data: ' + res.status);\n" +
+           "      return res.json();\n" +
+           "    })\n" +
+           "    .then(data => {\n" +
+           "      if (world !== currentWorld) return;\n" +
+           "      mapData = data;\n" +
+           "      patchLogFile = manifest.files[world + '_patches.json'] || null;\n" +
+           "      hoveredStation = null; hoveredSegment = null;\n" +
+           "      for (const tile of tileCache.values()) tile.heatPaths = null;\n" +
+           "      schematic = null;\n" +
+           "      scheduleDraw();\n" +
+           "      if (schematicToggle.checked) loadSchematic(data);\n" +
+           "    });\n" +
+           "}\n" +
+           "\n" +
+           "function setSchematic(on) {\n" +
+           "  if (on && mapData && !schematic) loadSchematic(mapData);\n" +
+           "  setHovered(null, null);\n" +
+           "  scheduleDraw();\n" +
+           "}\n" +
+           "\n" +
+           "// The diagram is in the map's coordinate space, so the view carries over between modes\n" +
+           "function loadSchematic(data) {\n" +
+           "  const file = data.schematic;\n" +
+           "  if (!file) return;\n" +
+           "  fetch(basePath + file)\n" +
+           "    .then(res => {\n" +
+           "      if (!res.ok) throw new Error('Failed to load schematic: ' + res.status);\n" +
+           "      return res.json();\n" +
+           "    })\n" +
+           "    .then(diagram => {\n" +
+           "      if (mapData !== data || data.schematic !== file) return;\n" +
+           "      for (const line of diagram.lines) {\n" +
+           "        const c = line.c, path = new Path2D();\n" +
+           "        path.moveTo(c[0], c[1]);\n" +
+           "        for (let k = 2; k < c.length; k += 2) path.lineTo(c[k], c[k + 1]);\n" +
+           "        line.path = path;\n" +
+           "      }\n" +
+           "      kdSort(diagram.stations, 0, diagram.stations.length, 0);\n" +
+           "      schematic = diagram;\n" +
+           "      scheduleDraw();\n" +
+           "    })\n" +
+           "    .catch(err => console.error(err));\n" +
+           "}\n" +
+           "\n" +
+           "function showingSchematic() { return schematicToggle.checked && schematic !== null; }\n" +
+           "\n" +
+           "// Station search and drawing work on whichever set is shown\n" +
+           "function currentStations() { return (showingSchematic() ? schematic.stations : mapData.stations) || []; }\n" +
+           "\n" +
+           "// Applies the patches from our version onwards; anything else (a gap, or the\n" +
+           "// server restarted) means a full reload\n" +
+           "function checkForUpdates() {\n" +
+           "  const world = currentWorld, data = mapData;\n" +
+           "  if (!data) return;\n" +
+           "  fetchManifest()\n" +
+           "    .then(manifest => {\n" +
+           "      const file = manifest.files[world + '_patches.json'];\n" +
+           "      if (world !== currentWorld || data !== mapData || !file || file === patchLogFile) return;\n" +
+           "      return fetch(basePath + file)\n" +
+           "        .then(res => {\n" +
+           "          if (!res.ok) throw new Error('Failed to load map patches: ' + res.status);\n" +
+           "          return res.json();\n" +
+           "        })\n" +
+           "        .then(log => {\n" +
+           "          if (world !== currentWorld || data !== mapData) return;\n" +
+           "          if (log.version === data.version) { patchLogFile = file; return; }\n" +
+           "          const start = log.patches.findIndex(p => p.from === data.version);\n" +
+           "          if (start < 0) return loadWorldData(world, manifest);\n" +
+           "          applyPatches(log.patches.slice(start));\n" +
+           "          patchLogFile = file;\n" +
+           "        });\n" +
+           "    })\n" +
+           "    .catch(err => console.error('Error updating world data:', err));\n" +
+           "}\n" +
+           "setInterval(checkForUpdates, UPDATE_INTERVAL_MS);\n" +
+           "\n" +
+           "// Patch format: see WorldData. Lines and heat are replaced by index; stations by position.\n" +
+           "function applyPatches(patches) {\n" +
+           "  const d = mapData;\n" +
+           "  let heatChanged = false, schematicChanged = false;\n" +
+           "  for (const p of patches) {\n" +
+           "    if (p.lines) {\n" +
+           "      d.lines.length = p.lines.length;\n" +
+           "      for (const i in p.lines.set) d.lines[i] = p.lines.set[i];\n" +
+           "    }\n" +
+           "    if (p.tiling) d.tiling = p.tiling;\n" +
+           "    if (p.tiles) {\n" +
+           "      for (const key of p.tiles.remove) delete d.tiles[key];\n" +
+           "      Object.assign(d.tiles, p.tiles.set);\n" +
+           "    }\n" +
+           "    if (p.schematic !== undefined) { d.schematic = p.schematic; schematicChanged = true; }\n" +
+           "    if (p.stations) {\n" +
+           "      const removed = new Set(p.stations.remove.map(s => s.join(',')));\n" +
+           "      const stations = d.stations.filter(s => !removed.has(s.x + ',' + s.y + ',' + s.z)).concat(p.stations.add);\n" +
+           "      kdSort(stations, 0, stations.length, 0);\n" +
+           "      d.stations = stations;\n" +
+           "    }\n" +
+           "    if (p.heat === null) {\n" +
+           "      delete d.heat; d.heatMax = 0; heatChanged = true;\n" +
+           "    } else if (p.heat) {\n" +
+           "      d.heat = d.heat || [];\n" +
+           "      d.heat.length = p.heat.length;\n" +
+           "      for (const i in p.heat.set) d.heat[i] = p.heat.set[i];\n" +
+           "      d.heatMax = p.heatMax; heatChanged = true;\n" +
+           "    }\n" +
+           "    d.version = p.to;\n" +
+           "  }\n" +
+           "  if (heatChanged) for (const tile of tileCache.values()) tile.heatPaths = null;\n" +
+           "  if (schematicChanged) {\n" +
+           "    schematic = null;\n" +
+           "    if (schematicToggle.checked) loadSchematic(d);\n" +
+           "  }\n" +
+           "  hoveredStation = null; hoveredSegment = null;\n" +
+           "  scheduleDraw();\n" +
+           "}\n" +
+           "\n" +
+           "// Same layout MapHitIndex publishes: each range's median (by x, then z) at its midpoint\n" +
+           "function kdSort(stations, lo, hi, depth) {\n" +
+           "  if (hi - lo <= 1) return;\n" +
+           "  const axis = depth % 2 === 0 ? 'x' : 'z';\n" +
+           "  const sorted = stations.slice(lo, hi).sort((a, b) => a[axis] - b[axis]);\n" +
+           "  for (let i = 0; i < sorted.length; i++) stations[lo + i] = sorted[i];\n" +
+           "  const mid = (lo + hi) >> 1;\n" +
+           "  kdSort(stations, lo, mid, depth + 1);\n" +
+           "  kdSort(stations, mid + 1, hi, depth + 1);\n" +
+           "}\n" +
+           "\n" +
+           "canvas.addEventListener('mousedown', e => { isDragging = true; startX = e.clientX - offsetX; startY = e.clientY - offsetY; setHovered(null, null); });\n" +
+           "canvas.addEventListener('mousemove', e => { if (isDragging) { offsetX = e.clientX - startX; offsetY = e.clientY - startY; scheduleDraw(); } else { checkHover(e); } });\n" +
            "canvas.addEventListener('mouseup', () => isDragging = false);\n" +
-           "canvas.addEventListener('mouseleave', () => { isDragging = false; hoveredStation = null; drawMap(); });\n" +
-           "canvas.addEventListener('wheel', e => { e.preventDefault(); const factor = e.deltaY > 0 ? 0.85 : 1.15; scale *= factor; drawMap(); }, {passive: false});\n" +
+           "canvas.addEventListener('mouseleave', () => { isDragging = false; setHovered(null, null); });\n" +
+           "canvas.addEventListener('wheel', e => { e.preventDefault(); const factor = e.deltaY > 0 ? 0.85 : 1.15; scale *= factor; scheduleDraw(); }, {passive: false});\n" +
            "\n" +
            "function worldToCanvas(x, z) { return { x: x * scale + offsetX, y: z * scale + offsetY }; }\n" +
            "\n" +
-           "function checkStationHover(e) {\n" +
-           "  if (!mapData) return;\n" +
-           "  const rect = canvas.getBoundingClientRect();\n" +
-           "  const mouseX = e.clientX - rect.left;\n" +
-           "  const mouseY = e.clientY - rect.top;\n" +
-           "  hoveredStation = null;\n" +
-           "  for (let s of (mapData.stations || [])) {\n" +
-           "    const pos = worldToCanvas(s.x, s.z);\n" +
-           "    const dist = Math.sqrt((mouseX - pos.x) ** 2 + (mouseY - pos.y) ** 2);\n" +
-           "    if (dist < 12) {\n" +
-           "      hoveredStation = s;\n" +
-           "      canvas.style.cursor = 'pointer';\n" +
-           "      drawMap();\n" +
-           "      return;\n" +
+           "function scheduleDraw() { mapDirty = true; overlayDirty = true; requestFrame(); }\n" +
+           "function scheduleOverlay() { overlayDirty = true; requestFrame(); }\n" +
+           "function requestFrame() {\n" +
+           "  if (frameRequested) return;\n" +
+           "  frameRequested = true;\n" +
+           "  requestAnimationFrame(() => {\n" +
+           "    frameRequested = false;\n" +
+           "    if (mapDirty) { mapDirty = false; drawMap(); }\n" +
+           "    if (overlayDirty) { overlayDirty = false; drawOverlay(); }\n" +
+           "  });\n" +
+           "}\n" +
+           "\n" +
+           "// Level whose tiles come out closest to tilePixels on screen at the current scale\n" +
+           "function currentLevel() {\n" +
+           "  const t = mapData.tiling;\n" +
+           "  const z = Math.round(Math.log2(t.size * scale / t.tilePixels));\n" +
+           "  return Math.max(0, Math.min(t.levels - 1, z));\n" +
+           "}\n" +
+           "\n" +
+           "// Published tiles at the current level that overlap the canvas\n" +
+           "function visibleTiles() {\n" +
+           "  const t = mapData.tiling, z = currentLevel(), n = 1 << z, tileSize = t.size / n;\n" +
+           "  const x0 = Math.max(0, Math.floor((-offsetX / scale - t.minX) / tileSize));\n" +
+           "  const x1 = Math.min(n - 1, Math.floor(((canvas.width - offsetX) / scale - t.minX) / tileSize));\n" +
+           "  const y0 = Math.max(0, Math.floor((-offsetY / scale - t.minZ) / tileSize));\n" +
+           "  const y1 = Math.min(n - 1, Math.floor(((canvas.height - offsetY) / scale - t.minZ) / tileSize));\n" +
+           "  const keys = [];\n" +
+           "  for (let tx = x0; tx <= x1; tx++) {\n" +
+           "    for (let ty = y0; ty <= y1; ty++) {\n" +
+           "      const key = z + '/' + tx + '/' + ty;\n" +
+           "      if (mapData.tiles[key]) keys.push(key);\n" +
            "    }\n" +
            "  }\n" +
-           "  canvas.style.cursor = 'move';\n" +
+           "  return keys;\n" +
            "}\n" +
            "\n" +
-           "function drawMap() {\n" +
+           "// Returns a loaded tile, or starts fetching it and returns null\n" +
+           "function getTile(key) {\n" +
+           "  const file = mapData.tiles[key];\n" +
+           "  const tile = tileCache.get(file);\n" +
+           "  if (tile) {\n" +
+           "    tileCache.delete(file);\n" +
+           "    tileCache.set(file, tile);\n" +
+           "    return tile;\n" +
+           "  }\n" +
+           "  if (!tilesLoading.has(file)) {\n" +
+           "    tilesLoading.add(file);\n" +
+           "    const world = currentWorld, loading = tilesLoading;\n" +
+           "    fetch(basePath + file)\n" +
+           "      .then(res => {\n" +
+           "        if (!res.ok) throw new Error('Failed to load tile ' + key + ': ' + res.status);\n" +
+           "        return res.arrayBuffer();\n" +
+           "      })\n" +
+           "      .then(buffer => {\n" +
+           "        if (world !== currentWorld) return;\n" +
+           "        tileCache.set(file, prepareTile(decodeTile(buffer)));\n" +
+           "        while (tileCache.size > MAX_TILES) tileCache.delete(tileCache.keys().next().value);\n" +
+           "        scheduleDraw();\n" +
+           "      })\n" +
+           "      .catch(err => console.error(err))\n" +
+           "      .finally(() => loading.delete(file));\n" +
+           "  }\n" +
+           "  return null;\n" +
+           "}\n" +
+           "\n" +
+           "// Binary tile (see MapTiler): little-endian int32 header, line and part tables,\n" +
+           "// then x,z coordinates and original vertex indices. Parts are views, not copies.\n" +
+           "function decodeTile(buffer) {\n" +
+           "  const ints = new Int32Array(buffer);\n" +
+           "  if (ints[0] !== 0x31544D52 || ints[1] !== 1) throw new Error('Unsupported tile format');\n" +
+           "  const lineCount = ints[5];\n" +
+           "  let p = 6;\n" +
+           "  const lines = [];\n" +
+           "  let partTotal = 0;\n" +
+           "  for (let n = 0; n < lineCount; n++) {\n" +
+           "    lines.push({ l: ints[p], partCount: ints[p + 1], parts: [] });\n" +
+           "    partTotal += ints[p + 1];\n" +
+           "    p += 2;\n" +
+           "  }\n" +
+           "  const sizes = ints.subarray(p, p + partTotal);\n" +
+           "  p += partTotal;\n" +
+           "  let vertexTotal = 0;\n" +
+           "  for (let n = 0; n < sizes.length; n++) vertexTotal += sizes[n];\n" +
+           "  const coords = ints.subarray(p, p + vertexTotal * 2);\n" +
+           "  const indices = ints.subarray(p + vertexTotal * 2, p + vertexTotal * 3);\n" +
+           "  let part = 0, vertex = 0;\n" +
+           "  for (const line of lines) {\n" +
+           "    for (let n = 0; n < line.partCount; n++, part++) {\n" +
+           "      const size = sizes[part];\n" +
+           "      line.parts.push({ c: coords.subarray(vertex * 2, (vertex + size) * 2), i: indices.subarray(vertex, vertex + size) });\n" +
+           "      vertex += size;\n" +
+           "    }\n" +
+           "  }\n" +
+           "  return { lines: lines };\n" +
+           "}\n" +
+           "\n" +
+           "// Builds each line's geometry once, as a Path2D in world coordinates with its bounds\n" +
+           "function prepareTile(tile) {\n" +
+           "  for (const entry of tile.lines) {\n" +
+           "    const path = new Path2D();\n" +
+           "    let minX = Infinity, minZ = Infinity, maxX = -Infinity, maxZ = -Infinity;\n" +
+           "    for (const part of entry.parts) {\n" +
+           "      const c = part.c;\n" +
+           "      path.moveTo(c[0], c[1]);\n" +
+           "      for (let k = 0; k < c.length; k += 2) {\n" +
+           "        if (k > 0) path.lineTo(c[k], c[k + 1]);\n" +
+           "        minX = Math.min(minX, c[k]); maxX = Math.max(maxX, c[k]);\n" +
+           "        minZ = Math.min(minZ, c[k + 1]); maxZ = Math.max(maxZ, c[k + 1]);\n" +
+           "      }\n" +
+           "    }\n" +
+           "    entry.path = path;\n" +
+           "    entry.bounds = { minX: minX, minZ: minZ, maxX: maxX, maxZ: maxZ };\n" +
+           "  }\n" +
+           "  tile.heatPaths = null;\n" +
+           "  return tile;\n" +
+           "}\n" +
+           "\n" +
+           "// Visible world rectangle, padded by a margin given in screen pixels\n" +
+           "function viewBounds(margin) {\n" +
+           "  const m = margin / scale;\n" +
+           "  return {\n" +
+           "    minX: -offsetX / scale - m, minZ: -offsetY / scale - m,\n" +
+           "    maxX: (canvas.width - offsetX) / scale + m, maxZ: (canvas.height - offsetY) / scale + m\n" +
+           "  };\n" +
+           "}\n" +
+           "\n" +
+           "function intersects(b, v) {\n" +
+           "  return b.minX <= v.maxX && b.maxX >= v.minX && b.minZ <= v.maxZ && b.maxZ >= v.minZ;\n" +
+           "}\n" +
+           "\n" +
+           "// Stations are published as an implicit k-d tree: each range's median sits at its\n" +
+           "// midpoint, split on x then z by depth. Searches walk it in place.\n" +
+           "function nearestStation(x, z, radius) {\n" +
+           "  const stations = currentStations();\n" +
+           "  let best = null, bestDist = radius * radius;\n" +
+           "  (function search(lo, hi, depth) {\n" +
+           "    if (lo >= hi) return;\n" +
+           "    const mid = (lo + hi) >> 1, s = stations[mid];\n" +
+           "    const d = (s.x - x) ** 2 + (s.z - z) ** 2;\n" +
+           "    if (d <= bestDist) { best = s; bestDist = d; }\n" +
+           "    const diff = depth % 2 === 0 ? x - s.x : z - s.z;\n" +
+           "    const near = diff < 0 ? [lo, mid] : [mid + 1, hi], far = diff < 0 ? [mid + 1, hi] : [lo, mid];\n" +
+           "    search(near[0], near[1], depth + 1);\n" +
+           "    if (diff * diff <= bestDist) search(far[0], far[1], depth + 1);\n" +
+           "  })(0, stations.length, 0);\n" +
+           "  return best;\n" +
+           "}\n" +
+           "\n" +
+           "// Stations inside a world rectangle, nearer the root of the tree (so more spread out) first\n" +
+           "function stationsIn(view) {\n" +
+           "  const stations = currentStations(), found = [];\n" +
+           "  (function search(lo, hi, depth) {\n" +
+           "    if (lo >= hi) return;\n" +
+           "    const mid = (lo + hi) >> 1, s = stations[mid];\n" +
+           "    if (s.x >= view.minX && s.x <= view.maxX && s.z >= view.minZ && s.z <= view.maxZ) found.push(s);\n" +
+           "    const key = depth % 2 === 0 ? s.x : s.z;\n" +
+           "    const min = depth % 2 === 0 ? view.minX : view.minZ, max = depth % 2 === 0 ? view.maxX : view.maxZ;\n" +
+           "    if (min <= key) search(lo, mid, depth + 1);\n" +
+           "    if (max >= key) search(mid + 1, hi, depth + 1);\n" +
+           "  })(0, stations.length, 0);\n" +
+           "  return found;\n" +
+           "}\n" +
+           "\n" +
+           "// Nearest drawn segment within radius, as {l, c, k} (line, part coordinates, offset of\n" +
+           "// its first point), or null. Searches the tiles already loaded for the view, which are\n" +
+           "// simplified to about a pixel, so hovering never downloads anything.\n" +
+           "function nearestSegment(x, z, radius) {\n" +
+           "  const near = { minX: x - radius, minZ: z - radius, maxX: x + radius, maxZ: z + radius };\n" +
+           "  let best = null, bestDist = radius * radius;\n" +
+           "  for (const key of visibleTiles()) {\n" +
+           "    const tile = tileCache.get(mapData.tiles[key]);\n" +
+           "    if (!tile) continue;\n" +
+           "    for (const entry of tile.lines) {\n" +
+           "      if (!intersects(entry.bounds, near)) continue;\n" +
+           "      for (const part of entry.parts) {\n" +
+           "        const c = part.c;\n" +
+           "        for (let k = 0; k + 3 < c.length; k += 2) {\n" +
+           "          const ax = c[k], az = c[k + 1], dx = c[k + 2] - ax, dz = c[k + 3] - az;\n" +
+           "          const len = dx * dx + dz * dz;\n" +
+           "          const t = len === 0 ? 0 : Math.max(0, Math.min(1, ((x - ax) * dx + (z - az) * dz) / len));\n" +
+           "          const d = (ax + t * dx - x) ** 2 + (az + t * dz - z) ** 2;\n" +
+           "          if (d < bestDist) { best = { l: entry.l, c: c, k: k }; bestDist = d; }\n" +
+           "        }\n" +
+           "      }\n" +
+           "    }\n" +
+           "  }\n" +
+           "  return best;\n" +
+           "}\n" +
+           "\n" +
+           "function checkHover(e) {\n" +
            "  if (!mapData) return;\n" +
+           "  const rect = canvas.getBoundingClientRect();\n" +
+           "  const x = (e.clientX - rect.left - offsetX) / scale;\n" +
+           "  const z = (e.clientY - rect.top - offsetY) / scale;\n" +
+           "  const station = nearestStation(x, z, 12 / scale);\n" +
+           "  setHovered(station, station || showingSchematic() ? null : nearestSegment(x, z, 6 / scale));\n" +
+           "}\n" +
+           "\n" +
+           "// Only the overlay is redrawn when the hovered station or segment changes\n" +
+           "function setHovered(station, segment) {\n" +
+           "  canvas.style.cursor = station || segment ? 'pointer' : 'move';\n" +
+           "  const h = hoveredSegment;\n" +
+           "  if (station === hoveredStation && (segment === h || (segment && h && segment.c === h.c && segment.k === h.k))) return;\n" +
+           "  hoveredStation = station;\n" +
+           "  hoveredSegment = segment;\n" +
+           "  scheduleOverlay();\n" +
+           "}\n" +
+           "\n" +
+           "function drawMap() {\n" +
+           "  ctx.setTransform(1, 0, 0, 1, 0, 0);\n" +
            "  ctx.clearRect(0, 0, canvas.width, canvas.height);\n" +
            "  ctx.fillStyle = '#fff';\n" +
            "  ctx.fillRect(0, 0, canvas.width, canvas.height);\n" +
-           "  drawRailLines();\n" +
+           "  if (!mapData) return;\n" +
+           "  // Geometry is in world coordinates; widths are divided by scale to stay constant on screen\n" +
+           "  if (showingSchematic()) {\n" +
+           "    ctx.setTransform(scale, 0, 0, scale, offsetX, offsetY);\n" +
+           "    drawSchematic();\n" +
+           "  } else {\n" +
+           "    const tiles = [];\n" +
+           "    for (const key of visibleTiles()) {\n" +
+           "      const tile = getTile(key);\n" +
+           "      if (tile) tiles.push(tile);\n" +
+           "    }\n" +
+           "    ctx.setTransform(scale, 0, 0, scale, offsetX, offsetY);\n" +
+           "    drawRailLines(tiles);\n" +
+           "    if (heatToggle.checked) drawHeat(tiles);\n" +
+           "  }\n" +
+           "  ctx.setTransform(1, 0, 0, 1, 0, 0);\n" +
            "  drawStations();\n" +
-           "  if (hoveredStation) drawStationTooltip();\n" +
            "}\n" +
            "\n" +
-           "function drawRailLines() {\n" +
-           "  if (!mapData.railLines) return;\n" +
-           "  for (let line of mapData.railLines) {\n" +
-           "    ctx.strokeStyle = line.color;\n" +
-           "    ctx.lineWidth = 8;\n" +
-           "    ctx.lineCap = 'round';\n" +
-           "    ctx.lineJoin = 'round';\n" +
-           "    if (line.vertices.length < 2) continue;\n" +
-           "    ctx.beginPath();\n" +
-           "    const start = worldToCanvas(line.vertices[0][0], line.vertices[0][2]);\n" +
-           "    ctx.moveTo(start.x, start.y);\n" +
-           "    for (let i = 1; i < line.vertices.length; i++) {\n" +
-           "      const pos = worldToCanvas(line.vertices[i][0], line.vertices[i][2]);\n" +
-           "      ctx.lineTo(pos.x, pos.y);\n" +
+           "function drawRailLines(tiles) {\n" +
+           "  const view = viewBounds(8);\n" +
+           "  ctx.lineWidth = 8 / scale;\n" +
+           "  ctx.lineCap = 'round';\n" +
+           "  ctx.lineJoin = 'round';\n" +
+           "  for (const tile of tiles) {\n" +
+           "    for (const entry of tile.lines) {\n" +
+           "      if (!intersects(entry.bounds, view)) continue;\n" +
+           "      ctx.strokeStyle = mapData.lines[entry.l].color;\n" +
+           "      ctx.stroke(entry.path);\n" +
            "    }\n" +
-           "    ctx.stroke();\n" +
            "  }\n" +
            "}\n" +
            "\n" +
+           "// The diagram has a handful of points per line, so each is drawn whole\n" +
+           "function drawSchematic() {\n" +
+           "  ctx.lineWidth = 8 / scale;\n" +
+           "  ctx.lineCap = 'round';\n" +
+           "  ctx.lineJoin = 'round';\n" +
+           "  for (const line of schematic.lines) {\n" +
+           "    const info = mapData.lines[line.l];\n" +
+           "    if (!info) continue;\n" +
+           "    ctx.strokeStyle = info.color;\n" +
+           "    ctx.stroke(line.path);\n" +
+           "  }\n" +
+           "}\n" +
+           "\n" +
+           "// Heat is per original segment; a simplified segment shows the hottest one it covers.\n" +
+           "// Segments are grouped into a few colour bands so each band is a single path per tile.\n" +
+           "function heatPaths(tile) {\n" +
+           "  if (tile.heatPaths) return tile.heatPaths;\n" +
+           "  const bands = [];\n" +
+           "  for (const entry of tile.lines) {\n" +
+           "    const heat = mapData.heat[entry.l];\n" +
+           "    if (!heat) continue;\n" +
+           "    for (const part of entry.parts) {\n" +
+           "      const c = part.c;\n" +
+           "      for (let k = 0; k + 1 < part.i.length; k++) {\n" +
+           "        let h = 0;\n" +
+           "        for (let s = part.i[k]; s < part.i[k + 1]; s++) h = Math.max(h, heat[s] || 0);\n" +
+           "        if (h <= 0) continue;\n" +
+           "        const band = Math.min(HEAT_BUCKETS - 1, Math.floor(h / mapData.heatMax * HEAT_BUCKETS));\n" +
+           "        const path = bands[band] || (bands[band] = new Path2D());\n" +
+           "        path.moveTo(c[k * 2], c[k * 2 + 1]);\n" +
+           "        path.lineTo(c[k * 2 + 2], c[k * 2 + 3]);\n" +
+           "      }\n" +
+           "    }\n" +
+           "  }\n" +
+           "  tile.heatPaths = bands;\n" +
+           "  return bands;\n" +
+           "}\n" +
+           "\n" +
+           "function drawHeat(tiles) {\n" +
+           "  if (!mapData.heat || !mapData.heatMax) return;\n" +
+           "  ctx.lineWidth = 4 / scale;\n" +
+           "  ctx.lineCap = 'round';\n" +
+           "  for (const tile of tiles) {\n" +
+           "    const bands = heatPaths(tile);\n" +
+           "    for (let b = 0; b < bands.length; b++) {\n" +
+           "      if (!bands[b]) continue;\n" +
+           "      const t = (b + 1) / HEAT_BUCKETS;\n" +
+           "      ctx.strokeStyle = 'rgba(255,' + Math.round(220 * (1 - t)) + ',0,' + (0.35 + 0.65 * t) + ')';\n" +
+           "      ctx.stroke(bands[b]);\n" +
+           "    }\n" +
+           "  }\n" +
+           "}\n" +
+           "\n" +
+           "// All visible stations are filled and outlined as one path, then labelled\n" +
            "function drawStations() {\n" +
-           "  for (let s of (mapData.stations || [])) {\n" +
+           "  const visible = stationsIn(viewBounds(12));\n" +
+           "  ctx.beginPath();\n" +
+           "  for (const s of visible) {\n" +
            "    const pos = worldToCanvas(s.x, s.z);\n" +
-           "    ctx.fillStyle = '#FFD700';\n" +
-           "    ctx.beginPath();\n" +
+           "    ctx.moveTo(pos.x + 10, pos.y);\n" +
            "    ctx.arc(pos.x, pos.y, 10, 0, Math.PI * 2);\n" +
-           "    ctx.fill();\n" +
-           "    ctx.strokeStyle = '#333';\n" +
-           "    ctx.lineWidth = 2;\n" +
-           "    ctx.stroke();\n" +
            "  }\n" +
+           "  ctx.fillStyle = '#FFD700';\n" +
+           "  ctx.fill();\n" +
+           "  ctx.strokeStyle = '#333';\n" +
+           "  ctx.lineWidth = 2;\n" +
+           "  ctx.stroke();\n" +
+           "  drawLabels(visible);\n" +
+           "}\n" +
+           "\n" +
+           "// Greedy placement: each station in turn takes the first spot around its marker that\n" +
+           "// overlaps no marker or earlier label, or goes unlabelled. Boxes are bucketed into a\n" +
+           "// screen-space grid so each test only looks at nearby boxes.\n" +
+           "function drawLabels(visible) {\n" +
+           "  const grid = new Map();\n" +
+           "  const cells = (box, fn) => {\n" +
+           "    for (let cx = Math.floor(box.x0 / LABEL_CELL); cx <= Math.floor(box.x1 / LABEL_CELL); cx++) {\n" +
+           "      for (let cy = Math.floor(box.y0 / LABEL_CELL); cy <= Math.floor(box.y1 / LABEL_CELL); cy++) {\n" +
+           "        if (fn(cx * 65536 + cy) === false) return false;\n" +
+           "      }\n" +
+           "    }\n" +
+           "    return true;\n" +
+           "  };\n" +
+           "  const occupy = box => cells(box, key => { const list = grid.get(key); if (list) list.push(box); else grid.set(key, [box]); });\n" +
+           "  const free = box => cells(box, key => !(grid.get(key) || []).some(o => o.x0 < box.x1 && o.x1 > box.x0 && o.y0 < box.y1 && o.y1 > box.y0));\n" +
+           "\n" +
+           "  const positions = visible.map(s => worldToCanvas(s.x, s.z));\n" +
+           "  for (const pos of positions) occupy({ x0: pos.x - 11, y0: pos.y - 11, x1: pos.x + 11, y1: pos.y + 11 });\n" +
+           "\n" +
+           "  ctx.font = 'bold 12px Arial';\n" +
+           "  ctx.textAlign = 'left';\n" +
+           "  ctx.textBaseline = 'middle';\n" +
+           "  ctx.lineJoin = 'round';\n" +
+           "  ctx.lineWidth = 3;\n" +
+           "  ctx.strokeStyle = '#fff';\n" +
+           "  ctx.fillStyle = '#333';\n" +
+           "  let placed = 0;\n" +
+           "  for (let n = 0; n < visible.length && placed < MAX_LABELS; n++) {\n" +
+           "    const s = visible[n], pos = positions[n];\n" +
+           "    if (!s.name) continue;\n" +
+           "    const w = s.labelWidth || (s.labelWidth = ctx.measureText(s.name).width);\n" +
+           "    // Right, left, above, below\n" +
+           "    const spots = [[pos.x + 14, pos.y - 7], [pos.x - 14 - w, pos.y - 7], [pos.x - w / 2, pos.y - 27], [pos.x - w / 2, pos.y + 13]];\n" +
+           "    for (const [x, y] of spots) {\n" +
+           "      const box = { x0: x, y0: y, x1: x + w, y1: y + 14 };\n" +
+           "      if (!free(box)) continue;\n" +
+           "      occupy(box);\n" +
+           "      ctx.strokeText(s.name, x, y + 7);\n" +
+           "      ctx.fillText(s.name, x, y + 7);\n" +
+           "      placed++;\n" +
+           "      break;\n" +
+           "    }\n" +
+           "  }\n" +
+           "}\n" +
+           "\n" +
+           "// A keyframe replaces every cart; deltas update and remove individual carts\n" +
+           "function connectCarts(world) {\n" +
+           "  if (cartSource) cartSource.close();\n" +
+           "  cartSource = null;\n" +
+           "  carts = new Map();\n" +
+           "  if (!window.EventSource) return;\n" +
+           "  const source = new EventSource(basePath + 'api/carts?world=' + encodeURIComponent(world));\n" +
+           "  source.addEventListener('key', e => { carts = new Map(); applyCarts(JSON.parse(e.data)); });\n" +
+           "  source.addEventListener('delta', e => applyCarts(JSON.parse(e.data)));\n" +
+           "  // Static hosting has no stream; the browser gives up on its own and the map works without carts\n" +
+           "  source.onerror = () => { if (source.readyState === EventSource.CLOSED && cartSource === source) cartSource = null; };\n" +
+           "  cartSource = source;\n" +
+           "}\n" +
+           "\n" +
+           "function applyCarts(frame) {\n" +
+           "  for (const c of frame.carts) carts.set(c[0], { x: c[1] / CART_SCALE, z: c[2] / CART_SCALE, occupied: c[5] === 1 });\n" +
+           "  for (const slot of (frame.gone || [])) carts.delete(slot);\n" +
+           "  scheduleOverlay();\n" +
+           "}\n" +
+           "\n" +
+           "// Carts move constantly, so they live on the overlay with hover rather than on the map\n" +
+           "function drawCarts() {\n" +
+           "  if (carts.size === 0) return;\n" +
+           "  octx.lineWidth = 2;\n" +
+           "  octx.strokeStyle = '#fff';\n" +
+           "  for (const occupied of [false, true]) {\n" +
+           "    octx.beginPath();\n" +
+           "    for (const cart of carts.values()) {\n" +
+           "      if (cart.occupied !== occupied) continue;\n" +
+           "      const pos = worldToCanvas(cart.x, cart.z);\n" +
+           "      if (pos.x < -6 || pos.y < -6 || pos.x > overlay.width + 6 || pos.y > overlay.height + 6) continue;\n" +
+           "      octx.moveTo(pos.x + 5, pos.y);\n" +
+           "      octx.arc(pos.x, pos.y, 5, 0, Math.PI * 2);\n" +
+           "    }\n" +
+           "    octx.fillStyle = occupied ? '#E21836' : '#777';\n" +
+           "    octx.fill();\n" +
+           "    octx.stroke();\n" +
+           "  }\n" +
+           "}\n" +
+           "\n" +
+           "function drawOverlay() {\n" +
+           "  octx.clearRect(0, 0, overlay.width, overlay.height);\n" +
+           "  // Carts are at real positions, which the diagram doesn't show\n" +
+           "  if (!showingSchematic()) drawCarts();\n" +
+           "  if (hoveredStation) drawStationTooltip();\n" +
+           "  else if (hoveredSegment) drawSegmentTooltip();\n" +
            "}\n" +
            "\n" +
            "function drawStationTooltip() {\n" +
            "  const pos = worldToCanvas(hoveredStation.x, hoveredStation.z);\n" +
-           "  ctx.fillStyle = 'rgba(0, 0, 0, 0.8)';\n" +
-           "  ctx.fillRect(pos.x - 60, pos.y - 25, 120, 24);\n" +
-           "  ctx.fillStyle = '#FFD700';\n" +
-           "  ctx.font = 'bold 12px Arial';\n" +
-           "  ctx.textAlign = 'center';\n" +
-           "  ctx.fillText(hoveredStation.name, pos.x, pos.y - 7);\n" +
+           "  octx.strokeStyle = '#E21836';\n" +
+           "  octx.lineWidth = 3;\n" +
+           "  octx.beginPath();\n" +
+           "  octx.arc(pos.x, pos.y, 12, 0, Math.PI * 2);\n" +
+           "  octx.stroke();\n" +
+           "  octx.fillStyle = 'rgba(0, 0, 0, 0.8)';\n" +
+           "  octx.fillRect(pos.x - 60, pos.y - 25, 120, 24);\n" +
+           "  octx.fillStyle = '#FFD700';\n" +
+           "  octx.font = 'bold 12px Arial';\n" +
+           "  octx.textAlign = 'center';\n" +
+           "  octx.fillText(hoveredStation.name, pos.x, pos.y - 7);\n" +
+           "}\n" +
+           "\n" +
+           "function drawSegmentTooltip() {\n" +
+           "  const c = hoveredSegment.c, k = hoveredSegment.k;\n" +
+           "  const line = mapData.lines[hoveredSegment.l];\n" +
+           "  const a = worldToCanvas(c[k], c[k + 1]), b = worldToCanvas(c[k + 2], c[k + 3]);\n" +
+           "  octx.strokeStyle = 'rgba(0, 0, 0, 0.5)';\n" +
+           "  octx.lineWidth = 12;\n" +
+           "  octx.lineCap = 'round';\n" +
+           "  octx.beginPath();\n" +
+           "  octx.moveTo(a.x, a.y);\n" +
+           "  octx.lineTo(b.x, b.y);\n" +
+           "  octx.stroke();\n" +
+           "  const x = (a.x + b.x) / 2, y = (a.y + b.y) / 2;\n" +
+           "  octx.fillStyle = 'rgba(0, 0, 0, 0.8)';\n" +
+           "  octx.fillRect(x - 60, y - 30, 120, 24);\n" +
+           "  octx.fillStyle = line.color;\n" +
+           "  octx.font = 'bold 12px Arial';\n" +
+           "  octx.textAlign = 'center';\n" +
+           "  octx.fillText('Network ' + line.networkId, x, y - 12);\n" +
            "}\n" +
            "</script>\n" +
            "</body>\n</html>";
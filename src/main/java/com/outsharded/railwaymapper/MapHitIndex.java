@@ -0,0 +1,41 @@
+package com.outsharded.railwaymapper;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Station order the map page uses for hit-testing, so hovering stays cheap
+ * however many stations a world has.
+ *
+ * Stations are exported as an implicit k-d tree: the station list is
+ * reordered so each range's median (split on x, then z, alternating with
+ * depth) sits at its midpoint. The page searches it in place without
+ * building anything.
+ *
+ * Lines need no index of their own: the page hit-tests the tiles it has
+ * already loaded for the view (see {@link MapTiler}), so hovering never
+ * downloads geometry for the rest of the world.
+ */
+public class MapHitIndex {
+
+    /**
+     * Returns the stations in implicit k-d tree order
+     */
+    public static List<RailwayDatabase.Station> kdOrder(List<RailwayDatabase.Station> stations) {
+        RailwayDatabase.Station[] ordered = stations.toArray(new RailwayDatabase.Station[0]);
+        kdSort(ordered, 0, ordered.length, 0);
+        return Arrays.asList(ordered);
+    }
+
+    private static void kdSort(RailwayDatabase.Station[] stations, int from, int to, int depth) {
+        if (to - from <= 1) return;
+        Comparator<RailwayDatabase.Station> axis = depth % 2 == 0
+            ? Comparator.comparingInt(s -> s.x)
+            : Comparator.comparingInt(s -> s.z);
+        Arrays.sort(stations, from, to, axis);
+        int mid = (from + to) >>> 1;
+        kdSort(stations, from, mid, depth + 1);
+        kdSort(stations, mid + 1, to, depth + 1);
+    }
+}
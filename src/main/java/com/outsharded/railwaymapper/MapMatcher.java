@@ -0,0 +1,122 @@
+package com.outsharded.railwaymapper;
+
+import java.util.*;
+
+/**
+ * Snaps minecart positions onto the rail graph as (line, offset) pairs,
+ * using each world's index from {@link RailIndexCache}. Each position
+ * goes to the nearest segment in range, except that a cart stays on its
+ * previous line while that line is within a small margin of the nearest
+ * one, so it doesn't flicker between lines where they meet or run side by
+ * side.
+ */
+public class MapMatcher {
+
+    private final RailIndexCache indexes;
+    private final double maxDistanceSquared;
+    private final double maxDistance;
+    private final double hysteresis;
+
+    private final Map<UUID, PreviousMatch> previous = new HashMap<>();
+
+    public MapMatcher(RailwayMapperPlugin plugin, RailIndexCache indexes) {
+        this.indexes = indexes;
+        this.maxDistance = plugin.getConfig().getDouble("tracking.match-distance", 2.0);
+        this.maxDistanceSquared = maxDistance * maxDistance;
+        this.hysteresis = Math.max(0.0, plugin.getConfig().getDouble("tracking.match-hysteresis", 0.25));
+    }
+
+    /**
+     * Matches a cart position onto the rail graph. Main thread only.
+     * Returns false (and leaves {@code out} unmatched) if the cart isn't on
+     * a known line or the world's index isn't built yet.
+     */
+    public boolean match(UUID cartId, String worldName, double x, double y, double z, Match out) {
+        out.lineId = -1;
+        out.offset = 0;
+        out.index = null;
+        out.segment = -1;
+        out.enteredSegment = false;
+
+        RailSpatialIndex index = indexes.getIndex(worldName);
+        if (index == null) {
+            return false;
+        }
+
+        // Vertices are block corners; carts ride at block centres
+        double bx = x - 0.5;
+        double bz = z - 0.5;
+
+        int seg = index.nearestSegment(bx, y, bz, maxDistance);
+        if (seg < 0) {
+            previous.remove(cartId);
+            return false;
+        }
+        PreviousMatch prev = previous.get(cartId);
+        if (prev != null && prev.index == index && !index.sameLine(prev.segment, seg)) {
+            int kept = bestNeighbour(index, prev.segment, bx, y, bz);
+            if (kept >= 0 && Math.sqrt(index.distanceSquared(kept, bx, y, bz))
+                    <= Math.sqrt(index.distanceSquared(seg, bx, y, bz)) + hysteresis) {
+                seg = kept;
+            }
+        }
+
+        if (prev == null) {
+            prev = new PreviousMatch();
+            previous.put(cartId, prev);
+        }
+        out.enteredSegment = prev.index != index || prev.segment != seg;
+        prev.index = index;
+        prev.segment = seg;
+
+        out.index = index;
+        out.segment = seg;
+        out.lineId = index.lineIdOf(seg);
+        out.offset = index.offsetAlongLine(seg, bx, y, bz);
+        return true;
+    }
+
+    // Closest of the previous segment and its neighbours on its line, if any is in range
+    private int bestNeighbour(RailSpatialIndex index, int seg, double x, double y, double z) {
+        int best = -1;
+        double bestDist = maxDistanceSquared;
+        for (int candidate = seg - 1; candidate <= seg + 1; candidate++) {
+            if (!index.sameLine(seg, candidate)) continue;
+            double d = index.distanceSquared(candidate, x, y, z);
+            if (d <= bestDist) {
+                bestDist = d;
+                best = candidate;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Forgets a cart's previous match (called when it despawns)
+     */
+    public void forget(UUID cartId) {
+        previous.remove(cartId);
+    }
+
+    public void clear() {
+        previous.clear();
+    }
+
+    /**
+     * Result holder for {@link #match}, reused by the caller between carts
+     */
+    public static class Match {
+        public int lineId = -1;
+        public double offset;
+        /** Index and segment the cart was matched to (null / -1 if unmatched) */
+        public RailSpatialIndex index;
+        public int segment = -1;
+        /** Whether this is a different segment from the cart's previous match */
+        public boolean enteredSegment;
+    }
+
+    private static class PreviousMatch {
+        RailSpatialIndex index;
+        int segment;
+    }
+}
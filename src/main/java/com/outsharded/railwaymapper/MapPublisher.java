@@ -0,0 +1,487 @@
+package com.outsharded.railwaymapper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Publishes map files into the web directory so browsers never see a
+ * half-written file.
+ * Every write goes to a temp file that is then atomically renamed over the
+ * target, and is skipped when the content hash is unchanged. Data files
+ * are published under content-hashed names (e.g. {@code world_data.1a2b….json})
+ * that never change once written, so clients can cache them forever; the
+ * small {@code manifest.json} maps each logical name to its current version
+ * and is the only data file clients need to revalidate.
+ * The previous few versions of each file are kept so a client that read an
+ * older manifest can still finish loading.
+ * Content is streamed, never held in memory whole: a first pass only hashes
+ * it, and only when that hash is new is it generated again to be written
+ * and gzipped (to a {@code .gz} sibling for static serving).
+ *
+ * A publisher can also retain every current file in memory, with its gzip
+ * and ETag, for {@link MapWebServer} to serve. Without a directory it does
+ * only that and touches no files.
+ */
+public class MapPublisher {
+
+    public static final String MANIFEST = "manifest.json";
+
+    private static final Pattern VERSIONED = Pattern.compile(".+\\.[0-9a-f]{16}(\\.[^.]+)?(\\.gz)?");
+    private static final Pattern MANIFEST_ENTRY =
+        Pattern.compile("\"((?:[^\"\\\\]|\\\\.)*)\"\\s*:\\s*\"((?:[^\"\\\\]|\\\\.)*)\"");
+
+    private final RailwayMapperPlugin plugin;
+    private final File directory;
+    private final boolean retain;
+    private final int keepVersions;
+
+    // Logical name -> published file names, newest first; guarded by this
+    private final Map<String, Deque<String>> versions = new TreeMap<>();
+    // Same, for files referenced from other published files; guarded by this
+    private final Map<String, Deque<String>> unlistedVersions = new HashMap<>();
+    // Fixed-name file -> hash of its current content; guarded by this
+    private final Map<String, String> fixedHashes = new HashMap<>();
+    // File name -> retained copy; read without locking by the web server
+    private final Map<String, Resource> resources = new ConcurrentHashMap<>();
+
+    /**
+     * @param directory where files are written, or null to keep them in memory only
+     * @param retain    whether to keep every current file in memory as well
+     */
+    public MapPublisher(RailwayMapperPlugin plugin, File directory, boolean retain) {
+        this.plugin = plugin;
+        this.directory = directory;
+        this.retain = retain || directory == null;
+        this.keepVersions = Math.max(1, plugin.getConfig().getInt("map.keep-versions", 2));
+        if (directory != null) {
+            recover();
+        }
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * A published file held in memory, ready to send
+     */
+    public static class Resource {
+        public final byte[] content;
+        public final byte[] gzipped;
+        public final String etag;
+        // Versioned names never change content, so may be cached indefinitely
+        public final boolean immutable;
+
+        Resource(byte[] content, byte[] gzipped, String hash, boolean immutable) {
+            this.content = content;
+            this.gzipped = gzipped;
+            this.etag = "\"" + hash.substring(0, 16) + "\"";
+            this.immutable = immutable;
+        }
+    }
+
+    /**
+     * The retained copy of a published file, or null
+     */
+    public Resource getResource(String fileName) {
+        return resources.get(fileName);
+    }
+
+    /**
+     * Streams a document to a channel
+     */
+    public interface Content {
+        void writeTo(WritableByteChannel out) throws IOException;
+    }
+
+    /**
+     * Publishes a file under its own name (for entry points such as the HTML
+     * page). Returns whether anything was written.
+     */
+    public synchronized boolean publishFixed(String name, Content content) throws IOException {
+        if (digest(content).equals(fixedHashes.get(name)) && isCurrent(name)) {
+            return false;
+        }
+        Streamed streamed = stream(content, name);
+        install(streamed, name, false);
+        fixedHashes.put(name, streamed.hash);
+        return true;
+    }
+
+    public boolean publishFixed(String name, byte[] content) throws IOException {
+        return publishFixed(name, out -> writeFully(out, content));
+    }
+
+    /**
+     * Publishes a new version of a data file and points the manifest at it.
+     * Returns the versioned file name (unchanged if the content is the same).
+     */
+    public String publishVersioned(String logicalName, Content content) throws IOException {
+        return publish(logicalName, content, true);
+    }
+
+    /**
+     * Publishes a new version of a file that's referenced from another
+     * published file (e.g. a map tile listed in its world's data) rather
+     * than from the manifest. Returns the versioned file name.
+     */
+    public String publishUnlisted(String logicalName, Content content) throws IOException {
+        return publish(logicalName, content, false);
+    }
+
+    private synchronized String publish(String logicalName, Content content, boolean listed) throws IOException {
+        String safe = safeName(logicalName);
+        String fileName = versionedName(safe, digest(content).substring(0, 16));
+
+        Map<String, Deque<String>> histories = listed ? versions : unlistedVersions;
+        Deque<String> history = histories.computeIfAbsent(logicalName, k -> new ArrayDeque<>());
+        if (isCurrent(fileName)) {
+            // Same content as a version already published
+            if (fileName.equals(history.peekFirst())) {
+                return fileName;
+            }
+        } else {
+            Streamed streamed = stream(content, safe);
+            fileName = versionedName(safe, streamed.hash.substring(0, 16));
+            install(streamed, safe, fileName, true);
+        }
+        history.remove(fileName);
+        history.addFirst(fileName);
+        if (listed) {
+            writeManifest();
+        }
+
+        // Drop versions no reader of the last few manifests can still want
+        while (history.size() > keepVersions) {
+            String old = history.removeLast();
+            resources.remove(old);
+            if (directory != null) {
+                Files.deleteIfExists(new File(directory, old).toPath());
+                Files.deleteIfExists(new File(directory, old + ".gz").toPath());
+            }
+        }
+        return fileName;
+    }
+
+    private void writeManifest() throws IOException {
+        publishFixed(MANIFEST, out -> {
+            try (JsonStreamWriter json = new JsonStreamWriter(out)) {
+                json.beginObject();
+                json.name("version").value(System.currentTimeMillis());
+                json.name("files").beginObject();
+                for (Map.Entry<String, Deque<String>> entry : versions.entrySet()) {
+                    String current = entry.getValue().peekFirst();
+                    if (current != null) {
+                        json.name(entry.getKey()).value(current);
+                    }
+                }
+                json.endObject();
+                json.endObject();
+            }
+        });
+    }
+
+    // Picks up the manifest from a previous run and removes versions that neither
+    // it nor the files it lists (e.g. a world's tile index) still reference
+    private void recover() {
+        File manifest = new File(directory, MANIFEST);
+        Set<String> referenced = new HashSet<>();
+        if (manifest.exists()) {
+            try {
+                String json = Files.readString(manifest.toPath());
+                int filesAt = json.indexOf("\"files\"");
+                Matcher m = MANIFEST_ENTRY.matcher(filesAt < 0 ? "" : json.substring(filesAt + 7));
+                while (m.find()) {
+                    String fileName = unescape(m.group(2));
+                    File file = new File(directory, fileName);
+                    if (file.exists()) {
+                        versions.computeIfAbsent(unescape(m.group(1)), k -> new ArrayDeque<>()).add(fileName);
+                        referenced.add(fileName);
+                        collectReferences(file, referenced);
+                    }
+                }
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.WARNING, "Failed to read map manifest", e);
+            }
+        }
+
+        File[] files = directory.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            String name = file.getName();
+            String plain = name.endsWith(".gz") ? name.substring(0, name.length() - 3) : name;
+            if ((VERSIONED.matcher(name).matches() && !referenced.contains(plain)) || name.endsWith(".tmp")) {
+                if (!file.delete()) {
+                    plugin.getLogger().fine("Could not remove stale map file " + name);
+                }
+            }
+        }
+    }
+
+    private void collectReferences(File listed, Set<String> referenced) {
+        if (!listed.getName().endsWith(".json")) {
+            return;
+        }
+        try {
+            Matcher m = MANIFEST_ENTRY.matcher(Files.readString(listed.toPath()));
+            while (m.find()) {
+                String value = unescape(m.group(2));
+                if (VERSIONED.matcher(value).matches() && new File(directory, value).exists()) {
+                    referenced.add(value);
+                }
+            }
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.WARNING, "Failed to read published map file " + listed.getName(), e);
+        }
+    }
+
+    /**
+     * SHA-256 of streamed content, plus the content and its gzip if retained
+     */
+    private static class Streamed {
+        final String hash;
+        final byte[] content;
+        final byte[] gzipped;
+
+        Streamed(String hash, byte[] content, byte[] gzipped) {
+            this.hash = hash;
+            this.content = content;
+            this.gzipped = gzipped;
+        }
+    }
+
+    // Writes content to "<tempName>.tmp" and its gzip to "<tempName>.gz.tmp", and/or into memory
+    private Streamed stream(Content content, String tempName) throws IOException {
+        MessageDigest digest = sha256();
+        ByteArrayOutputStream memory = retain ? new ByteArrayOutputStream() : null;
+        ByteArrayOutputStream memoryGz = retain ? new ByteArrayOutputStream() : null;
+        File temp = directory == null ? null : new File(directory, tempName + ".tmp");
+        File tempGz = directory == null ? null : new File(directory, tempName + ".gz.tmp");
+        try (PublishingChannel out = new PublishingChannel(temp, tempGz, memory, memoryGz, digest)) {
+            content.writeTo(out);
+        } catch (IOException | RuntimeException e) {
+            discard(tempName);
+            throw e;
+        }
+        return new Streamed(HexFormat.of().formatHex(digest.digest()),
+                            retain ? memory.toByteArray() : null,
+                            retain ? memoryGz.toByteArray() : null);
+    }
+
+    // Hashes content without writing it anywhere
+    private static String digest(Content content) throws IOException {
+        MessageDigest digest = sha256();
+        try (DigestChannel out = new DigestChannel(digest)) {
+            content.writeTo(out);
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private boolean exists(String fileName) {
+        return directory == null ? resources.containsKey(fileName) : new File(directory, fileName).exists();
+    }
+
+    // Published, and retained too if this publisher retains files
+    private boolean isCurrent(String fileName) {
+        return exists(fileName) && (!retain || resources.containsKey(fileName));
+    }
+
+    private void install(Streamed streamed, String name, boolean immutable) throws IOException {
+        install(streamed, name, name, immutable);
+    }
+
+    // The .gz goes first so the plain file never appears without it
+    private void install(Streamed streamed, String tempName, String fileName, boolean immutable) throws IOException {
+        if (directory != null) {
+            Files.move(new File(directory, tempName + ".gz.tmp").toPath(), new File(directory, fileName + ".gz").toPath(),
+                       StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.move(new File(directory, tempName + ".tmp").toPath(), new File(directory, fileName).toPath(),
+                       StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        retain(streamed, fileName, immutable);
+    }
+
+    private void retain(Streamed streamed, String fileName, boolean immutable) {
+        if (retain) {
+            resources.put(fileName, new Resource(streamed.content, streamed.gzipped, streamed.hash, immutable));
+        }
+    }
+
+    private void discard(String tempName) throws IOException {
+        if (directory != null) {
+            Files.deleteIfExists(new File(directory, tempName + ".tmp").toPath());
+            Files.deleteIfExists(new File(directory, tempName + ".gz.tmp").toPath());
+        }
+    }
+
+    private static void writeFully(WritableByteChannel out, byte[] content) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(content);
+        while (buffer.hasRemaining()) out.write(buffer);
+    }
+
+    private static String safeName(String logicalName) {
+        return logicalName.replaceAll("[^A-Za-z0-9_.-]", "_");
+    }
+
+    // "world_data.json" -> "world_data.<hash>.json"
+    private static String versionedName(String safe, String hash) {
+        int dot = safe.lastIndexOf('.');
+        return dot <= 0
+            ? safe + "." + hash
+            : safe.substring(0, dot) + "." + hash + safe.substring(dot);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private static String unescape(String s) {
+        return s.replace("\\\"", "\"").replace("\\\\", "\\");
+    }
+
+    /**
+     * Feeds everything written into a digest and discards it
+     */
+    private static class DigestChannel implements WritableByteChannel {
+        private final MessageDigest digest;
+        private boolean open = true;
+
+        DigestChannel(MessageDigest digest) {
+            this.digest = digest;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            digest.update(src);
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
+
+    /**
+     * Tees everything written into the file and/or memory, a gzip of it, and the digest.
+     * File and memory targets are each optional.
+     */
+    private static class PublishingChannel implements WritableByteChannel {
+        private final FileChannel file;
+        private final FileChannel gzFile;
+        private final OutputStream memory;
+        private final GZIPOutputStream gzip;
+        private final MessageDigest digest;
+        private final byte[] scratch = new byte[8192];
+        private boolean open = true;
+
+        PublishingChannel(File temp, File tempGz, OutputStream memory, OutputStream memoryGz,
+                          MessageDigest digest) throws IOException {
+            this.digest = digest;
+            this.memory = memory;
+            if (temp == null) {
+                this.file = null;
+                this.gzFile = null;
+                this.gzip = new GZIPOutputStream(memoryGz, 8192);
+                return;
+            }
+            this.file = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            try {
+                this.gzFile = FileChannel.open(tempGz.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                OutputStream gzOut = Channels.newOutputStream(gzFile);
+                this.gzip = new GZIPOutputStream(memoryGz == null ? gzOut : tee(gzOut, memoryGz), 8192);
+            } catch (IOException e) {
+                file.close();
+                throw e;
+            }
+        }
+
+        private static OutputStream tee(OutputStream a, OutputStream b) {
+            return new OutputStream() {
+                @Override
+                public void write(int value) throws IOException {
+                    a.write(value);
+                    b.write(value);
+                }
+
+                @Override
+                public void write(byte[] bytes, int off, int len) throws IOException {
+                    a.write(bytes, off, len);
+                    b.write(bytes, off, len);
+                }
+            };
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int n = src.remaining();
+            digest.update(src.duplicate());
+            ByteBuffer copy = src.duplicate();
+            while (copy.hasRemaining()) {
+                int chunk = Math.min(scratch.length, copy.remaining());
+                copy.get(scratch, 0, chunk);
+                gzip.write(scratch, 0, chunk);
+                if (memory != null) {
+                    memory.write(scratch, 0, chunk);
+                }
+            }
+            if (file == null) {
+                src.position(src.limit());
+            }
+            while (src.hasRemaining()) {
+                file.write(src);
+            }
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!open) return;
+            open = false;
+            if (file == null) {
+                gzip.finish();
+                return;
+            }
+            try (FileChannel f = file; FileChannel g = gzFile) {
+                gzip.finish();
+                gzip.flush();
+                g.force(false);
+                f.force(false);
+            }
+        }
+    }
+}
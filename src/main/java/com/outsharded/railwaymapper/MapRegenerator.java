@@ -0,0 +1,116 @@
+package com.outsharded.railwaymapper;
+
+import org.bukkit.scheduler.BukkitRunnable;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+
+/**
+ * Regenerates map files only for worlds whose data changed.
+ * Rescans, station edits and new cart traffic mark a world dirty; a
+ * background worker regenerates it once no further change has arrived for
+ * the debounce period (or once it has been dirty for the maximum delay, so
+ * a constantly busy world still updates).
+ * Register with {@link RailwayCache#addChangeListener} to pick up rescans
+ * and station edits.
+ */
+public class MapRegenerator implements RailwayCache.ChangeListener {
+
+    private final RailwayMapperPlugin plugin;
+    private final MapGenerator generator;
+    private final long debounceMs;
+    private final long maxDelayMs;
+
+    // World -> time it was first / last marked dirty since its last regeneration
+    private final Map<String, Long> firstDirty = new ConcurrentHashMap<>();
+    private final Map<String, Long> lastDirty = new ConcurrentHashMap<>();
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private BukkitTask task;
+
+    public MapRegenerator(RailwayMapperPlugin plugin, MapGenerator generator) {
+        this.plugin = plugin;
+        this.generator = generator;
+        this.debounceMs = Math.max(0L, plugin.getConfig().getLong("map.debounce-ms", 2000L));
+        this.maxDelayMs = Math.max(debounceMs, plugin.getConfig().getLong("map.max-delay-ms", 30000L));
+    }
+
+    public void start() {
+        long checkInterval = Math.max(1L, plugin.getConfig().getLong("map.check-interval", 20L)); // ticks
+        task = new BukkitRunnable() {
+            @Override
+            public void run() {
+                regenerateDue();
+            }
+        }.runTaskTimerAsynchronously(plugin, checkInterval, checkInterval);
+    }
+
+    /**
+     * Schedules a world for regeneration. Safe from any thread.
+     */
+    public void markDirty(String worldName) {
+        long now = System.currentTimeMillis();
+        firstDirty.putIfAbsent(worldName, now);
+        lastDirty.put(worldName, now);
+    }
+
+    /**
+     * Regenerates every dirty world whose debounce period has passed
+     */
+    public void regenerateDue() {
+        if (!running.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            long now = System.currentTimeMillis();
+            for (Map.Entry<String, Long> entry : lastDirty.entrySet()) {
+                String worldName = entry.getKey();
+                long last = entry.getValue();
+                long first = firstDirty.getOrDefault(worldName, last);
+                if (now - last < debounceMs && now - first < maxDelayMs) {
+                    continue;
+                }
+                // Only claim it if it wasn't marked again meanwhile
+                if (lastDirty.remove(worldName, last)) {
+                    firstDirty.remove(worldName);
+                    try {
+                        regenerate(worldName);
+                    } catch (Exception e) {
+                        plugin.getLogger().log(Level.SEVERE, "Error regenerating map for " + worldName, e);
+                    }
+                }
+            }
+        } finally {
+            running.set(false);
+        }
+    }
+
+    /**
+     * Regenerates a world immediately on the calling thread (for commands)
+     */
+    public synchronized void regenerate(String worldName) throws IOException {
+        generator.generateMap(worldName);
+    }
+
+    @Override
+    public void onRailLinesChanged(String worldName) {
+        markDirty(worldName);
+    }
+
+    @Override
+    public void onStationsChanged(String worldName) {
+        markDirty(worldName);
+    }
+
+    public void shutdown() {
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+        firstDirty.clear();
+        lastDirty.clear();
+    }
+}
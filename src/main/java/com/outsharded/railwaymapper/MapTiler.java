@@ -0,0 +1,263 @@
+package com.outsharded.railwaymapper;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.util.*;
+
+/**
+ * Cuts a world's rail lines into quadtree tiles for the map page.
+ * The root tile is a power-of-two square covering every line and station;
+ * each level halves the tile size. Lines are simplified per level
+ * (Douglas-Peucker, to roughly one screen pixel at that level's intended
+ * scale) before being split into tiles, so a tile holds about the same
+ * amount of geometry whatever the zoom. Tiles are published one at a time
+ * and only non-empty tiles are written.
+ *
+ * Each tile part keeps the original vertex index of every point it
+ * contains, so per-segment data such as traffic heat still lines up.
+ *
+ * Tiles are binary so the page can view them as {@code Int32Array}s without
+ * parsing. Every field is a little-endian int32:
+ * <pre>
+ *   magic "RMT1", version, z, x, y, lineCount
+ *   lineCount x (lineIndex, partCount)       line table, in order
+ *   total parts x vertexCount                 part table, in line order
+ *   total vertices x (x, z)                   coordinates
+ *   total vertices x originalVertexIndex      indices into the source line
+ * </pre>
+ */
+public class MapTiler {
+
+    private static final int MAGIC = 0x31544D52; // "RMT1" read little-endian
+    private static final int FORMAT_VERSION = 1;
+
+    private final int levels;
+    private final int tilePixels;
+
+    public MapTiler(RailwayMapperPlugin plugin) {
+        this.levels = Math.max(1, Math.min(12, plugin.getConfig().getInt("map.tile-levels", 6)));
+        this.tilePixels = Math.max(64, plugin.getConfig().getInt("map.tile-pixels", 256));
+    }
+
+    /**
+     * Bounds of the root tile plus the published file for every non-empty tile ("z/x/y")
+     */
+    public static class Tiling {
+        public final int minX;
+        public final int minZ;
+        public final int size;
+        public final int levels;
+        public final int tilePixels;
+        public final Map<String, String> tiles = new TreeMap<>();
+
+        Tiling(int minX, int minZ, int size, int levels, int tilePixels) {
+            this.minX = minX;
+            this.minZ = minZ;
+            this.size = size;
+            this.levels = levels;
+            this.tilePixels = tilePixels;
+        }
+    }
+
+    public Tiling publishTiles(MapPublisher publisher, String worldName, List<RailLine> lines,
+                               List<RailwayDatabase.Station> stations) throws IOException {
+        int minX = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE, maxZ = Integer.MIN_VALUE;
+        for (RailLine line : lines) {
+            for (int[] v : line.vertices) {
+                minX = Math.min(minX, v[0]); maxX = Math.max(maxX, v[0]);
+                minZ = Math.min(minZ, v[2]); maxZ = Math.max(maxZ, v[2]);
+            }
+        }
+        for (RailwayDatabase.Station s : stations) {
+            minX = Math.min(minX, s.x); maxX = Math.max(maxX, s.x);
+            minZ = Math.min(minZ, s.z); maxZ = Math.max(maxZ, s.z);
+        }
+        if (minX > maxX) {
+            minX = minZ = maxX = maxZ = 0;
+        }
+
+        long extent = Math.max((long) maxX - minX, (long) maxZ - minZ) + 1;
+        int size = tilePixels;
+        while (size < extent && size < (1 << 30)) {
+            size <<= 1;
+        }
+        Tiling tiling = new Tiling(minX, minZ, size, levels, tilePixels);
+
+        // One level at a time so only that level's tiles are held in memory
+        for (int z = 0; z < levels; z++) {
+            int n = 1 << z;
+            double tileSize = (double) size / n;
+            double tolerance = tileSize / tilePixels;
+            Map<Long, TileBuilder> tiles = new HashMap<>();
+
+            for (int l = 0; l < lines.size(); l++) {
+                List<int[]> vertices = lines.get(l).vertices;
+                int[] kept = simplify(vertices, tolerance);
+                for (int k = 1; k < kept.length; k++) {
+                    int[] a = vertices.get(kept[k - 1]);
+                    int[] b = vertices.get(kept[k]);
+                    int tx0 = tileOf(Math.min(a[0], b[0]) - minX, tileSize, n);
+                    int tx1 = tileOf(Math.max(a[0], b[0]) - minX, tileSize, n);
+                    int ty0 = tileOf(Math.min(a[2], b[2]) - minZ, tileSize, n);
+                    int ty1 = tileOf(Math.max(a[2], b[2]) - minZ, tileSize, n);
+                    for (int tx = tx0; tx <= tx1; tx++) {
+                        for (int ty = ty0; ty <= ty1; ty++) {
+                            long key = ((long) tx << 32) | ty;
+                            tiles.computeIfAbsent(key, key2 -> new TileBuilder())
+                                 .add(l, kept[k - 1], a, kept[k], b);
+                        }
+                    }
+                }
+            }
+
+            for (Map.Entry<Long, TileBuilder> entry : tiles.entrySet()) {
+                int tx = (int) (entry.getKey() >> 32);
+                int ty = (int) (long) entry.getKey();
+                TileBuilder tile = entry.getValue();
+                String key = z + "/" + tx + "/" + ty;
+                int level = z;
+                String file = publisher.publishUnlisted(worldName + "_tile_" + z + "_" + tx + "_" + ty + ".bin",
+                                                        out -> tile.write(out, level, tx, ty));
+                tiling.tiles.put(key, file);
+            }
+        }
+        return tiling;
+    }
+
+    private static int tileOf(long offset, double tileSize, int n) {
+        return (int) Math.max(0, Math.min(n - 1, Math.floor(offset / tileSize)));
+    }
+
+    /**
+     * Douglas-Peucker on the x/z plane; returns the indices of the vertices to keep
+     */
+    static int[] simplify(List<int[]> vertices, double tolerance) {
+        int n = vertices.size();
+        if (n <= 2) {
+            int[] all = new int[n];
+            for (int i = 0; i < n; i++) all[i] = i;
+            return all;
+        }
+
+        boolean[] keep = new boolean[n];
+        keep[0] = keep[n - 1] = true;
+        double toleranceSq = tolerance * tolerance;
+        Deque<int[]> stack = new ArrayDeque<>();
+        stack.push(new int[]{0, n - 1});
+        int count = 2;
+        while (!stack.isEmpty()) {
+            int[] range = stack.pop();
+            int start = range[0], end = range[1];
+            int[] a = vertices.get(start);
+            int[] b = vertices.get(end);
+            double dx = b[0] - a[0], dz = b[2] - a[2];
+            double lenSq = dx * dx + dz * dz;
+
+            int farthest = -1;
+            double farthestSq = toleranceSq;
+            for (int i = start + 1; i < end; i++) {
+                int[] p = vertices.get(i);
+                double px = p[0] - a[0], pz = p[2] - a[2];
+                double d;
+                if (lenSq == 0) {
+                    d = px * px + pz * pz;
+                } else {
+                    double cross = px * dz - pz * dx;
+                    d = cross * cross / lenSq;
+                }
+                if (d > farthestSq) {
+                    farthestSq = d;
+                    farthest = i;
+                }
+            }
+            if (farthest >= 0) {
+                keep[farthest] = true;
+                count++;
+                stack.push(new int[]{start, farthest});
+                stack.push(new int[]{farthest, end});
+            }
+        }
+
+        int[] kept = new int[count];
+        for (int i = 0, k = 0; i < n; i++) {
+            if (keep[i]) kept[k++] = i;
+        }
+        return kept;
+    }
+
+    /**
+     * Geometry of one tile: per line, runs of consecutive kept vertices
+     */
+    private static class TileBuilder {
+        private final Map<Integer, List<Part>> lines = new LinkedHashMap<>();
+
+        void add(int line, int fromIndex, int[] from, int toIndex, int[] to) {
+            List<Part> parts = lines.computeIfAbsent(line, l -> new ArrayList<>());
+            Part part = parts.isEmpty() ? null : parts.get(parts.size() - 1);
+            if (part == null || part.lastIndex() != fromIndex) {
+                part = new Part();
+                parts.add(part);
+                part.add(fromIndex, from);
+            }
+            part.add(toIndex, to);
+        }
+
+        void write(WritableByteChannel out, int z, int x, int y) throws IOException {
+            int partCount = 0;
+            int vertexCount = 0;
+            for (List<Part> parts : lines.values()) {
+                partCount += parts.size();
+                for (Part part : parts) vertexCount += part.size;
+            }
+
+            int ints = 6 + lines.size() * 2 + partCount + vertexCount * 3;
+            ByteBuffer buffer = ByteBuffer.allocate(ints * 4).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(z).putInt(x).putInt(y).putInt(lines.size());
+            for (Map.Entry<Integer, List<Part>> entry : lines.entrySet()) {
+                buffer.putInt(entry.getKey()).putInt(entry.getValue().size());
+            }
+            for (List<Part> parts : lines.values()) {
+                for (Part part : parts) buffer.putInt(part.size);
+            }
+            for (List<Part> parts : lines.values()) {
+                for (Part part : parts) {
+                    for (int i = 0; i < part.size * 2; i++) buffer.putInt(part.coords[i]);
+                }
+            }
+            for (List<Part> parts : lines.values()) {
+                for (Part part : parts) {
+                    for (int i = 0; i < part.size; i++) buffer.putInt(part.indices[i]);
+                }
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) out.write(buffer);
+        }
+    }
+
+    /**
+     * A polyline run as flat x,z pairs plus each point's index in the original line
+     */
+    private static class Part {
+        int[] coords = new int[8];
+        int[] indices = new int[4];
+        int size;
+
+        void add(int index, int[] vertex) {
+            if (size == indices.length) {
+                indices = Arrays.copyOf(indices, size * 2);
+                coords = Arrays.copyOf(coords, size * 4);
+            }
+            indices[size] = index;
+            coords[size * 2] = vertex[0];
+            coords[size * 2 + 1] = vertex[2];
+            size++;
+        }
+
+        int lastIndex() {
+            return size == 0 ? -1 : indices[size - 1];
+        }
+    }
+}
@@ -0,0 +1,510 @@
+package com.outsharded.railwaymapper;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.bukkit.Bukkit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Optional built-in web server, so the map works without Dynmap.
+ * Map files are served from the publisher's in-memory copies, pre-gzipped,
+ * with ETags for conditional requests; versioned files are marked
+ * immutable. Requests run on virtual threads.
+ *
+ * Also answers viewport queries straight from the cache:
+ * <pre>
+ *   /api/stations?world=W[&amp;minX=&amp;minZ=&amp;maxX=&amp;maxZ=]
+ *   /api/lines?world=W[&amp;minX=&amp;minZ=&amp;maxX=&amp;maxZ=]
+ * </pre>
+ * returning the stations inside, or the full geometry of every line
+ * crossing, the given block rectangle (the whole world if omitted).
+ * Query results are streamed as they are written, gzipped on the fly when
+ * the client accepts it, so a whole-world answer never sits in memory.
+ *
+ * {@code /api/carts?world=W} streams live cart positions from
+ * {@link LiveCartFeed} as Server-Sent Events.
+ *
+ * {@code /api/route?world=W&amp;from=A&amp;to=B} plans a route between two
+ * stations with {@link RoutePlanner}.
+ *
+ * With raster tiles enabled, {@code /tiles/W/z/x/y.png} serves PNG tiles
+ * from {@link RasterTileRenderer}.
+ */
+public class MapWebServer {
+
+    private static final int MIN_GZIP_BYTES = 1024;
+    // Comment line sent on idle streams so proxies don't time them out
+    private static final byte[] HEARTBEAT = ": ping\n\n".getBytes(StandardCharsets.UTF_8);
+    private static final long HEARTBEAT_MS = 15000;
+
+    private final RailwayMapperPlugin plugin;
+    private final MapGenerator generator;
+    private final RailwayCache cache;
+    private final LiveCartFeed liveFeed;
+    private final RasterTileRenderer rasterRenderer; // null if raster tiles are off
+    private final RoutePlanner routePlanner;
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    public MapWebServer(RailwayMapperPlugin plugin, MapGenerator generator, RailwayCache cache,
+                        LiveCartFeed liveFeed, RasterTileRenderer rasterRenderer, RoutePlanner routePlanner) {
+        this.plugin = plugin;
+        this.generator = generator;
+        this.cache = cache;
+        this.liveFeed = liveFeed;
+        this.rasterRenderer = rasterRenderer;
+        this.routePlanner = routePlanner;
+    }
+
+    public void start() {
+        String address = plugin.getConfig().getString("web-server.bind-address", "0.0.0.0");
+        int port = plugin.getConfig().getInt("web-server.port", 8124);
+        try {
+            server = HttpServer.create(new InetSocketAddress(address, port), 0);
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "Failed to start map web server on " + address + ":" + port, e);
+            return;
+        }
+        executor = Executors.newVirtualThreadPerTaskExecutor();
+        server.setExecutor(executor);
+        server.createContext("/", this::handleFile);
+        server.createContext("/api/stations", exchange -> handleQuery(exchange, this::writeStations));
+        server.createContext("/api/lines", exchange -> handleQuery(exchange, this::writeLines));
+        server.createContext("/api/carts", this::handleCarts);
+        server.createContext("/api/route", this::handleRoute);
+        if (rasterRenderer != null) {
+            server.createContext("/tiles/", this::handleRasterTile);
+        }
+        server.start();
+        plugin.getLogger().info("Map web server listening on " + address + ":" + port);
+    }
+
+    public void shutdown() {
+        if (server != null) {
+            server.stop(1);
+            server = null;
+        }
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    private void handleFile(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!isGetOrHead(exchange)) {
+                return;
+            }
+            String path = exchange.getRequestURI().getPath();
+            String name = path.equals("/") ? "railmap.html" : path.substring(path.lastIndexOf('/') + 1);
+            MapPublisher publisher = generator.getPublisher();
+            MapPublisher.Resource resource = publisher == null || path.indexOf('/', 1) >= 0
+                ? null : publisher.getResource(name);
+            if (resource == null) {
+                send(exchange, 404, "text/plain; charset=utf-8", "Not found".getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+
+            exchange.getResponseHeaders().set("Cache-Control",
+                resource.immutable ? "public, max-age=31536000, immutable" : "no-cache");
+            boolean gzip = acceptsGzip(exchange) && resource.gzipped.length < resource.content.length;
+            sendBody(exchange, contentType(name), resource.etag,
+                     gzip ? resource.gzipped : resource.content, gzip);
+        } catch (RuntimeException e) {
+            plugin.getLogger().log(Level.WARNING, "Error serving " + exchange.getRequestURI(), e);
+        }
+    }
+
+    /**
+     * Writes a JSON response body for a query
+     */
+    private interface Query {
+        void write(JsonStreamWriter json, String worldName, Viewport viewport) throws IOException;
+    }
+
+    private void handleQuery(HttpExchange exchange, Query query) throws IOException {
+        try (exchange) {
+            if (!isGetOrHead(exchange)) {
+                return;
+            }
+            Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+            String worldName = params.get("world");
+            Viewport viewport;
+            try {
+                viewport = Viewport.parse(params);
+            } catch (NumberFormatException e) {
+                viewport = null;
+            }
+            if (worldName == null || viewport == null) {
+                send(exchange, 400, "text/plain; charset=utf-8",
+                     "Expected world and optional integer minX, minZ, maxX, maxZ".getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            if (!isKnownWorld(worldName)) {
+                send(exchange, 404, "text/plain; charset=utf-8", "Unknown world".getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+
+            // Chunked, so there's no length (or content-hash ETag) to compute up front
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+            exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+            boolean gzip = acceptsGzip(exchange);
+            if (gzip) {
+                exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            }
+            if (exchange.getRequestMethod().equals("HEAD")) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, 0);
+            OutputStream body = exchange.getResponseBody();
+            try (OutputStream out = gzip ? new GZIPOutputStream(body, 8192) : body) {
+                JsonStreamWriter json = new JsonStreamWriter(Channels.newChannel(out));
+                query.write(json, worldName, viewport);
+                json.close();
+            }
+        } catch (RuntimeException e) {
+            plugin.getLogger().log(Level.WARNING, "Error answering " + exchange.getRequestURI(), e);
+        }
+    }
+
+    // One virtual thread per viewer, blocked until the feed has a frame for it
+    private void handleCarts(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!isGetOrHead(exchange)) {
+                return;
+            }
+            String worldName = parseQuery(exchange.getRequestURI().getRawQuery()).get("world");
+            if (worldName == null) {
+                send(exchange, 400, "text/plain; charset=utf-8", "Expected world".getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            if (!isKnownWorld(worldName)) {
+                send(exchange, 404, "text/plain; charset=utf-8", "Unknown world".getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            LiveCartFeed.WorldFeed feed = liveFeed.watch(worldName);
+            if (feed == null) {
+                exchange.getResponseHeaders().set("Retry-After", "30");
+                send(exchange, 503, "text/plain; charset=utf-8", "Too many viewers".getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            try {
+                exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+                exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+                exchange.sendResponseHeaders(200, 0);
+                OutputStream out = exchange.getResponseBody();
+                long seq = -1;
+                while (true) {
+                    LiveCartFeed.Frame frame = feed.next(seq, HEARTBEAT_MS);
+                    if (frame == null) {
+                        out.write(HEARTBEAT);
+                    } else if (frame.seq < 0) {
+                        break;
+                    } else {
+                        out.write(frame.bytes);
+                        seq = frame.seq;
+                    }
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // Viewer went away
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                liveFeed.unwatch(feed);
+            }
+        }
+    }
+
+    private void handleRoute(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!isGetOrHead(exchange)) {
+                return;
+            }
+            Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+            String worldName = params.get("world");
+            if (worldName == null || params.get("from") == null || params.get("to") == null) {
+                send(exchange, 400, "text/plain; charset=utf-8",
+                     "Expected world, from and to".getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            if (!isKnownWorld(worldName)) {
+                send(exchange, 404, "text/plain; charset=utf-8", "Unknown world".getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            RoutePlanner.Network network = routePlanner.getNetwork(worldName);
+            if (network == null) {
+                exchange.getResponseHeaders().set("Retry-After", "5");
+                send(exchange, 503, "text/plain; charset=utf-8",
+                     "Route planner is still being built".getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            RailwayDatabase.Station[] ends = new RailwayDatabase.Station[2];
+            for (int i = 0; i < 2; i++) {
+                String name = params.get(i == 0 ? "from" : "to");
+                List<RailwayDatabase.Station> matches = network.findStations(name);
+                if (matches.size() != 1) {
+                    send(exchange, 404, "text/plain; charset=utf-8",
+                         ((matches.isEmpty() ? "No station called " : "More than one station matches ") + name)
+                             .getBytes(StandardCharsets.UTF_8));
+                    return;
+                }
+                ends[i] = matches.get(0);
+            }
+            RoutePlanner.Route route = network.route(ends[0], ends[1]);
+            if (route == null) {
+                send(exchange, 404, "text/plain; charset=utf-8",
+                     ("No rail route from " + ends[0].name + " to " + ends[1].name).getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try (JsonStreamWriter json = new JsonStreamWriter(Channels.newChannel(body))) {
+                json.beginObject();
+                json.name("from").value(ends[0].name);
+                json.name("to").value(ends[1].name);
+                json.name("cost").value(route.cost);
+                json.name("length").value(route.length);
+                json.name("legs").beginArray();
+                for (RoutePlanner.Leg leg : route.legs) {
+                    json.beginObject();
+                    json.name("networkId").value(leg.networkId);
+                    json.name("color").value(leg.color);
+                    json.name("from").value(leg.from);
+                    json.name("to").value(leg.to);
+                    json.name("stops").value(leg.stops);
+                    json.name("length").value(leg.length);
+                    json.endObject();
+                }
+                json.endArray();
+                json.name("path").beginArray();
+                for (int[] p : route.path) {
+                    json.beginArray().value(p[0]).value(p[1]).value(p[2]).endArray();
+                }
+                json.endArray();
+                json.endObject();
+            }
+            byte[] content = body.toByteArray();
+            String etag = "\"" + HexFormat.of().formatHex(sha256().digest(content), 0, 8) + "\"";
+            exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+            boolean gzip = acceptsGzip(exchange) && content.length >= MIN_GZIP_BYTES;
+            sendBody(exchange, "application/json", etag, gzip ? gzip(content) : content, gzip);
+        } catch (RuntimeException e) {
+            plugin.getLogger().log(Level.WARNING, "Error answering " + exchange.getRequestURI(), e);
+        }
+    }
+
+    private void handleRasterTile(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!isGetOrHead(exchange)) {
+                return;
+            }
+            // /tiles/<world>/<z>/<x>/<y>.png
+            String[] parts = exchange.getRequestURI().getPath().split("/");
+            byte[] png = null;
+            if (parts.length == 6 && parts[5].endsWith(".png") && isKnownWorld(parts[2])) {
+                try {
+                    png = rasterRenderer.getTile(parts[2], Integer.parseInt(parts[3]), Integer.parseInt(parts[4]),
+                                                 Integer.parseInt(parts[5].substring(0, parts[5].length() - 4)));
+                } catch (NumberFormatException e) {
+                    png = null;
+                }
+            }
+            if (png == null) {
+                send(exchange, 404, "text/plain; charset=utf-8", "Not found".getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            String etag = "\"" + HexFormat.of().formatHex(sha256().digest(png), 0, 8) + "\"";
+            exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+            sendBody(exchange, "image/png", etag, png, false);
+        } catch (RuntimeException e) {
+            plugin.getLogger().log(Level.WARNING, "Error serving " + exchange.getRequestURI(), e);
+        }
+    }
+
+    private void writeStations(JsonStreamWriter json, String worldName, Viewport viewport) throws IOException {
+        json.beginArray();
+        for (RailwayDatabase.Station s : cache.getStations(worldName)) {
+            if (!viewport.contains(s.x, s.z)) continue;
+            json.beginObject();
+            json.name("x").value(s.x);
+            json.name("y").value(s.y);
+            json.name("z").value(s.z);
+            json.name("name").value(s.name);
+            json.endObject();
+        }
+        json.endArray();
+    }
+
+    private void writeLines(JsonStreamWriter json, String worldName, Viewport viewport) throws IOException {
+        json.beginArray();
+        for (RailLine line : cache.getRailLines(worldName)) {
+            if (viewport.crosses(line.vertices)) {
+                line.writeJson(json);
+            }
+        }
+        json.endArray();
+    }
+
+    // Loaded or scanned worlds only, so made-up names can't load data into the caches
+    private boolean isKnownWorld(String worldName) {
+        return Bukkit.getWorld(worldName) != null || cache.getAllWorlds().contains(worldName);
+    }
+
+    /**
+     * Sends a body with its ETag, or 304 if the client already has it
+     */
+    private static void sendBody(HttpExchange exchange, String contentType, String etag,
+                                 byte[] body, boolean gzipped) throws IOException {
+        exchange.getResponseHeaders().set("ETag", etag);
+        exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+        if (matches(exchange.getRequestHeaders().getFirst("If-None-Match"), etag)) {
+            exchange.sendResponseHeaders(304, -1);
+            return;
+        }
+        if (gzipped) {
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        send(exchange, 200, contentType, body);
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        boolean head = exchange.getRequestMethod().equals("HEAD");
+        exchange.sendResponseHeaders(status, head ? -1 : body.length);
+        if (!head) {
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    private static boolean isGetOrHead(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        if (method.equals("GET") || method.equals("HEAD")) {
+            return true;
+        }
+        exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+        exchange.sendResponseHeaders(405, -1);
+        return false;
+    }
+
+    // If-None-Match may list several tags, possibly weak, or be "*"
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean acceptsGzip(HttpExchange exchange) {
+        String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        return accept != null && accept.toLowerCase().contains("gzip");
+    }
+
+    private static String contentType(String name) {
+        if (name.endsWith(".html")) return "text/html; charset=utf-8";
+        if (name.endsWith(".json")) return "application/json";
+        return "application/octet-stream";
+    }
+
+    private static byte[] gzip(byte[] content) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 4 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(content);
+        }
+        return out.toByteArray();
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> params = new HashMap<>();
+        if (rawQuery == null) {
+            return params;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq <= 0) continue;
+            params.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                       URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+        }
+        return params;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * A block rectangle on the x/z plane, inclusive
+     */
+    private static class Viewport {
+        final long minX, minZ, maxX, maxZ;
+
+        Viewport(long minX, long minZ, long maxX, long maxZ) {
+            this.minX = minX;
+            this.minZ = minZ;
+            this.maxX = maxX;
+            this.maxZ = maxZ;
+        }
+
+        static Viewport parse(Map<String, String> params) {
+            return new Viewport(bound(params, "minX", Long.MIN_VALUE), bound(params, "minZ", Long.MIN_VALUE),
+                                bound(params, "maxX", Long.MAX_VALUE), bound(params, "maxZ", Long.MAX_VALUE));
+        }
+
+        private static long bound(Map<String, String> params, String name, long unbounded) {
+            String value = params.get(name);
+            return value == null ? unbounded : Long.parseLong(value);
+        }
+
+        boolean contains(int x, int z) {
+            return x >= minX && x <= maxX && z >= minZ && z <= maxZ;
+        }
+
+        // Whether any segment's bounding box overlaps the rectangle
+        boolean crosses(List<int[]> vertices) {
+            for (int i = 0; i < vertices.size(); i++) {
+                int[] a = vertices.get(i);
+                int[] b = i + 1 < vertices.size() ? vertices.get(i + 1) : a;
+                if (Math.max(a[0], b[0]) >= minX && Math.min(a[0], b[0]) <= maxX
+                        && Math.max(a[2], b[2]) >= minZ && Math.min(a[2], b[2]) <= maxZ) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.outsharded.railwaymapper;
+
+import com.destroystokyo.paper.event.entity.EntityAddToWorldEvent;
+import com.destroystokyo.paper.event.entity.EntityRemoveFromWorldEvent;
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+import org.bukkit.entity.Minecart;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.vehicle.VehicleCreateEvent;
+import org.bukkit.event.vehicle.VehicleDestroyEvent;
+import org.bukkit.event.vehicle.VehicleEnterEvent;
+import org.bukkit.event.vehicle.VehicleExitEvent;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Live set of minecarts in loaded chunks, maintained from entity events
+ * so the tracker never has to walk every entity in every world.
+ * Also queues carts that need an immediate sample (newly added, or a
+ * passenger got in or out) and carts that left the world.
+ */
+public class MinecartRegistry implements Listener {
+
+    private final RailwayMapperPlugin plugin;
+    private final Map<UUID, Minecart> carts;
+    private final Queue<Minecart> wakeups = new ConcurrentLinkedQueue<>();
+    private final Queue<UUID> removals = new ConcurrentLinkedQueue<>();
+
+    public MinecartRegistry(RailwayMapperPlugin plugin) {
+        this.plugin = plugin;
+        this.carts = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Seeds the registry with carts that were already loaded before the
+     * listener was registered (e.g. after /reload). Runs once on enable.
+     */
+    public void seed() {
+        for (World world : Bukkit.getWorlds()) {
+            for (Minecart cart : world.getEntitiesByClass(Minecart.class)) {
+                add(cart);
+            }
+        }
+        plugin.getLogger().info("Minecart registry seeded with " + carts.size() + " carts");
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onEntityAdd(EntityAddToWorldEvent event) {
+        if (event.getEntity() instanceof Minecart cart) {
+            add(cart);
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onEntityRemove(EntityRemoveFromWorldEvent event) {
+        if (event.getEntity() instanceof Minecart cart) {
+            remove(cart.getUniqueId());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onVehicleCreate(VehicleCreateEvent event) {
+        if (event.getVehicle() instanceof Minecart cart) {
+            add(cart);
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onVehicleDestroy(VehicleDestroyEvent event) {
+        if (event.getVehicle() instanceof Minecart cart) {
+            remove(cart.getUniqueId());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onVehicleEnter(VehicleEnterEvent event) {
+        if (event.getVehicle() instanceof Minecart cart && carts.containsKey(cart.getUniqueId())) {
+            wakeups.add(cart);
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onVehicleExit(VehicleExitEvent event) {
+        if (event.getVehicle() instanceof Minecart cart && carts.containsKey(cart.getUniqueId())) {
+            wakeups.add(cart);
+        }
+    }
+
+    private void add(Minecart cart) {
+        carts.put(cart.getUniqueId(), cart);
+        wakeups.add(cart);
+    }
+
+    /**
+     * Drops a cart; also used by the tracker for carts found invalid
+     * without a remove event (e.g. chunk unloaded mid-tick)
+     */
+    public void remove(UUID cartId) {
+        if (carts.remove(cartId) != null) {
+            removals.add(cartId);
+        }
+    }
+
+    /**
+     * Next cart that should be sampled right away, or null
+     */
+    public Minecart pollWakeup() {
+        return wakeups.poll();
+    }
+
+    /**
+     * Next cart that left the world, or null
+     */
+    public UUID pollRemoval() {
+        return removals.poll();
+    }
+
+    /**
+     * Live view of the registered carts; only iterate on the main thread
+     */
+    public Collection<Minecart> getCarts() {
+        return carts.values();
+    }
+
+    public int size() {
+        return carts.size();
+    }
+
+    public void clear() {
+        carts.clear();
+        wakeups.clear();
+        removals.clear();
+    }
+}
@@ -1,6 +1,5 @@
 package com.outsharded.railwaymapper;
 
-import org.bukkit.Bukkit;
 import org.bukkit.World;
 import org.bukkit.entity.Entity;
 import org.bukkit.entity.Minecart;
@@ -8,60 +7,181 @@ import org.bukkit.entity.Player;
 import org.bukkit.util.Vector;
 
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Samples tracked minecarts on the main thread and publishes the latest
+ * sample of each into a {@link CartStore}. Once a cart has been seen, the
+ * sampling path only writes primitives into its slot, so steady-state
+ * tracking does not allocate.
+ */
 public class MinecartTracker {
     
     private final RailwayMapperPlugin plugin;
-    private final RailwayDatabase database;
+    private final MinecartRegistry registry;
+    private final PositionWriteBehind writer;
+    private final MapMatcher matcher;
+    private final JourneyAnalytics analytics;
+    private final TrafficHeatmap heatmap;
+    private final MapMatcher.Match match = new MapMatcher.Match();
     
-    // Track minecart positions and data
-    private final Map<UUID, MinecartData> trackedMinecarts;
+    // Latest sample per cart, readable from any thread
+    private final CartStore store;
     
-    public MinecartTracker(RailwayMapperPlugin plugin, RailwayDatabase database) {
+    // Adaptive sampling: carts ordered by the tick their next sample is due
+    private final PriorityQueue<CartSchedule> queue = new PriorityQueue<>(Comparator.comparingLong(s -> s.due));
+    private final Map<UUID, CartSchedule> schedules = new HashMap<>();
+    private long currentTick;
+    
+    private final long minInterval;
+    private final long movingInterval;
+    private final long idleInterval;
+    private final double fastSpeed;
+    private final double idleSpeed;
+    private final double accelerationThreshold;
+    private final int maxSamplesPerTick;
+    
+    public MinecartTracker(RailwayMapperPlugin plugin, MinecartRegistry registry, CartStore store,
+                           PositionWriteBehind writer, MapMatcher matcher, JourneyAnalytics analytics,
+                           TrafficHeatmap heatmap) {
         this.plugin = plugin;
-        this.database = database;
-        this.trackedMinecarts = new ConcurrentHashMap<>();
+        this.registry = registry;
+        this.store = store;
+        this.writer = writer;
+        this.matcher = matcher;
+        this.analytics = analytics;
+        this.heatmap = heatmap;
+        
+        this.movingInterval = Math.max(1, plugin.getConfig().getLong("tracking.update-interval", 20L));
+        this.minInterval = Math.max(1, Math.min(movingInterval, plugin.getConfig().getLong("tracking.min-interval", 2L)));
+        this.idleInterval = Math.max(movingInterval, plugin.getConfig().getLong("tracking.idle-interval", 100L));
+        this.fastSpeed = plugin.getConfig().getDouble("tracking.fast-speed", 0.4);
+        this.idleSpeed = plugin.getConfig().getDouble("tracking.idle-speed", 0.01);
+        this.accelerationThreshold = plugin.getConfig().getDouble("tracking.acceleration-threshold", 0.02);
+        this.maxSamplesPerTick = Math.max(1, plugin.getConfig().getInt("tracking.max-samples-per-tick", 100));
     }
     
     /**
-     * Updates positions of all minecarts across all worlds
+     * Runs every tick on the main thread. Carts are sampled on their own
+     * schedule: fast or accelerating carts every few ticks, idle carts
+     * rarely, and never more than the per-tick sample budget in total.
+     * Overdue carts simply wait for the next tick's budget.
      */
-    public void updateMinecartPositions() {
-        Set<UUID> currentMinecarts = new HashSet<>();
-        
-        for (World world : Bukkit.getWorlds()) {
-            for (Entity entity : world.getEntities()) {
-                if (entity instanceof Minecart) {
-                    Minecart cart = (Minecart) entity;
-                    UUID cartId = cart.getUniqueId();
-                    
-                    currentMinecarts.add(cartId);
-                    
-                    MinecartData data = new MinecartData(
-                        cartId,
-                        cart.getLocation().getX(),
-                        cart.getLocation().getY(),
-                        cart.getLocation().getZ(),
-                        world.getName(),
-                        cart.getVelocity(),
-                        !cart.isEmpty(),
-                        getPassengerName(cart),
-                        System.currentTimeMillis()
-                    );
-                    
-                    trackedMinecarts.put(cartId, data);
-                }
+    public void tick() {
+        currentTick++;
+        
+        UUID removedId;
+        while ((removedId = registry.pollRemoval()) != null) {
+            CartSchedule removed = schedules.remove(removedId);
+            if (removed != null) {
+                removed.removed = true;
+            }
+            forgetCart(removedId);
+        }
+        
+        Minecart woken;
+        while ((woken = registry.pollWakeup()) != null) {
+            CartSchedule s = schedules.get(woken.getUniqueId());
+            if (s == null) {
+                s = new CartSchedule(woken, store.acquire(woken.getUniqueId()));
+                schedules.put(s.id, s);
+            } else {
+                // Re-added (e.g. chunk reload) or passenger change: sample now
+                queue.remove(s);
+                s.cart = woken;
+                s.passengerDirty = true;
+            }
+            s.due = currentTick;
+            queue.add(s);
+        }
+        
+        long now = System.currentTimeMillis();
+        int budget = maxSamplesPerTick;
+        while (budget > 0 && !queue.isEmpty() && queue.peek().due <= currentTick) {
+            CartSchedule s = queue.poll();
+            if (s.removed) {
+                continue;
             }
+            if (!s.cart.isValid()) {
+                // Missed a remove event
+                schedules.remove(s.id);
+                registry.remove(s.id);
+                forgetCart(s.id);
+                continue;
+            }
+            
+            budget--;
+            sample(s, now);
+            s.due = currentTick + nextInterval(s);
+            queue.add(s);
+        }
+    }
+    
+    private void sample(CartSchedule s, long now) {
+        Minecart cart = s.cart;
+        double x = cart.getX();
+        double y = cart.getY();
+        double z = cart.getZ();
+        // Bukkit hands back a fresh copy; it's read immediately and never escapes
+        Vector velocity = cart.getVelocity();
+        double vx = velocity.getX();
+        double vy = velocity.getY();
+        double vz = velocity.getZ();
+        
+        World world = cart.getWorld();
+        if (world != s.world) {
+            s.world = world;
+            s.worldName = world.getName();
+            s.worldId = store.internWorld(s.worldName);
+        }
+        
+        // Passenger lookup copies the passenger list, so only redo it when
+        // occupancy flips or an enter/exit event woke the cart
+        boolean occupied = !cart.isEmpty();
+        if (occupied != s.occupied || s.passengerDirty) {
+            s.passengerId = store.internPassenger(getPassengerName(cart));
+            s.occupied = occupied;
+            s.passengerDirty = false;
+        }
+        
+        matcher.match(s.id, s.worldName, x, y, z, match);
+        if (match.enteredSegment) {
+            heatmap.record(s.worldName, match.index, match.segment);
         }
+        store.write(s.slot, x, y, z, vx, vy, vz, occupied, s.worldId, s.passengerId, now,
+                    match.lineId, match.offset);
         
-        // Remove minecarts that no longer exist
-        trackedMinecarts.keySet().retainAll(currentMinecarts);
+        // Acceleration per tick since the previous sample
+        long elapsed = Math.max(1, currentTick - s.lastSampleTick);
+        double dvx = vx - s.vx;
+        double dvy = vy - s.vy;
+        double dvz = vz - s.vz;
+        s.acceleration = Math.sqrt(dvx * dvx + dvy * dvy + dvz * dvz) / elapsed;
+        s.speed = Math.sqrt(vx * vx + vy * vy + vz * vz);
+        s.vx = vx;
+        s.vy = vy;
+        s.vz = vz;
+        s.lastSampleTick = currentTick;
         
-        // Save to database (async)
-        if (!trackedMinecarts.isEmpty()) {
-            database.updateMinecartPositions(new ArrayList<>(trackedMinecarts.values()));
+        analytics.onSample(s.id, s.worldName, x, y, z, occupied, now, match.lineId);
+    }
+    
+    private long nextInterval(CartSchedule s) {
+        if (s.acceleration >= accelerationThreshold) {
+            return minInterval;
         }
+        if (s.speed <= idleSpeed) {
+            return idleInterval;
+        }
+        double f = Math.min(1.0, s.speed / fastSpeed);
+        return Math.max(minInterval, Math.round(movingInterval - f * (movingInterval - minInterval)));
+    }
+    
+    private void forgetCart(UUID cartId) {
+        // Release before queuing the tombstone; see PositionWriteBehind#flush
+        store.release(cartId);
+        writer.remove(cartId);
+        matcher.forget(cartId);
+        analytics.forget(cartId);
     }
     
     private String getPassengerName(Minecart cart) {
@@ -82,27 +202,34 @@ public class MinecartTracker {
      * Get all currently tracked minecarts
      */
     public Collection<MinecartData> getTrackedMinecarts() {
-        return new ArrayList<>(trackedMinecarts.values());
+        return store.snapshot(null);
     }
     
     /**
      * Get tracked minecarts in a specific world
      */
     public List<MinecartData> getMinecarts(String worldName) {
-        List<MinecartData> result = new ArrayList<>();
-        for (MinecartData data : trackedMinecarts.values()) {
-            if (data.getWorld().equals(worldName)) {
-                result.add(data);
+        return store.snapshot(worldName);
+    }
+    
+    /**
+     * Count tracked minecarts per rail line in a world (network ID to cart count)
+     */
+    public Map<Integer, Integer> getLineOccupancy(String worldName) {
+        Map<Integer, Integer> occupancy = new HashMap<>();
+        for (MinecartData data : store.snapshot(worldName)) {
+            if (data.isOnLine()) {
+                occupancy.merge(data.getLineId(), 1, Integer::sum);
             }
         }
-        return result;
+        return occupancy;
     }
     
     /**
      * Get the total number of active minecarts
      */
     public int getActiveMinecartCount() {
-        return trackedMinecarts.size();
+        return store.size();
     }
     
     /**
@@ -110,7 +237,7 @@ public class MinecartTracker {
      */
     public int getOccupiedMinecartCount() {
         int count = 0;
-        for (MinecartData data : trackedMinecarts.values()) {
+        for (MinecartData data : store.snapshot(null)) {
             if (data.isOccupied()) {
                 count++;
             }
@@ -119,11 +246,44 @@ public class MinecartTracker {
     }
     
     public void shutdown() {
-        trackedMinecarts.clear();
+        // The store is left intact for the writer's final flush
+        queue.clear();
+        schedules.clear();
+        matcher.clear();
     }
     
     /**
-     * Data class to hold minecart information
+     * Per-cart sampling state; only touched on the main thread
+     */
+    private static class CartSchedule {
+        final UUID id;
+        final int slot;
+        Minecart cart;
+        long due;
+        long lastSampleTick;
+        double vx, vy, vz;
+        double speed;
+        double acceleration;
+        boolean removed;
+        // Interned once per change rather than looked up every sample
+        World world;
+        String worldName;
+        int worldId;
+        boolean occupied;
+        int passengerId;
+        boolean passengerDirty = true;
+        
+        CartSchedule(Minecart cart, int slot) {
+            this.id = cart.getUniqueId();
+            this.cart = cart;
+            this.slot = slot;
+        }
+    }
+    
+    /**
+     * Data class to hold minecart information.
+     * Velocity is in blocks per tick at {@code timestamp}, so readers can
+     * extrapolate a position between samples.
      */
     public static class MinecartData {
         private final UUID id;
@@ -133,9 +293,17 @@ public class MinecartTracker {
         private final boolean occupied;
         private final String passenger;
         private final long timestamp;
+        private final int lineId;
+        private final double lineOffset;
         
         public MinecartData(UUID id, double x, double y, double z, String world,
                            Vector velocity, boolean occupied, String passenger, long timestamp) {
+            this(id, x, y, z, world, velocity, occupied, passenger, timestamp, -1, 0);
+        }
+        
+        public MinecartData(UUID id, double x, double y, double z, String world,
+                           Vector velocity, boolean occupied, String passenger, long timestamp,
+                           int lineId, double lineOffset) {
             this.id = id;
             this.x = x;
             this.y = y;
@@ -145,6 +313,8 @@ public class MinecartTracker {
             this.occupied = occupied;
             this.passenger = passenger;
             this.timestamp = timestamp;
+            this.lineId = lineId;
+            this.lineOffset = lineOffset;
         }
         
         public UUID getId() { return id; }
@@ -156,6 +326,11 @@ public class MinecartTracker {
         public boolean isOccupied() { return occupied; }
         public String getPassenger() { return passenger; }
         public long getTimestamp() { return timestamp; }
+        /** Network ID of the rail line the cart was matched to, or -1 if off the graph */
+        public int getLineId() { return lineId; }
+        /** Distance in blocks along the matched line */
+        public double getLineOffset() { return lineOffset; }
+        public boolean isOnLine() { return lineId >= 0; }
         
         public double getSpeed() {
             return velocity.length();
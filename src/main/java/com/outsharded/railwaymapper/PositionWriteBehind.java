@@ -0,0 +1,184 @@
+package com.outsharded.railwaymapper;
+
+import com.outsharded.railwaymapper.MinecartTracker.MinecartData;
+import org.bukkit.scheduler.BukkitRunnable;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+
+/**
+ * Write-behind buffer for minecart positions.
+ * The tracking tick only overwrites each cart's slot in the {@link CartStore};
+ * a background task compares slot versions against what it last flushed
+ * and writes the latest sample of every cart that has a newer one. Pending
+ * work is therefore bounded by the number of carts, and samples that are
+ * too old by the time the writer gets to them are dropped.
+ *
+ * Only carts that moved or changed occupancy since their last persisted
+ * row are written; despawned carts are deleted in the same batch.
+ */
+public class PositionWriteBehind {
+
+    private final RailwayMapperPlugin plugin;
+    private final RailwayDatabase database;
+    private final CartStore store;
+
+    private final Set<UUID> pendingRemovals = ConcurrentHashMap.newKeySet();
+    // Last row written per cart; only touched while holding flushLock
+    private final Map<UUID, MinecartData> persisted = new HashMap<>();
+    // Store version last flushed per slot; only touched while holding flushLock
+    private long[] flushedVersions = new long[0];
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private final long maxSampleAgeMs;
+    private final double minDistanceSquared;
+    private BukkitTask task;
+
+    private final AtomicLong droppedSamples = new AtomicLong();
+
+    public PositionWriteBehind(RailwayMapperPlugin plugin, RailwayDatabase database, CartStore store) {
+        this.plugin = plugin;
+        this.database = database;
+        this.store = store;
+        this.maxSampleAgeMs = plugin.getConfig().getLong("tracking.max-sample-age-ms", 10000L);
+        double minDistance = plugin.getConfig().getDouble("tracking.persist-min-distance", 0.5);
+        this.minDistanceSquared = minDistance * minDistance;
+    }
+
+    public void start() {
+        // Rows from a previous run belong to carts we haven't seen yet
+        database.clearMinecartPositions();
+
+        long flushInterval = Math.max(1L, plugin.getConfig().getLong("tracking.flush-interval", 40L)); // ticks
+        task = new BukkitRunnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }.runTaskTimerAsynchronously(plugin, flushInterval, flushInterval);
+    }
+
+    /**
+     * Records that a cart despawned so its row is deleted on the next flush
+     */
+    public void remove(UUID cartId) {
+        pendingRemovals.add(cartId);
+    }
+
+    /**
+     * Writes every slot updated since the last flush. If a flush is already
+     * running, this call returns immediately and the slots are picked up by
+     * the next one.
+     */
+    public void flush() {
+        if (!flushLock.tryLock()) {
+            return;
+        }
+        try {
+            // Removals first: a despawned cart's slot is released before its
+            // tombstone is queued, so a re-added cart's fresh row survives
+            Set<UUID> removals = new HashSet<>();
+            for (Iterator<UUID> it = pendingRemovals.iterator(); it.hasNext(); ) {
+                removals.add(it.next());
+                it.remove();
+            }
+
+            // Versions are only marked flushed once the batch has been written,
+            // so a rolled-back flush sees the same slots again
+            int limit = store.getHighWater();
+            long[] versions = Arrays.copyOf(flushedVersions, Math.max(limit, flushedVersions.length));
+
+            long cutoff = System.currentTimeMillis() - maxSampleAgeMs;
+            List<MinecartData> batch = new ArrayList<>();
+            for (int slot = 0; slot < limit; slot++) {
+                long version = store.versionOf(slot);
+                if (version == 0 || version == versions[slot]) {
+                    continue;
+                }
+                // Copy may be newer than version; the next flush just sees it again
+                MinecartData sample = store.readIfChanged(slot, versions[slot]);
+                versions[slot] = version;
+                if (sample == null) {
+                    continue;
+                }
+                if (sample.getTimestamp() < cutoff) {
+                    droppedSamples.incrementAndGet();
+                    continue;
+                }
+                MinecartData previous = removals.contains(sample.getId()) ? null : persisted.get(sample.getId());
+                if (!hasChanged(previous, sample)) {
+                    continue;
+                }
+                batch.add(sample);
+            }
+
+            if (batch.isEmpty() && removals.isEmpty()) {
+                flushedVersions = versions;
+                return;
+            }
+            if (!database.applyMinecartChanges(batch, removals)) {
+                // Rolled back: retry the tombstones, and the rows count as unwritten
+                pendingRemovals.addAll(removals);
+                return;
+            }
+            flushedVersions = versions;
+            for (UUID cartId : removals) {
+                persisted.remove(cartId);
+            }
+            for (MinecartData sample : batch) {
+                persisted.put(sample.getId(), sample);
+            }
+        } catch (Exception e) {
+            plugin.getLogger().log(Level.SEVERE, "Error flushing minecart positions", e);
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    private boolean hasChanged(MinecartData previous, MinecartData sample) {
+        if (previous == null) {
+            return true;
+        }
+        if (previous.isOccupied() != sample.isOccupied()
+                || !Objects.equals(previous.getPassenger(), sample.getPassenger())
+                || !previous.getWorld().equals(sample.getWorld())
+                || isStopped(previous) != isStopped(sample)) {
+            return true;
+        }
+        double dx = sample.getX() - previous.getX();
+        double dy = sample.getY() - previous.getY();
+        double dz = sample.getZ() - previous.getZ();
+        return dx * dx + dy * dy + dz * dz >= minDistanceSquared;
+    }
+
+    private static boolean isStopped(MinecartData sample) {
+        return "stopped".equals(sample.getDirection());
+    }
+
+    /**
+     * Samples that were too old to write by the time the writer got to them, since startup
+     */
+    public long getDroppedSamples() {
+        return droppedSamples.get();
+    }
+
+    /**
+     * Stops the background writer and flushes what is left
+     */
+    public void shutdown() {
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+        // Wait out an in-flight flush so the final one isn't skipped
+        flushLock.lock();
+        try {
+            flush();
+        } finally {
+            flushLock.unlock();
+        }
+    }
+}
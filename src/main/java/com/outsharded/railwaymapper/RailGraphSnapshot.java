@@ -0,0 +1,225 @@
+package com.outsharded.railwaymapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+
+/**
+ * Versioned binary snapshot of a world's rail lines and stations.
+ *
+ * Layout (big-endian):
+ * <pre>
+ *   int    magic ("RMAP")
+ *   int    format version
+ *   string source stamp (see {@link RailwayDatabase#getWorldDataStamp})
+ *   int    payload length
+ *   long   CRC32 of payload
+ *   payload:
+ *     int lineCount, then per line: int networkId, string color, int vertexCount, vertexCount * 3 ints
+ *     int stationCount, then per station: int x, int y, int z, string name
+ * </pre>
+ * Strings are an unsigned short byte length followed by UTF-8 bytes.
+ */
+public class RailGraphSnapshot {
+
+    private static final int MAGIC = 0x524D4150; // "RMAP"
+    private static final int FORMAT_VERSION = 1;
+
+    private final RailwayMapperPlugin plugin;
+    private final File directory;
+
+    public RailGraphSnapshot(RailwayMapperPlugin plugin) {
+        this.plugin = plugin;
+        this.directory = new File(plugin.getDataFolder(), "snapshots");
+    }
+
+    /**
+     * Reads and decodes the snapshot for a world.
+     * Returns null if there is no snapshot or it fails validation.
+     * The file is read onto the heap rather than mapped, since everything is
+     * decoded anyway and a live mapping would block replacing the file on Windows.
+     */
+    public Data load(String worldName) {
+        File file = fileFor(worldName);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                plugin.getLogger().warning("Ignoring oversized snapshot: " + file.getName());
+                return null;
+            }
+            ByteBuffer buf = ByteBuffer.allocate((int) size);
+            while (buf.hasRemaining() && channel.read(buf) >= 0) {
+                // Keep reading until the buffer is full or the file ends
+            }
+            buf.flip();
+
+            if (buf.getInt() != MAGIC) {
+                plugin.getLogger().warning("Ignoring snapshot with bad header: " + file.getName());
+                return null;
+            }
+            if (buf.getInt() != FORMAT_VERSION) {
+                plugin.getLogger().info("Ignoring snapshot from an older format: " + file.getName());
+                return null;
+            }
+
+            String stamp = readString(buf);
+            int payloadLength = buf.getInt();
+            long expectedCrc = buf.getLong();
+            if (payloadLength < 0 || payloadLength != buf.remaining()) {
+                plugin.getLogger().warning("Ignoring truncated snapshot: " + file.getName());
+                return null;
+            }
+
+            ByteBuffer payload = buf.slice();
+            CRC32 crc = new CRC32();
+            crc.update(payload.duplicate());
+            if (crc.getValue() != expectedCrc) {
+                plugin.getLogger().warning("Ignoring snapshot with bad checksum: " + file.getName());
+                return null;
+            }
+
+            int lineCount = payload.getInt();
+            List<RailLine> lines = new ArrayList<>(lineCount);
+            for (int i = 0; i < lineCount; i++) {
+                RailLine line = new RailLine(payload.getInt(), readString(payload));
+                int vertexCount = payload.getInt();
+                for (int v = 0; v < vertexCount; v++) {
+                    line.addVertex(payload.getInt(), payload.getInt(), payload.getInt());
+                }
+                lines.add(line);
+            }
+
+            int stationCount = payload.getInt();
+            List<RailwayDatabase.Station> stations = new ArrayList<>(stationCount);
+            for (int i = 0; i < stationCount; i++) {
+                int x = payload.getInt();
+                int y = payload.getInt();
+                int z = payload.getInt();
+                stations.add(new RailwayDatabase.Station(x, y, z, readString(payload)));
+            }
+
+            return new Data(stamp, lines, stations);
+
+        } catch (IOException | RuntimeException e) {
+            plugin.getLogger().log(Level.WARNING, "Failed to read snapshot " + file.getName(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes a snapshot for a world, replacing any previous one atomically
+     */
+    public void write(String worldName, String stamp, Collection<RailLine> lines,
+                      Collection<RailwayDatabase.Station> stations) {
+        if (stamp == null) {
+            return;
+        }
+
+        int payloadSize = 8;
+        for (RailLine line : lines) {
+            payloadSize += 12 + stringSize(line.color) + line.vertices.size() * 12;
+        }
+        for (RailwayDatabase.Station station : stations) {
+            payloadSize += 12 + stringSize(station.name);
+        }
+
+        ByteBuffer payload = ByteBuffer.allocate(payloadSize);
+        payload.putInt(lines.size());
+        for (RailLine line : lines) {
+            payload.putInt(line.networkId);
+            writeString(payload, line.color);
+            payload.putInt(line.vertices.size());
+            for (int[] v : line.vertices) {
+                payload.putInt(v[0]).putInt(v[1]).putInt(v[2]);
+            }
+        }
+        payload.putInt(stations.size());
+        for (RailwayDatabase.Station station : stations) {
+            payload.putInt(station.x).putInt(station.y).putInt(station.z);
+            writeString(payload, station.name);
+        }
+        payload.flip();
+
+        CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+
+        ByteBuffer header = ByteBuffer.allocate(24 + stringSize(stamp));
+        header.putInt(MAGIC);
+        header.putInt(FORMAT_VERSION);
+        writeString(header, stamp);
+        header.putInt(payload.remaining());
+        header.putLong(crc.getValue());
+        header.flip();
+
+        try {
+            if (!directory.exists() && !directory.mkdirs()) {
+                plugin.getLogger().warning("Failed to create snapshot directory: " + directory.getAbsolutePath());
+                return;
+            }
+
+            File target = fileFor(worldName);
+            File temp = new File(directory, target.getName() + ".tmp");
+            try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (header.hasRemaining()) channel.write(header);
+                while (payload.hasRemaining()) channel.write(payload);
+                channel.force(false);
+            }
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+
+            plugin.getLogger().fine("Wrote rail snapshot for world " + worldName);
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.WARNING, "Failed to write snapshot for world " + worldName, e);
+        }
+    }
+
+    private File fileFor(String worldName) {
+        return new File(directory, worldName.replaceAll("[^A-Za-z0-9_.-]", "_") + ".rmap");
+    }
+
+    private static int stringSize(String s) {
+        return 2 + Math.min(s == null ? 0 : s.getBytes(StandardCharsets.UTF_8).length, 0xFFFF);
+    }
+
+    private static void writeString(ByteBuffer buf, String s) {
+        byte[] bytes = s == null ? new byte[0] : s.getBytes(StandardCharsets.UTF_8);
+        int len = Math.min(bytes.length, 0xFFFF);
+        buf.putShort((short) len);
+        buf.put(bytes, 0, len);
+    }
+
+    private static String readString(ByteBuffer buf) {
+        int len = buf.getShort() & 0xFFFF;
+        byte[] bytes = new byte[len];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decoded snapshot contents
+     */
+    public static class Data {
+        public final String stamp;
+        public final List<RailLine> lines;
+        public final List<RailwayDatabase.Station> stations;
+
+        public Data(String stamp, List<RailLine> lines, List<RailwayDatabase.Station> stations) {
+            this.stamp = stamp;
+            this.lines = lines;
+            this.stations = stations;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.outsharded.railwaymapper;
+
+import org.bukkit.scheduler.BukkitRunnable;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+
+/**
+ * Per-world {@link RailSpatialIndex}, shared by everything that snaps
+ * positions onto rail lines: carts, stations and players.
+ *
+ * Rebuilt off the main thread after each change to a world's lines. The
+ * previous index keeps answering until the new one is swapped in, and a
+ * rescan that leaves the geometry as it was keeps the existing index
+ * rather than rebuilding it. Register with
+ * {@link RailwayCache#addChangeListener} to pick up rescans.
+ */
+public class RailIndexCache implements RailwayCache.ChangeListener {
+
+    private final RailwayMapperPlugin plugin;
+    private final RailwayCache cache;
+    private final int cellSize;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Set<String> building = ConcurrentHashMap.newKeySet();
+    private final Set<String> stale = ConcurrentHashMap.newKeySet();
+
+    public RailIndexCache(RailwayMapperPlugin plugin, RailwayCache cache) {
+        this.plugin = plugin;
+        this.cache = cache;
+        this.cellSize = plugin.getConfig().getInt("tracking.index-cell-size", 32);
+    }
+
+    /**
+     * Latest index for a world, or null (scheduling a build) if it has none
+     * yet. Never blocks, so it may briefly be the index of the world's
+     * previous lines after a rescan.
+     */
+    public RailSpatialIndex getIndex(String worldName) {
+        Entry entry = entries.get(worldName);
+        if (entry == null) {
+            schedule(worldName);
+            return null;
+        }
+        return entry.index;
+    }
+
+    /**
+     * Index of exactly these lines (the world's current ones), building it
+     * on the calling thread if it isn't ready. For callers already off the
+     * main thread that need segment numbers to match their line list.
+     */
+    public RailSpatialIndex getIndex(String worldName, List<RailLine> lines) {
+        Entry entry = entries.get(worldName);
+        if (entry != null && entry.lines == lines) {
+            return entry.index;
+        }
+        RailSpatialIndex index;
+        if (entry != null && sameGeometry(entry.lines, lines)) {
+            index = entry.index;
+        } else {
+            long start = System.nanoTime();
+            index = RailSpatialIndex.build(lines, cellSize);
+            plugin.getLogger().fine("Built rail index for " + worldName + ": " + index.getSegmentCount() +
+                                    " segments in " + (System.nanoTime() - start) / 1000000 + "ms");
+        }
+        // Lines changed meanwhile: leave the entry for the rebuild that change triggers
+        if (cache.getRailLines(worldName) == lines) {
+            entries.put(worldName, new Entry(lines, index));
+        }
+        return index;
+    }
+
+    @Override
+    public void onRailLinesChanged(String worldName) {
+        schedule(worldName);
+    }
+
+    // One build per world at a time; changes during a build trigger another pass
+    private void schedule(String worldName) {
+        stale.add(worldName);
+        if (!building.add(worldName)) {
+            return;
+        }
+        new BukkitRunnable() {
+            @Override
+            public void run() {
+                try {
+                    while (stale.remove(worldName)) {
+                        getIndex(worldName, cache.getRailLines(worldName));
+                    }
+                } catch (Exception e) {
+                    plugin.getLogger().log(Level.WARNING, "Error building rail index for " + worldName, e);
+                } finally {
+                    building.remove(worldName);
+                    // Marked stale after the loop's last check
+                    if (stale.contains(worldName)) {
+                        schedule(worldName);
+                    }
+                }
+            }
+        }.runTaskAsynchronously(plugin);
+    }
+
+    // Same lines, networks and vertices in the same order, so segment numbers carry over
+    private static boolean sameGeometry(List<RailLine> a, List<RailLine> b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (int l = 0; l < a.size(); l++) {
+            RailLine x = a.get(l), y = b.get(l);
+            if (x.networkId != y.networkId || x.vertices.size() != y.vertices.size()) {
+                return false;
+            }
+            for (int v = 0; v < x.vertices.size(); v++) {
+                if (!Arrays.equals(x.vertices.get(v), y.vertices.get(v))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static class Entry {
+        final List<RailLine> lines;
+        final RailSpatialIndex index;
+
+        Entry(List<RailLine> lines, RailSpatialIndex index) {
+            this.lines = lines;
+            this.index = index;
+        }
+    }
+}
@@ -1,5 +1,10 @@
 package com.outsharded.railwaymapper;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 public class RailLine {
@@ -35,4 +40,113 @@ public class RailLine {
         map.put("vertices", vertexList);
         return map;
     }
+    
+    /**
+     * Serializes rail lines into the JSON array stored in the rail_networks table
+     */
+    public static String toJson(Collection<RailLine> lines) {
+        // The column is TEXT, so this document has to exist as a String anyway
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (JsonStreamWriter json = new JsonStreamWriter(Channels.newChannel(bytes))) {
+            json.beginArray();
+            for (RailLine line : lines) {
+                line.writeJson(json);
+            }
+            json.endArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toString(StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Writes this line as {@code {"networkId":…,"color":…,"vertices":[[x,y,z],…]}}
+     */
+    public void writeJson(JsonStreamWriter json) throws IOException {
+        json.beginObject();
+        json.name("networkId").value(networkId);
+        json.name("color").value(color);
+        json.name("vertices").beginArray();
+        for (int[] v : vertices) {
+            json.beginArray().value(v[0]).value(v[1]).value(v[2]).endArray();
+        }
+        json.endArray();
+        json.endObject();
+    }
+    
+    /**
+     * Parses the JSON array produced by {@link #toJson(Collection)}.
+     * Unknown keys are skipped; malformed input yields the lines read so far.
+     */
+    public static List<RailLine> fromJson(String json) {
+        List<RailLine> lines = new ArrayList<>();
+        if (json == null) return lines;
+        
+        int i = 0;
+        int len = json.length();
+        while (i < len) {
+            int objStart = json.indexOf('{', i);
+            if (objStart < 0) break;
+            int objEnd = json.indexOf('}', objStart);
+            if (objEnd < 0) break;
+            
+            int networkId = (int) readNumberAfter(json, "\"networkId\"", objStart, objEnd);
+            String color = readStringAfter(json, "\"color\"", objStart, objEnd);
+            RailLine line = new RailLine(networkId, color != null ? color : "#FF6B6B");
+            
+            int verticesKey = json.indexOf("\"vertices\"", objStart);
+            if (verticesKey >= 0 && verticesKey < objEnd) {
+                int[] coords = new int[3];
+                int c = 0;
+                int depth = 0;
+                int p = json.indexOf('[', verticesKey);
+                while (p >= 0 && p < objEnd) {
+                    char ch = json.charAt(p);
+                    if (ch == '[') {
+                        depth++;
+                        c = 0;
+                        p++;
+                    } else if (ch == ']') {
+                        if (depth == 2 && c == 3) {
+                            line.addVertex(coords[0], coords[1], coords[2]);
+                        }
+                        depth--;
+                        p++;
+                        if (depth == 0) break;
+                    } else if (ch == '-' || Character.isDigit(ch)) {
+                        int end = p + 1;
+                        while (end < len && Character.isDigit(json.charAt(end))) end++;
+                        if (c < 3) coords[c] = Integer.parseInt(json, p, end, 10);
+                        c++;
+                        p = end;
+                    } else {
+                        p++;
+                    }
+                }
+            }
+            
+            lines.add(line);
+            i = objEnd + 1;
+        }
+        return lines;
+    }
+    
+    private static long readNumberAfter(String json, String key, int from, int to) {
+        int k = json.indexOf(key, from);
+        if (k < 0 || k > to) return 0;
+        int p = json.indexOf(':', k) + 1;
+        while (p < to && Character.isWhitespace(json.charAt(p))) p++;
+        int end = p;
+        if (end < to && json.charAt(end) == '-') end++;
+        while (end < to && Character.isDigit(json.charAt(end))) end++;
+        return end > p ? Long.parseLong(json, p, end, 10) : 0;
+    }
+    
+    private static String readStringAfter(String json, String key, int from, int to) {
+        int k = json.indexOf(key, from);
+        if (k < 0 || k > to) return null;
+        int start = json.indexOf('"', json.indexOf(':', k)) + 1;
+        int end = json.indexOf('"', start);
+        return start > 0 && end > start && end < to ? json.substring(start, end) : null;
+    }
 }
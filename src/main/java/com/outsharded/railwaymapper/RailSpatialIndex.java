@@ -0,0 +1,282 @@
+package com.outsharded.railwaymapper;
+
+import java.util.*;
+
+/**
+ * Uniform grid over the segments of a world's rail lines (bucketed on x/z).
+ * Segments are numbered consecutively line by line, so segment {@code s}
+ * and {@code s + 1} are neighbours whenever they share a line.
+ * Immutable once built; safe to share between threads.
+ */
+public class RailSpatialIndex {
+
+    private final int cellSize;
+
+    // Per segment: endpoints, owning line index, distance along the line at its start
+    private final int[] x1, y1, z1, x2, y2, z2;
+    private final int[] segmentLine;
+    private final double[] segmentStart;
+
+    // Per line
+    private final int[] lineIds;
+    private final double[] lineLengths;
+    private final int[] lineFirstSegment;
+
+    private final Map<Long, int[]> cells;
+    // Range of non-empty cells
+    private int minCx = Integer.MAX_VALUE, maxCx = Integer.MIN_VALUE;
+    private int minCz = Integer.MAX_VALUE, maxCz = Integer.MIN_VALUE;
+
+    private RailSpatialIndex(int cellSize, int segmentCount, int lineCount) {
+        this.cellSize = cellSize;
+        this.x1 = new int[segmentCount];
+        this.y1 = new int[segmentCount];
+        this.z1 = new int[segmentCount];
+        this.x2 = new int[segmentCount];
+        this.y2 = new int[segmentCount];
+        this.z2 = new int[segmentCount];
+        this.segmentLine = new int[segmentCount];
+        this.segmentStart = new double[segmentCount];
+        this.lineIds = new int[lineCount];
+        this.lineLengths = new double[lineCount];
+        this.lineFirstSegment = new int[lineCount + 1];
+        this.cells = new HashMap<>();
+    }
+
+    public static RailSpatialIndex build(List<RailLine> lines, int cellSize) {
+        int segmentCount = 0;
+        for (RailLine line : lines) {
+            segmentCount += Math.max(0, line.vertices.size() - 1);
+        }
+
+        RailSpatialIndex index = new RailSpatialIndex(Math.max(1, cellSize), segmentCount, lines.size());
+        Map<Long, List<Integer>> buckets = new HashMap<>();
+
+        int seg = 0;
+        for (int l = 0; l < lines.size(); l++) {
+            RailLine line = lines.get(l);
+            index.lineIds[l] = line.networkId;
+            index.lineFirstSegment[l] = seg;
+            double length = 0;
+            for (int v = 1; v < line.vertices.size(); v++) {
+                int[] a = line.vertices.get(v - 1);
+                int[] b = line.vertices.get(v);
+                index.x1[seg] = a[0]; index.y1[seg] = a[1]; index.z1[seg] = a[2];
+                index.x2[seg] = b[0]; index.y2[seg] = b[1]; index.z2[seg] = b[2];
+                index.segmentLine[seg] = l;
+                index.segmentStart[seg] = length;
+                length += index.segmentLength(seg);
+
+                int minCx = Math.floorDiv(Math.min(a[0], b[0]), index.cellSize);
+                int maxCx = Math.floorDiv(Math.max(a[0], b[0]), index.cellSize);
+                int minCz = Math.floorDiv(Math.min(a[2], b[2]), index.cellSize);
+                int maxCz = Math.floorDiv(Math.max(a[2], b[2]), index.cellSize);
+                for (int cx = minCx; cx <= maxCx; cx++) {
+                    for (int cz = minCz; cz <= maxCz; cz++) {
+                        buckets.computeIfAbsent(cellKey(cx, cz), k -> new ArrayList<>()).add(seg);
+                    }
+                }
+                index.minCx = Math.min(index.minCx, minCx);
+                index.maxCx = Math.max(index.maxCx, maxCx);
+                index.minCz = Math.min(index.minCz, minCz);
+                index.maxCz = Math.max(index.maxCz, maxCz);
+                seg++;
+            }
+            index.lineLengths[l] = length;
+        }
+        index.lineFirstSegment[lines.size()] = seg;
+
+        for (Map.Entry<Long, List<Integer>> bucket : buckets.entrySet()) {
+            List<Integer> segs = bucket.getValue();
+            int[] arr = new int[segs.size()];
+            for (int i = 0; i < arr.length; i++) arr[i] = segs.get(i);
+            index.cells.put(bucket.getKey(), arr);
+        }
+        return index;
+    }
+
+    /**
+     * Finds the segment closest to a point, or -1 if none is within maxDistance
+     */
+    public int nearestSegment(double x, double y, double z, double maxDistance) {
+        int minCx = Math.floorDiv((int) Math.floor(x - maxDistance), cellSize);
+        int maxCx = Math.floorDiv((int) Math.floor(x + maxDistance), cellSize);
+        int minCz = Math.floorDiv((int) Math.floor(z - maxDistance), cellSize);
+        int maxCz = Math.floorDiv((int) Math.floor(z + maxDistance), cellSize);
+
+        int best = -1;
+        double bestDist = maxDistance * maxDistance;
+        for (int cx = minCx; cx <= maxCx; cx++) {
+            for (int cz = minCz; cz <= maxCz; cz++) {
+                int[] segs = cells.get(cellKey(cx, cz));
+                if (segs == null) continue;
+                for (int seg : segs) {
+                    double d = distanceSquared(seg, x, y, z);
+                    if (d <= bestDist) {
+                        bestDist = d;
+                        best = seg;
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Finds the segment closest to a point however far away it is, or -1 if
+     * there are none. Searches rings of cells outwards from the point's cell
+     * until no ring left can hold anything closer; if that would mean
+     * visiting more cells than hold segments, checks every segment instead.
+     */
+    public int nearestSegment(double x, double y, double z) {
+        if (cells.isEmpty()) {
+            return -1;
+        }
+        int cx0 = Math.floorDiv((int) Math.floor(x), cellSize);
+        int cz0 = Math.floorDiv((int) Math.floor(z), cellSize);
+        int maxRing = Math.max(Math.max(Math.abs(cx0 - minCx), Math.abs(cx0 - maxCx)),
+                               Math.max(Math.abs(cz0 - minCz), Math.abs(cz0 - maxCz)));
+
+        int best = -1;
+        double bestDist = Double.POSITIVE_INFINITY;
+        long visited = 0;
+        for (int ring = 0; ring <= maxRing; ring++) {
+            // Everything in this ring is at least ring - 1 cells away horizontally
+            double reach = (double) (ring - 1) * cellSize;
+            if (best >= 0 && reach > 0 && reach * reach >= bestDist) {
+                break;
+            }
+            visited += ring == 0 ? 1 : 8L * ring;
+            if (visited > cells.size()) {
+                for (int seg = 0; seg < segmentLine.length; seg++) {
+                    double d = distanceSquared(seg, x, y, z);
+                    if (d < bestDist) {
+                        bestDist = d;
+                        best = seg;
+                    }
+                }
+                return best;
+            }
+            for (int dx = -ring; dx <= ring; dx++) {
+                boolean edgeColumn = dx == -ring || dx == ring;
+                for (int dz = -ring; dz <= ring; dz += edgeColumn ? 1 : Math.max(1, 2 * ring)) {
+                    int[] segs = cells.get(cellKey(cx0 + dx, cz0 + dz));
+                    if (segs == null) continue;
+                    for (int seg : segs) {
+                        double d = distanceSquared(seg, x, y, z);
+                        if (d < bestDist) {
+                            bestDist = d;
+                            best = seg;
+                        }
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Every segment within maxDistance of a point, in ascending order
+     */
+    public int[] segmentsWithin(double x, double y, double z, double maxDistance) {
+        int minCx = Math.floorDiv((int) Math.floor(x - maxDistance), cellSize);
+        int maxCx = Math.floorDiv((int) Math.floor(x + maxDistance), cellSize);
+        int minCz = Math.floorDiv((int) Math.floor(z - maxDistance), cellSize);
+        int maxCz = Math.floorDiv((int) Math.floor(z + maxDistance), cellSize);
+
+        int[] found = new int[8];
+        int count = 0;
+        double maxDistSq = maxDistance * maxDistance;
+        for (int cx = minCx; cx <= maxCx; cx++) {
+            for (int cz = minCz; cz <= maxCz; cz++) {
+                int[] segs = cells.get(cellKey(cx, cz));
+                if (segs == null) continue;
+                for (int seg : segs) {
+                    if (distanceSquared(seg, x, y, z) > maxDistSq) continue;
+                    if (count == found.length) found = Arrays.copyOf(found, count * 2);
+                    found[count++] = seg;
+                }
+            }
+        }
+        // A segment is listed in every cell it crosses
+        return Arrays.stream(found, 0, count).sorted().distinct().toArray();
+    }
+
+    /**
+     * Squared distance from a point to a segment
+     */
+    public double distanceSquared(int seg, double x, double y, double z) {
+        double t = projection(seg, x, y, z);
+        double px = x1[seg] + t * (x2[seg] - x1[seg]) - x;
+        double py = y1[seg] + t * (y2[seg] - y1[seg]) - y;
+        double pz = z1[seg] + t * (z2[seg] - z1[seg]) - z;
+        return px * px + py * py + pz * pz;
+    }
+
+    /**
+     * Distance along the owning line of the point's projection onto a segment
+     */
+    public double offsetAlongLine(int seg, double x, double y, double z) {
+        return segmentStart[seg] + projection(seg, x, y, z) * segmentLength(seg);
+    }
+
+    /**
+     * Whether two segments are adjacent parts of the same line
+     */
+    public boolean sameLine(int a, int b) {
+        return a >= 0 && b >= 0 && a < segmentLine.length && b < segmentLine.length
+            && segmentLine[a] == segmentLine[b];
+    }
+
+    /**
+     * Position in the source list of the line a segment belongs to
+     */
+    public int lineOf(int seg) {
+        return segmentLine[seg];
+    }
+
+    public int lineIdOf(int seg) {
+        return lineIds[segmentLine[seg]];
+    }
+
+    public double segmentLength(int seg) {
+        double dx = x2[seg] - x1[seg];
+        double dy = y2[seg] - y1[seg];
+        double dz = z2[seg] - z1[seg];
+        return Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+
+    /**
+     * First segment of the line at {@code line} (its position in the source list)
+     */
+    public int firstSegmentOf(int line) {
+        return lineFirstSegment[line];
+    }
+
+    public int segmentCountOf(int line) {
+        return lineFirstSegment[line + 1] - lineFirstSegment[line];
+    }
+
+    public int getSegmentCount() {
+        return segmentLine.length;
+    }
+
+    public int getLineCount() {
+        return lineIds.length;
+    }
+
+    // Clamped parameter [0,1] of the point's projection onto a segment
+    private double projection(int seg, double x, double y, double z) {
+        double dx = x2[seg] - x1[seg];
+        double dy = y2[seg] - y1[seg];
+        double dz = z2[seg] - z1[seg];
+        double lenSq = dx * dx + dy * dy + dz * dz;
+        if (lenSq == 0) return 0;
+        double t = ((x - x1[seg]) * dx + (y - y1[seg]) * dy + (z - z1[seg]) * dz) / lenSq;
+        return t < 0 ? 0 : (t > 1 ? 1 : t);
+    }
+
+    private static long cellKey(int cx, int cz) {
+        return ((long) cx << 32) | (cz & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,268 @@
+package com.outsharded.railwaymapper;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Read-through, per-world cache in front of {@link RailwayDatabase}.
+ * Reads are served from memory once loaded; writes go through to the
+ * database and invalidate (or replace) the affected entries.
+ * World geometry is loaded from the {@link RailGraphSnapshot} when it is
+ * still current, avoiding a JSON parse on the first read after a restart.
+ */
+public class RailwayCache {
+
+    private final RailwayMapperPlugin plugin;
+    private final RailwayDatabase database;
+
+    private final int maxWorlds;
+
+    // Access-ordered so the least recently used world is evicted first
+    private final LinkedHashMap<String, WorldEntry> worlds;
+    private List<String> allWorlds;
+    private final RailGraphSnapshot snapshots;
+    private final Set<String> dirtySnapshots = new HashSet<>();
+    private final List<ChangeListener> listeners = new CopyOnWriteArrayList<>();
+
+    // Bumped on every invalidation so a slow load can't overwrite newer data
+    private long generation;
+
+    public RailwayCache(RailwayMapperPlugin plugin, RailwayDatabase database) {
+        this.plugin = plugin;
+        this.database = database;
+        this.snapshots = new RailGraphSnapshot(plugin);
+        this.maxWorlds = Math.max(1, plugin.getConfig().getInt("cache.max-worlds", 16));
+        this.worlds = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, WorldEntry> eldest) {
+                return size() > maxWorlds;
+            }
+        };
+    }
+
+    /**
+     * Get the parsed rail lines of a world, loading on a miss.
+     * The returned list and its lines are shared and must not be modified.
+     */
+    public List<RailLine> getRailLines(String worldName) {
+        while (true) {
+            synchronized (this) {
+                WorldEntry entry = worlds.get(worldName);
+                if (entry != null && entry.lines != null) {
+                    return entry.lines;
+                }
+            }
+            List<RailLine> lines = loadWorld(worldName).lines;
+            // Null only if the entry was invalidated mid-load; just try again
+            if (lines != null) {
+                return lines;
+            }
+        }
+    }
+
+    /**
+     * Get the stations of a world, loading on a miss.
+     * The returned list is shared and must not be modified.
+     */
+    public List<RailwayDatabase.Station> getStations(String worldName) {
+        while (true) {
+            synchronized (this) {
+                WorldEntry entry = worlds.get(worldName);
+                if (entry != null && entry.stations != null) {
+                    return entry.stations;
+                }
+            }
+            List<RailwayDatabase.Station> stations = loadWorld(worldName).stations;
+            if (stations != null) {
+                return stations;
+            }
+        }
+    }
+
+    /**
+     * Fills whatever is missing for a world, preferring the binary snapshot
+     * and falling back to the database when it is absent or stale
+     */
+    private WorldEntry loadWorld(String worldName) {
+        long loadGeneration;
+        boolean needLines;
+        boolean needStations;
+        synchronized (this) {
+            WorldEntry entry = worlds.get(worldName);
+            needLines = entry == null || entry.lines == null;
+            needStations = entry == null || entry.stations == null;
+            loadGeneration = generation;
+        }
+
+        WorldEntry loaded = new WorldEntry();
+        if (needLines) {
+            RailGraphSnapshot.Data snapshot = snapshots.load(worldName);
+            if (snapshot != null && snapshot.stamp.equals(database.getWorldDataStamp(worldName))) {
+                loaded.lines = Collections.unmodifiableList(snapshot.lines);
+                loaded.stations = Collections.unmodifiableList(snapshot.stations);
+                plugin.getLogger().fine("Loaded world " + worldName + " from snapshot");
+            } else {
+                loaded.lines = Collections.unmodifiableList(RailLine.fromJson(database.getRailNetworks(worldName)));
+                synchronized (this) {
+                    dirtySnapshots.add(worldName);
+                }
+            }
+        }
+        if (needStations && loaded.stations == null) {
+            loaded.stations = Collections.unmodifiableList(database.getStations(worldName));
+        }
+
+        synchronized (this) {
+            WorldEntry entry = worlds.get(worldName);
+            if (generation == loadGeneration) {
+                entry = entry(worldName);
+                if (entry.lines == null && loaded.lines != null) {
+                    entry.lines = loaded.lines;
+                }
+                if (entry.stations == null && loaded.stations != null) {
+                    entry.stations = loaded.stations;
+                }
+            }
+            // Whatever another thread already cached takes precedence
+            if (entry != null) {
+                if (entry.lines != null) loaded.lines = entry.lines;
+                if (entry.stations != null) loaded.stations = entry.stations;
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Get every world that has saved rail networks
+     */
+    public List<String> getAllWorlds() {
+        long loadGeneration;
+        synchronized (this) {
+            if (allWorlds != null) {
+                return allWorlds;
+            }
+            loadGeneration = generation;
+        }
+
+        List<String> loaded = Collections.unmodifiableList(database.getAllWorlds());
+
+        synchronized (this) {
+            if (generation == loadGeneration) {
+                allWorlds = loaded;
+            }
+        }
+        return loaded;
+    }
+
+    public void saveRailNetworks(String worldName, Collection<RailLine> lines) {
+        database.saveRailNetworks(worldName, RailLine.toJson(lines));
+        synchronized (this) {
+            generation++;
+            WorldEntry entry = entry(worldName);
+            entry.lines = Collections.unmodifiableList(new ArrayList<>(lines));
+            dirtySnapshots.add(worldName);
+            if (allWorlds != null && !allWorlds.contains(worldName)) {
+                allWorlds = null;
+            }
+        }
+        for (ChangeListener listener : listeners) {
+            listener.onRailLinesChanged(worldName);
+        }
+    }
+
+    public void addStation(String worldName, int x, int y, int z, String name, String createdBy) {
+        database.addStation(worldName, x, y, z, name, createdBy);
+        invalidateStations(worldName);
+        for (ChangeListener listener : listeners) {
+            listener.onStationsChanged(worldName);
+        }
+    }
+
+    public void removeStation(String worldName, int x, int y, int z) {
+        database.removeStation(worldName, x, y, z);
+        invalidateStations(worldName);
+        for (ChangeListener listener : listeners) {
+            listener.onStationsChanged(worldName);
+        }
+    }
+
+    /**
+     * Drop the whole cache (used on reload)
+     */
+    public void invalidateAll() {
+        List<String> cached;
+        synchronized (this) {
+            generation++;
+            cached = new ArrayList<>(worlds.keySet());
+            worlds.clear();
+            allWorlds = null;
+        }
+        for (String worldName : cached) {
+            for (ChangeListener listener : listeners) {
+                listener.onRailLinesChanged(worldName);
+                listener.onStationsChanged(worldName);
+            }
+        }
+    }
+
+    public void addChangeListener(ChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    private synchronized void invalidateStations(String worldName) {
+        generation++;
+        dirtySnapshots.add(worldName);
+        WorldEntry entry = worlds.get(worldName);
+        if (entry != null) {
+            entry.stations = null;
+        }
+    }
+
+    /**
+     * Writes the binary snapshot for a world from the current cached data
+     */
+    public void writeSnapshot(String worldName) {
+        synchronized (this) {
+            dirtySnapshots.remove(worldName);
+        }
+        List<RailLine> lines = getRailLines(worldName);
+        List<RailwayDatabase.Station> stations = getStations(worldName);
+        snapshots.write(worldName, database.getWorldDataStamp(worldName), lines, stations);
+    }
+
+    /**
+     * Writes snapshots for every world changed since its last snapshot (used on shutdown)
+     */
+    public void writeDirtySnapshots() {
+        List<String> dirty;
+        synchronized (this) {
+            dirty = new ArrayList<>(dirtySnapshots);
+        }
+        for (String worldName : dirty) {
+            writeSnapshot(worldName);
+        }
+    }
+
+    private WorldEntry entry(String worldName) {
+        return worlds.computeIfAbsent(worldName, w -> new WorldEntry());
+    }
+
+    /**
+     * Notified after a world's rail lines or stations change through this cache.
+     * Called on whichever thread made the change.
+     */
+    public interface ChangeListener {
+        void onRailLinesChanged(String worldName);
+
+        default void onStationsChanged(String worldName) {
+        }
+    }
+
+    /**
+     * Cached data for a single world; null fields haven't been loaded yet
+     */
+    private static class WorldEntry {
+        List<RailLine> lines;
+        List<RailwayDatabase.Station> stations;
+    }
+}
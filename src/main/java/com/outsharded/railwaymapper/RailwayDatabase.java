@@ -11,6 +11,8 @@ import java.util.logging.Level;
 public class RailwayDatabase {
     
     private final RailwayMapperPlugin plugin;
+    // Shared by every thread. Writers are synchronized so that one thread's
+    // commit or rollback can't take another thread's statements with it.
     private Connection connection;
     
     public RailwayDatabase(RailwayMapperPlugin plugin) {
@@ -95,6 +97,10 @@ public class RailwayDatabase {
             "last_updated TIMESTAMP)"
         );
         
+        // Map-matched position on the rail graph (added after the table first shipped)
+        addColumnIfMissing("minecart_positions", "line_id", "INTEGER DEFAULT -1");
+        addColumnIfMissing("minecart_positions", "line_offset", "REAL DEFAULT 0");
+        
         // Rail networks table (stores serialized RailLine data)
         stmt.execute(
             "CREATE TABLE IF NOT EXISTS rail_networks (" +
@@ -103,6 +109,35 @@ public class RailwayDatabase {
             "updated_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP)"
         );
         
+        // Journey analytics summaries (aggregated, never raw samples)
+        stmt.execute(
+            "CREATE TABLE IF NOT EXISTS journey_stats (" +
+            "world TEXT NOT NULL," +
+            "from_station TEXT NOT NULL," +
+            "to_station TEXT NOT NULL," +
+            "trips INTEGER NOT NULL," +
+            "total_ms INTEGER NOT NULL," +
+            "min_ms INTEGER NOT NULL," +
+            "max_ms INTEGER NOT NULL," +
+            "PRIMARY KEY(world, from_station, to_station))"
+        );
+        
+        stmt.execute(
+            "CREATE TABLE IF NOT EXISTS line_ridership (" +
+            "world TEXT NOT NULL," +
+            "line_id INTEGER NOT NULL," +
+            "riders INTEGER NOT NULL," +
+            "PRIMARY KEY(world, line_id))"
+        );
+        
+        stmt.execute(
+            "CREATE TABLE IF NOT EXISTS hourly_ridership (" +
+            "world TEXT NOT NULL," +
+            "hour INTEGER NOT NULL," +
+            "trips INTEGER NOT NULL," +
+            "PRIMARY KEY(world, hour))"
+        );
+        
         // Create indexes for faster queries
         stmt.execute("CREATE INDEX IF NOT EXISTS idx_rails_world ON rail_blocks(world)");
         stmt.execute("CREATE INDEX IF NOT EXISTS idx_rails_network ON rail_blocks(network_id)");
@@ -111,7 +146,24 @@ public class RailwayDatabase {
         stmt.close();
     }
     
-    public void clearWorldData(String worldName) {
+    private void addColumnIfMissing(String table, String column, String definition) throws SQLException {
+        Statement stmt = connection.createStatement();
+        ResultSet rs = stmt.executeQuery("PRAGMA table_info(" + table + ")");
+        boolean exists = false;
+        while (rs.next()) {
+            if (column.equalsIgnoreCase(rs.getString("name"))) {
+                exists = true;
+                break;
+            }
+        }
+        rs.close();
+        if (!exists) {
+            stmt.execute("ALTER TABLE " + table + " ADD COLUMN " + column + " " + definition);
+        }
+        stmt.close();
+    }
+    
+    public synchronized void clearWorldData(String worldName) {
         try {
             PreparedStatement stmt = connection.prepareStatement(
                 "DELETE FROM rail_blocks WHERE world = ?"
@@ -132,7 +184,7 @@ public class RailwayDatabase {
         }
     }
     
-    public void saveRailNetworks(String worldName, String networkJson) {
+    public synchronized void saveRailNetworks(String worldName, String networkJson) {
         try {
             PreparedStatement stmt = connection.prepareStatement(
                 "INSERT OR REPLACE INTO rail_networks (world, network_json, updated_at) VALUES (?, ?, CURRENT_TIMESTAMP)"
@@ -170,6 +222,41 @@ public class RailwayDatabase {
         }
     }
     
+    /**
+     * Cheap fingerprint of a world's rail lines and stations, used to detect
+     * stale snapshots without reading the network JSON itself
+     */
+    public String getWorldDataStamp(String worldName) {
+        StringBuilder stamp = new StringBuilder();
+        try {
+            PreparedStatement stmt = connection.prepareStatement(
+                "SELECT updated_at, length(network_json) AS len FROM rail_networks WHERE world = ?"
+            );
+            stmt.setString(1, worldName);
+            ResultSet rs = stmt.executeQuery();
+            if (rs.next()) {
+                stamp.append(rs.getString("updated_at")).append('/').append(rs.getLong("len"));
+            }
+            rs.close();
+            stmt.close();
+            
+            stmt = connection.prepareStatement(
+                "SELECT COUNT(*) AS count, MAX(id) AS max_id FROM stations WHERE world = ?"
+            );
+            stmt.setString(1, worldName);
+            rs = stmt.executeQuery();
+            if (rs.next()) {
+                stamp.append('|').append(rs.getInt("count")).append('/').append(rs.getLong("max_id"));
+            }
+            rs.close();
+            stmt.close();
+        } catch (SQLException e) {
+            plugin.getLogger().log(Level.SEVERE, "Error reading data stamp for world " + worldName, e);
+            return null;
+        }
+        return stamp.toString();
+    }
+    
     public List<String> getAllWorlds() {
         List<String> worlds = new ArrayList<>();
         try {
@@ -188,7 +275,7 @@ public class RailwayDatabase {
         return worlds;
     }
     
-    public void saveRailBlocks(List<RailBlock> blocks) {
+    public synchronized void saveRailBlocks(List<RailBlock> blocks) {
         try {
             connection.setAutoCommit(false);
             
@@ -223,7 +310,7 @@ public class RailwayDatabase {
         }
     }
     
-    public void saveNetwork(int networkId, List<RailBlock> rails, String worldName) {
+    public synchronized void saveNetwork(int networkId, List<RailBlock> rails, String worldName) {
         try {
             // Count builders
             Map<String, Integer> builderCounts = new HashMap<>();
@@ -282,15 +369,31 @@ public class RailwayDatabase {
         }
     }
     
-    public void updateMinecartPositions(List<MinecartData> minecarts) {
+    /**
+     * Writes changed minecart positions and deletes despawned carts in a single transaction.
+     * Returns false if it was rolled back.
+     */
+    public synchronized boolean applyMinecartChanges(List<MinecartData> minecarts, Collection<UUID> removedCarts) {
         try {
             connection.setAutoCommit(false);
             
+            if (!removedCarts.isEmpty()) {
+                PreparedStatement delete = connection.prepareStatement(
+                    "DELETE FROM minecart_positions WHERE cart_id = ?"
+                );
+                for (UUID cartId : removedCarts) {
+                    delete.setString(1, cartId.toString());
+                    delete.addBatch();
+                }
+                delete.executeBatch();
+                delete.close();
+            }
+            
             PreparedStatement stmt = connection.prepareStatement(
                 "INSERT OR REPLACE INTO minecart_positions " +
                 "(cart_id, world, x, y, z, velocity_x, velocity_y, velocity_z, " +
-                "occupied, passenger, last_updated) " +
-                "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)"
+                "occupied, passenger, last_updated, line_id, line_offset) " +
+                "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)"
             );
             
             for (MinecartData cart : minecarts) {
@@ -305,6 +408,8 @@ public class RailwayDatabase {
                 stmt.setInt(9, cart.isOccupied() ? 1 : 0);
                 stmt.setString(10, cart.getPassenger());
                 stmt.setLong(11, cart.getTimestamp());
+                stmt.setInt(12, cart.getLineId());
+                stmt.setDouble(13, cart.getLineOffset());
                 stmt.addBatch();
             }
             
@@ -312,9 +417,30 @@ public class RailwayDatabase {
             connection.commit();
             connection.setAutoCommit(true);
             stmt.close();
+            return true;
             
         } catch (SQLException e) {
             plugin.getLogger().log(Level.SEVERE, "Error updating minecart positions", e);
+            try {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            } catch (SQLException ex) {
+                plugin.getLogger().log(Level.SEVERE, "Error rolling back", ex);
+            }
+            return false;
+        }
+    }
+    
+    /**
+     * Removes every stored minecart position; rows left over from a previous run are stale
+     */
+    public synchronized void clearMinecartPositions() {
+        try {
+            Statement stmt = connection.createStatement();
+            stmt.executeUpdate("DELETE FROM minecart_positions");
+            stmt.close();
+        } catch (SQLException e) {
+            plugin.getLogger().log(Level.SEVERE, "Error clearing minecart positions", e);
         }
     }
     
@@ -351,6 +477,33 @@ public class RailwayDatabase {
         return rails;
     }
     
+    /**
+     * Positions ({x, y, z}) of every powered rail in a world
+     */
+    public List<int[]> getPoweredRails(String worldName) {
+        List<int[]> rails = new ArrayList<>();
+        
+        try {
+            PreparedStatement stmt = connection.prepareStatement(
+                "SELECT x, y, z FROM rail_blocks WHERE world = ? AND type = 'POWERED_RAIL'"
+            );
+            stmt.setString(1, worldName);
+            ResultSet rs = stmt.executeQuery();
+            
+            while (rs.next()) {
+                rails.add(new int[]{rs.getInt("x"), rs.getInt("y"), rs.getInt("z")});
+            }
+            
+            rs.close();
+            stmt.close();
+            
+        } catch (SQLException e) {
+            plugin.getLogger().log(Level.SEVERE, "Error loading powered rails", e);
+        }
+        
+        return rails;
+    }
+    
     public List<MinecartData> getActiveMinecarts(String worldName) {
         List<MinecartData> carts = new ArrayList<>();
         
@@ -375,7 +528,9 @@ public class RailwayDatabase {
                     ),
                     rs.getInt("occupied") == 1,
                     rs.getString("passenger"),
-                    rs.getLong("last_updated")
+                    rs.getLong("last_updated"),
+                    rs.getInt("line_id"),
+                    rs.getDouble("line_offset")
                 );
                 carts.add(cart);
             }
@@ -465,7 +620,7 @@ public class RailwayDatabase {
         return count;
     }
     
-    public void assignNetworkColor(int networkId, String color) {
+    public synchronized void assignNetworkColor(int networkId, String color) {
         try {
             PreparedStatement stmt = connection.prepareStatement(
                 "UPDATE networks SET color = ? WHERE id = ?"
@@ -500,7 +655,150 @@ public class RailwayDatabase {
         return "#FF6B6B";
     }
     
-    public void addStation(String worldName, int x, int y, int z, String name, String createdBy) {
+    /**
+     * Adds journey aggregates collected since the last flush onto the stored totals
+     */
+    public synchronized void saveJourneySummaries(Collection<JourneyAnalytics.RouteStats> routes,
+                                     Map<String, Map<Integer, Long>> lineRiders,
+                                     Map<String, long[]> hourlyTrips) {
+        try {
+            connection.setAutoCommit(false);
+            
+            PreparedStatement stmt = connection.prepareStatement(
+                "INSERT INTO journey_stats (world, from_station, to_station, trips, total_ms, min_ms, max_ms) " +
+                "VALUES (?, ?, ?, ?, ?, ?, ?) " +
+                "ON CONFLICT(world, from_station, to_station) DO UPDATE SET " +
+                "trips = trips + excluded.trips, total_ms = total_ms + excluded.total_ms, " +
+                "min_ms = MIN(min_ms, excluded.min_ms), max_ms = MAX(max_ms, excluded.max_ms)"
+            );
+            for (JourneyAnalytics.RouteStats route : routes) {
+                stmt.setString(1, route.world);
+                stmt.setString(2, route.fromStation);
+                stmt.setString(3, route.toStation);
+                stmt.setLong(4, route.trips);
+                stmt.setLong(5, route.totalMs);
+                stmt.setLong(6, route.minMs);
+                stmt.setLong(7, route.maxMs);
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+            stmt.close();
+            
+            stmt = connection.prepareStatement(
+                "INSERT INTO line_ridership (world, line_id, riders) VALUES (?, ?, ?) " +
+                "ON CONFLICT(world, line_id) DO UPDATE SET riders = riders + excluded.riders"
+            );
+            for (Map.Entry<String, Map<Integer, Long>> world : lineRiders.entrySet()) {
+                for (Map.Entry<Integer, Long> line : world.getValue().entrySet()) {
+                    stmt.setString(1, world.getKey());
+                    stmt.setInt(2, line.getKey());
+                    stmt.setLong(3, line.getValue());
+                    stmt.addBatch();
+                }
+            }
+            stmt.executeBatch();
+            stmt.close();
+            
+            stmt = connection.prepareStatement(
+                "INSERT INTO hourly_ridership (world, hour, trips) VALUES (?, ?, ?) " +
+                "ON CONFLICT(world, hour) DO UPDATE SET trips = trips + excluded.trips"
+            );
+            for (Map.Entry<String, long[]> world : hourlyTrips.entrySet()) {
+                long[] hours = world.getValue();
+                for (int hour = 0; hour < hours.length; hour++) {
+                    if (hours[hour] == 0) continue;
+                    stmt.setString(1, world.getKey());
+                    stmt.setInt(2, hour);
+                    stmt.setLong(3, hours[hour]);
+                    stmt.addBatch();
+                }
+            }
+            stmt.executeBatch();
+            stmt.close();
+            
+            connection.commit();
+            connection.setAutoCommit(true);
+            
+        } catch (SQLException e) {
+            plugin.getLogger().log(Level.SEVERE, "Error saving journey summaries", e);
+            try {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            } catch (SQLException ex) {
+                plugin.getLogger().log(Level.SEVERE, "Error rolling back", ex);
+            }
+        }
+    }
+    
+    public List<JourneyAnalytics.RouteStats> getTopJourneys(String worldName, int limit) {
+        List<JourneyAnalytics.RouteStats> routes = new ArrayList<>();
+        try {
+            PreparedStatement stmt = connection.prepareStatement(
+                "SELECT from_station, to_station, trips, total_ms, min_ms, max_ms FROM journey_stats " +
+                "WHERE world = ? ORDER BY trips DESC LIMIT ?"
+            );
+            stmt.setString(1, worldName);
+            stmt.setInt(2, limit);
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                JourneyAnalytics.RouteStats route = new JourneyAnalytics.RouteStats(
+                    worldName, rs.getString("from_station"), rs.getString("to_station"));
+                route.trips = rs.getLong("trips");
+                route.totalMs = rs.getLong("total_ms");
+                route.minMs = rs.getLong("min_ms");
+                route.maxMs = rs.getLong("max_ms");
+                routes.add(route);
+            }
+            rs.close();
+            stmt.close();
+        } catch (SQLException e) {
+            plugin.getLogger().log(Level.SEVERE, "Error loading journey stats", e);
+        }
+        return routes;
+    }
+    
+    public Map<Integer, Long> getLineRidership(String worldName) {
+        Map<Integer, Long> riders = new LinkedHashMap<>();
+        try {
+            PreparedStatement stmt = connection.prepareStatement(
+                "SELECT line_id, riders FROM line_ridership WHERE world = ? ORDER BY riders DESC"
+            );
+            stmt.setString(1, worldName);
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                riders.put(rs.getInt("line_id"), rs.getLong("riders"));
+            }
+            rs.close();
+            stmt.close();
+        } catch (SQLException e) {
+            plugin.getLogger().log(Level.SEVERE, "Error loading line ridership", e);
+        }
+        return riders;
+    }
+    
+    public long[] getHourlyRidership(String worldName) {
+        long[] hours = new long[24];
+        try {
+            PreparedStatement stmt = connection.prepareStatement(
+                "SELECT hour, trips FROM hourly_ridership WHERE world = ?"
+            );
+            stmt.setString(1, worldName);
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                int hour = rs.getInt("hour");
+                if (hour >= 0 && hour < hours.length) {
+                    hours[hour] = rs.getLong("trips");
+                }
+            }
+            rs.close();
+            stmt.close();
+        } catch (SQLException e) {
+            plugin.getLogger().log(Level.SEVERE, "Error loading hourly ridership", e);
+        }
+        return hours;
+    }
+    
+    public synchronized void addStation(String worldName, int x, int y, int z, String name, String createdBy) {
         try {
             PreparedStatement stmt = connection.prepareStatement(
                 "INSERT OR REPLACE INTO stations (world, x, y, z, name, created_by) " +
@@ -519,7 +817,7 @@ public class RailwayDatabase {
         }
     }
     
-    public void removeStation(String worldName, int x, int y, int z) {
+    public synchronized void removeStation(String worldName, int x, int y, int z) {
         try {
             PreparedStatement stmt = connection.prepareStatement(
                 "DELETE FROM stations WHERE world = ? AND x = ? AND y = ? AND z = ?"
@@ -571,7 +869,7 @@ public class RailwayDatabase {
         }
     }
     
-    public void close() {
+    public synchronized void close() {
         try {
             if (connection != null && !connection.isClosed()) {
                 connection.close();
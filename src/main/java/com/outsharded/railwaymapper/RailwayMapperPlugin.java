@@ -1,5 +1,6 @@
 package com.outsharded.railwaymapper;
 
+import org.bukkit.plugin.ServicePriority;
 import org.bukkit.plugin.java.JavaPlugin;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
@@ -17,9 +18,21 @@ public class RailwayMapperPlugin extends JavaPlugin {
     
     private RailwayScanner scanner;
     private MinecartTracker tracker;
+    private MinecartRegistry minecartRegistry;
+    private PositionWriteBehind positionWriter;
+    private JourneyAnalytics analytics;
+    private TrafficHeatmap heatmap;
     private MapGenerator mapGenerator;
+    private MapRegenerator mapRegenerator;
+    private MapWebServer webServer;
+    private LiveCartFeed liveFeed;
+    private RasterTileRenderer rasterRenderer;
+    private RoutePlanner routePlanner;
+    private RailIndexCache railIndexes;
+    private RailwaySnapshots snapshots;
     private CoreProtectIntegration coreProtect;
     private RailwayDatabase database;
+    private RailwayCache cache;
     
     @Override
     public void onEnable() {
@@ -29,6 +42,7 @@ public class RailwayMapperPlugin extends JavaPlugin {
         // Initialize database
         database = new RailwayDatabase(this);
         database.initialize();
+        cache = new RailwayCache(this, database);
         
         // Initialize CoreProtect integration
         coreProtect = new CoreProtectIntegration(this);
@@ -37,9 +51,45 @@ public class RailwayMapperPlugin extends JavaPlugin {
         }
         
         // Initialize components
-        scanner = new RailwayScanner(this, database, coreProtect);
-        tracker = new MinecartTracker(this, database);
-        mapGenerator = new MapGenerator(this, database);
+        scanner = new RailwayScanner(this, database, cache, coreProtect);
+        minecartRegistry = new MinecartRegistry(this);
+        getServer().getPluginManager().registerEvents(minecartRegistry, this);
+        minecartRegistry.seed();
+        CartStore cartStore = new CartStore();
+        positionWriter = new PositionWriteBehind(this, database, cartStore);
+        positionWriter.start();
+        railIndexes = new RailIndexCache(this, cache);
+        cache.addChangeListener(railIndexes);
+        MapMatcher matcher = new MapMatcher(this, railIndexes);
+        analytics = new JourneyAnalytics(this, cache, database);
+        cache.addChangeListener(analytics);
+        analytics.start();
+        heatmap = new TrafficHeatmap(this);
+        cache.addChangeListener(heatmap);
+        heatmap.start();
+        tracker = new MinecartTracker(this, minecartRegistry, cartStore, positionWriter, matcher, analytics, heatmap);
+        mapGenerator = new MapGenerator(this, cache, railIndexes, heatmap);
+        mapRegenerator = new MapRegenerator(this, mapGenerator);
+        routePlanner = new RoutePlanner(this, cache, database, railIndexes);
+        cache.addChangeListener(routePlanner);
+        // Read-only snapshots for other plugins, refreshed as the cache changes, networks are rebuilt and carts move
+        snapshots = new RailwaySnapshots(this, cache, cartStore);
+        cache.addChangeListener(snapshots);
+        routePlanner.setNetworkListener(snapshots::publishNetwork);
+        snapshots.start();
+        getServer().getServicesManager().register(RailwayQueryService.class, snapshots, this, ServicePriority.Normal);
+        routePlanner.start();
+        if (getConfig().getBoolean("raster.enabled", false)) {
+            rasterRenderer = new RasterTileRenderer(this, cache);
+            cache.addChangeListener(rasterRenderer);
+            rasterRenderer.start();
+        }
+        if (getConfig().getBoolean("web-server.enabled", false)) {
+            liveFeed = new LiveCartFeed(this, cartStore);
+            liveFeed.start();
+            webServer = new MapWebServer(this, mapGenerator, cache, liveFeed, rasterRenderer, routePlanner);
+            webServer.start();
+        }
         
         // Register commands
         getCommand("railmap").setExecutor(this);
@@ -52,9 +102,44 @@ public class RailwayMapperPlugin extends JavaPlugin {
     
     @Override
     public void onDisable() {
+        getServer().getServicesManager().unregisterAll(this);
+        if (snapshots != null) {
+            snapshots.shutdown();
+        }
         if (tracker != null) {
             tracker.shutdown();
         }
+        if (minecartRegistry != null) {
+            minecartRegistry.clear();
+        }
+        if (positionWriter != null) {
+            positionWriter.shutdown();
+        }
+        if (analytics != null) {
+            analytics.shutdown();
+        }
+        if (heatmap != null) {
+            heatmap.shutdown();
+        }
+        if (mapRegenerator != null) {
+            mapRegenerator.shutdown();
+        }
+        // Ends open live streams so the server can stop
+        if (liveFeed != null) {
+            liveFeed.shutdown();
+        }
+        if (webServer != null) {
+            webServer.shutdown();
+        }
+        if (rasterRenderer != null) {
+            rasterRenderer.shutdown();
+        }
+        if (routePlanner != null) {
+            routePlanner.shutdown();
+        }
+        if (cache != null) {
+            cache.writeDirtySnapshots();
+        }
         if (database != null) {
             database.close();
         }
@@ -73,6 +158,9 @@ public class RailwayMapperPlugin extends JavaPlugin {
             sender.sendMessage("§e/railmap view §7- View the railway map");
             sender.sendMessage("§e/railmap stats §7- Show railway statistics");
             sender.sendMessage("§e/railmap station §7- Manage stations");
+            sender.sendMessage("§e/railmap analytics [world] §7- Show journey and ridership figures");
+            sender.sendMessage("§e/railmap route <from> <to> §7- Plan a route between two stations");
+            sender.sendMessage("§e/railmap nearest [radius] §7- Find the rail lines nearest you");
             sender.sendMessage("§e/railmap reload §7- Reload configuration");
             return true;
         }
@@ -106,12 +194,29 @@ public class RailwayMapperPlugin extends JavaPlugin {
                 handleStatsCommand(sender);
                 break;
                 
+            case "analytics":
+                handleAnalyticsCommand(sender, args);
+                break;
+                
+            case "route":
+                handleRouteCommand(sender, args);
+                break;
+                
+            case "nearest":
+                if (!(sender instanceof Player)) {
+                    sender.sendMessage("§cThis command can only be used by players.");
+                    return true;
+                }
+                handleNearestCommand((Player) sender, args);
+                break;
+                
             case "reload":
                 if (!sender.hasPermission("railwaymapper.reload")) {
                     sender.sendMessage("§cYou don't have permission to use this command.");
                     return true;
                 }
                 reloadConfig();
+                cache.invalidateAll();
                 sender.sendMessage("§aConfiguration reloaded!");
                 break;
                 
@@ -161,17 +266,21 @@ public class RailwayMapperPlugin extends JavaPlugin {
                         scanner.scanWorld(worldName);
                     }
                     
-                    // Generate map after scan completes
-                    try {
-                        mapGenerator.generateMap(worldName);
-                    } catch (Exception e) {
-                        getLogger().log(Level.WARNING, "Error generating map", e);
-                    }
-                    
                     sender.sendMessage("§aRailway scan complete! Use /railmap stats to see results.");
                 } catch (Exception e) {
                     sender.sendMessage("§cError during scan: " + e.getMessage());
                     getLogger().log(Level.SEVERE, "Error scanning railways", e);
+                    return;
+                }
+                
+                // With auto-update on, the map regenerates once the scan's save marks the world dirty
+                if (!getConfig().getBoolean("map.auto-update", true)) {
+                    try {
+                        mapRegenerator.regenerate(worldName);
+                    } catch (Exception e) {
+                        sender.sendMessage("§cError generating map: " + e.getMessage());
+                        getLogger().log(Level.SEVERE, "Error generating map", e);
+                    }
                 }
             }
         }.runTaskAsynchronously(this);
@@ -205,15 +314,25 @@ public class RailwayMapperPlugin extends JavaPlugin {
                 int x = player.getLocation().getBlockX();
                 int y = player.getLocation().getBlockY();
                 int z = player.getLocation().getBlockZ();
-                database.addStation(player.getWorld().getName(), x, y, z, stationName, player.getName());
+                cache.addStation(player.getWorld().getName(), x, y, z, stationName, player.getName());
                 player.sendMessage("§aStation '§e" + stationName + "§a' added at your location!");
+                // Same reach the schematic diagram uses to make a station a stop
+                double stopDistance = getConfig().getDouble("schematic.station-distance", 8.0);
+                RailSpatialIndex index = railIndexes.getIndex(player.getWorld().getName());
+                int seg = index != null ? index.nearestSegment(x, y, z, stopDistance) : -1;
+                if (seg >= 0) {
+                    player.sendMessage("§7It's a stop on line " + index.lineIdOf(seg) + ".");
+                } else if (index != null) {
+                    player.sendMessage("§eNo scanned rail line within " + Math.round(stopDistance) +
+                        " blocks; it won't be a stop on any line.");
+                }
                 break;
                 
             case "remove":
                 int rx = player.getLocation().getBlockX();
                 int ry = player.getLocation().getBlockY();
                 int rz = player.getLocation().getBlockZ();
-                database.removeStation(player.getWorld().getName(), rx, ry, rz);
+                cache.removeStation(player.getWorld().getName(), rx, ry, rz);
                 player.sendMessage("§aStation removed!");
                 break;
                 
@@ -221,7 +340,7 @@ public class RailwayMapperPlugin extends JavaPlugin {
                 new BukkitRunnable() {
                     @Override
                     public void run() {
-                        java.util.List<RailwayDatabase.Station> stations = database.getStations(player.getWorld().getName());
+                        java.util.List<RailwayDatabase.Station> stations = cache.getStations(player.getWorld().getName());
                         if (stations.isEmpty()) {
                             player.sendMessage("§eNo stations in this world.");
                             return;
@@ -251,10 +370,11 @@ public class RailwayMapperPlugin extends JavaPlugin {
             @Override
             public void run() {
                 try {
-                    mapGenerator.generateMap(player.getWorld().getName());
+                    mapRegenerator.regenerate(player.getWorld().getName());
                     player.sendMessage("§aMap has been updated!");
                 } catch (Exception e) {
                     player.sendMessage("§cError generating map: " + e.getMessage());
+                    getLogger().log(Level.SEVERE, "Error generating map", e);
                 }
             }
         }.runTaskAsynchronously(this);
@@ -270,31 +390,207 @@ public class RailwayMapperPlugin extends JavaPlugin {
                 sender.sendMessage("§eRailway networks: §f" + stats.getNetworkCount());
                 sender.sendMessage("§eActive minecarts: §f" + stats.getActiveMinecarts());
                 sender.sendMessage("§eUnique builders: §f" + stats.getUniqueBuilders());
+                sender.sendMessage("§eStale position samples dropped: §f" + positionWriter.getDroppedSamples());
             }
         }.runTaskAsynchronously(this);
     }
     
+    private void handleAnalyticsCommand(CommandSender sender, String[] args) {
+        String worldName = args.length > 1 ? args[1] :
+            (sender instanceof Player ? ((Player) sender).getWorld().getName() : "world");
+        
+        new BukkitRunnable() {
+            @Override
+            public void run() {
+                // Include trips collected since the last periodic flush
+                analytics.flush();
+                
+                java.util.List<JourneyAnalytics.RouteStats> routes = database.getTopJourneys(worldName, 5);
+                java.util.Map<Integer, Long> lineRiders = database.getLineRidership(worldName);
+                long[] hours = database.getHourlyRidership(worldName);
+                
+                sender.sendMessage("§6=== Journey Analytics: " + worldName + " ===");
+                if (routes.isEmpty()) {
+                    sender.sendMessage("§eNo completed journeys recorded yet.");
+                } else {
+                    sender.sendMessage("§eBusiest routes:");
+                    for (JourneyAnalytics.RouteStats route : routes) {
+                        sender.sendMessage("§f" + route.fromStation + " §7→ §f" + route.toStation +
+                            " §7(" + route.trips + " trips, avg " + (route.getAverageMs() / 1000) + "s, best " +
+                            (route.minMs / 1000) + "s)");
+                    }
+                }
+                
+                if (!lineRiders.isEmpty()) {
+                    java.util.Map.Entry<Integer, Long> busiestLine = lineRiders.entrySet().iterator().next();
+                    sender.sendMessage("§eBusiest line: §fline " + busiestLine.getKey() +
+                        " §7(" + busiestLine.getValue() + " riders)");
+                }
+                
+                int busiestHour = -1;
+                for (int hour = 0; hour < hours.length; hour++) {
+                    if (hours[hour] > 0 && (busiestHour < 0 || hours[hour] > hours[busiestHour])) {
+                        busiestHour = hour;
+                    }
+                }
+                if (busiestHour >= 0) {
+                    sender.sendMessage("§eBusiest hour: §f" + String.format("%02d:00", busiestHour) +
+                        " §7(" + hours[busiestHour] + " trips)");
+                }
+            }
+        }.runTaskAsynchronously(this);
+    }
+    
+    private void handleNearestCommand(Player player, String[] args) {
+        double radius = 64;
+        if (args.length > 1) {
+            try {
+                radius = Math.max(1, Math.min(1024, Double.parseDouble(args[1])));
+            } catch (NumberFormatException e) {
+                player.sendMessage("§cUsage: /railmap nearest [radius]");
+                return;
+            }
+        }
+        RailSpatialIndex index = railIndexes.getIndex(player.getWorld().getName());
+        if (index == null) {
+            player.sendMessage("§eThe rail index for this world is still being built. Try again shortly.");
+            return;
+        }
+        // Vertices are block corners; players stand at block centres
+        double x = player.getLocation().getX() - 0.5;
+        double y = player.getLocation().getY();
+        double z = player.getLocation().getZ() - 0.5;
+        
+        int nearest = index.nearestSegment(x, y, z);
+        if (nearest < 0) {
+            player.sendMessage("§eNo rail lines have been scanned in this world.");
+            return;
+        }
+        player.sendMessage("§6=== Nearest Rail Lines ===");
+        player.sendMessage("§eLine " + index.lineIdOf(nearest) + " §7is " +
+            Math.round(Math.sqrt(index.distanceSquared(nearest, x, y, z))) + " blocks away.");
+        
+        // Every other line within the radius, closest first
+        java.util.Map<Integer, Double> lineDistances = new java.util.HashMap<>();
+        for (int seg : index.segmentsWithin(x, y, z, radius)) {
+            lineDistances.merge(index.lineIdOf(seg), Math.sqrt(index.distanceSquared(seg, x, y, z)), Math::min);
+        }
+        lineDistances.remove(index.lineIdOf(nearest));
+        lineDistances.entrySet().stream()
+            .sorted(java.util.Map.Entry.comparingByValue())
+            .limit(10)
+            .forEach(entry -> player.sendMessage("§eLine " + entry.getKey() + " §7is " +
+                Math.round(entry.getValue()) + " blocks away."));
+    }
+    
+    private void handleRouteCommand(CommandSender sender, String[] args) {
+        String worldName = sender instanceof Player ? ((Player) sender).getWorld().getName() : "world";
+        RoutePlanner.Network network = routePlanner.getNetwork(worldName);
+        if (network == null) {
+            sender.sendMessage("§eThe route planner for " + worldName + " is still being built. Try again shortly.");
+            return;
+        }
+        
+        String[] names = parseRouteNames(network, args);
+        if (names == null) {
+            sender.sendMessage("§cUsage: /railmap route <from> <to> §7(quote names containing spaces)");
+            return;
+        }
+        RailwayDatabase.Station[] ends = new RailwayDatabase.Station[2];
+        for (int i = 0; i < 2; i++) {
+            java.util.List<RailwayDatabase.Station> matches = network.findStations(names[i]);
+            if (matches.isEmpty()) {
+                sender.sendMessage("§cNo station called '" + names[i] + "'.");
+                return;
+            }
+            if (matches.size() > 1) {
+                StringBuilder options = new StringBuilder();
+                for (int m = 0; m < Math.min(5, matches.size()); m++) {
+                    options.append(m > 0 ? "§7, §f" : "").append(matches.get(m).name);
+                }
+                sender.sendMessage("§c'" + names[i] + "' could be: §f" + options +
+                    (matches.size() > 5 ? "§7, ..." : ""));
+                return;
+            }
+            ends[i] = matches.get(0);
+        }
+        
+        RoutePlanner.Route route = network.route(ends[0], ends[1]);
+        if (route == null) {
+            sender.sendMessage("§cNo rail route from " + ends[0].name + " to " + ends[1].name + ".");
+            return;
+        }
+        sender.sendMessage("§6=== Route: " + ends[0].name + " → " + ends[1].name + " ===");
+        for (RoutePlanner.Leg leg : route.legs) {
+            sender.sendMessage("§eLine " + leg.networkId + " §7from §f" + leg.from + " §7to §f" + leg.to +
+                " §7(" + Math.round(leg.length) + " blocks, " + leg.stops + " stops between)");
+        }
+        sender.sendMessage("§7Total: §f" + Math.round(route.length) + " blocks§7, " +
+            Math.max(0, route.legs.size() - 1) + " changes");
+    }
+    
+    /**
+     * Splits a route command's arguments into the from and to station names,
+     * or returns null if it can't. Names may be quoted; unquoted names with
+     * spaces are split at the first point where both halves name a station.
+     */
+    private String[] parseRouteNames(RoutePlanner.Network network, String[] args) {
+        String joined = String.join(" ", java.util.Arrays.copyOfRange(args, 1, args.length));
+        java.util.List<String> words = new java.util.ArrayList<>();
+        java.util.regex.Matcher m = java.util.regex.Pattern.compile("\"([^\"]*)\"|(\\S+)").matcher(joined);
+        boolean quoted = false;
+        while (m.find()) {
+            quoted |= m.group(1) != null;
+            words.add(m.group(1) != null ? m.group(1) : m.group(2));
+        }
+        if (words.size() < 2 || (quoted && words.size() != 2)) {
+            return null;
+        }
+        
+        for (int split = 1; split < words.size() - 1; split++) {
+            String from = String.join(" ", words.subList(0, split));
+            String to = String.join(" ", words.subList(split, words.size()));
+            if (network.findStations(from).size() == 1 && network.findStations(to).size() == 1) {
+                return new String[]{from, to};
+            }
+        }
+        return new String[]{words.get(0), String.join(" ", words.subList(1, words.size()))};
+    }
+    
     private void startMinecartTracking() {
-        int updateInterval = getConfig().getInt("tracking.update-interval", 20); // ticks
         boolean autoUpdateMap = getConfig().getBoolean("map.auto-update", true);
         
+        // The tracker runs every tick and decides per cart whether a sample is due
         new BukkitRunnable() {
             @Override
             public void run() {
-                tracker.updateMinecartPositions();
-                
-                // Auto-update map every N ticks (if tracking enabled and map auto-update enabled)
-                if (autoUpdateMap) {
-                    try {
-                        for (World world : Bukkit.getWorlds()) {
-                            mapGenerator.generateMap(world.getName());
+                tracker.tick();
+            }
+        }.runTaskTimer(this, 20L, 1L);
+        
+        // Regenerate maps in the background when scans, stations or traffic change them
+        if (autoUpdateMap) {
+            cache.addChangeListener(mapRegenerator);
+            heatmap.setTrafficListener(mapRegenerator::markDirty);
+            for (World world : Bukkit.getWorlds()) {
+                mapRegenerator.markDirty(world.getName());
+            }
+            mapRegenerator.start();
+        } else if (webServer != null) {
+            // The web server only serves published files, so publish the scanned worlds once
+            new BukkitRunnable() {
+                @Override
+                public void run() {
+                    for (String worldName : cache.getAllWorlds()) {
+                        try {
+                            mapRegenerator.regenerate(worldName);
+                        } catch (Exception e) {
+                            getLogger().log(Level.SEVERE, "Error generating map for " + worldName, e);
                         }
-                    } catch (Exception e) {
-                        getLogger().log(Level.FINE, "Error auto-updating map", e);
                     }
                 }
-            }
-        }.runTaskTimer(this, 20L, updateInterval);
+            }.runTaskAsynchronously(this);
+        }
     }
     
     public RailwayDatabase getDatabase() {
@@ -0,0 +1,26 @@
+package com.outsharded.railwaymapper;
+
+import java.util.Set;
+
+/**
+ * Read-only access to the mapped railways for other plugins, registered
+ * with Bukkit's {@link org.bukkit.plugin.ServicesManager}:
+ * <pre>
+ *   RailwayQueryService railways = Bukkit.getServicesManager().load(RailwayQueryService.class);
+ *   RailwaySnapshot world = railways.getSnapshot("world");
+ * </pre>
+ * Snapshots are immutable and replaced wholesale when something changes,
+ * so reading one never takes a lock or touches the database.
+ */
+public interface RailwayQueryService {
+
+    /**
+     * The latest snapshot of a world, or null if there's nothing for it yet
+     */
+    RailwaySnapshot getSnapshot(String worldName);
+
+    /**
+     * Worlds that currently have a snapshot
+     */
+    Set<String> getWorlds();
+}
@@ -16,6 +16,7 @@ public class RailwayScanner {
     
     private final RailwayMapperPlugin plugin;
     private final RailwayDatabase database;
+    private final RailwayCache cache;
     private final CoreProtectIntegration coreProtect;
     
     private static final Set<Material> RAIL_TYPES = EnumSet.of(
@@ -32,9 +33,10 @@ public class RailwayScanner {
     };
     
     public RailwayScanner(RailwayMapperPlugin plugin, RailwayDatabase database,
-                          CoreProtectIntegration coreProtect) {
+                          RailwayCache cache, CoreProtectIntegration coreProtect) {
         this.plugin = plugin;
         this.database = database;
+        this.cache = cache;
         this.coreProtect = coreProtect;
     }
     
@@ -62,7 +64,7 @@ public class RailwayScanner {
         
         // Scan 3 chunks around each station
         int stationRadius = plugin.getConfig().getInt("scanning.station-radius", 3);
-        List<RailwayDatabase.Station> stations = database.getStations(worldName);
+        List<RailwayDatabase.Station> stations = cache.getStations(worldName);
         for (RailwayDatabase.Station station : stations) {
             Chunk stationChunk = world.getChunkAt(station.x >> 4, station.z >> 4);
             addChunksInRadius(world, stationChunk.getX(), stationChunk.getZ(), stationRadius, 
@@ -282,29 +284,9 @@ public class RailwayScanner {
     
     private void saveRailNetworks(String worldName, Collection<RailLine> lines) {
         try {
-            // Build JSON for rail lines
-            StringBuilder json = new StringBuilder();
-            json.append("[");
-            int count = 0;
-            for (RailLine line : lines) {
-                if (count > 0) json.append(",");
-                json.append("\n  {\n");
-                json.append("    \"networkId\": ").append(line.networkId).append(",\n");
-                json.append("    \"color\": \"").append(line.color).append("\",\n");
-                json.append("    \"vertices\": [\n");
-                for (int i = 0; i < line.vertices.size(); i++) {
-                    int[] v = line.vertices.get(i);
-                    if (i > 0) json.append(",\n");
-                    json.append("      [").append(v[0]).append(", ").append(v[1]).append(", ").append(v[2]).append("]");
-                }
-                json.append("\n    ]\n");
-                json.append("  }");
-                count++;
-            }
-            json.append("\n]");
-            
-            // Save to database (in plugin folder)
-            database.saveRailNetworks(worldName, json.toString());
+            // Save to database (in plugin folder) and refresh the fast-start snapshot
+            cache.saveRailNetworks(worldName, lines);
+            cache.writeSnapshot(worldName);
             plugin.getLogger().info("Saved " + lines.size() + " rail networks for world '" + worldName + "' to database");
         } catch (Exception e) {
             plugin.getLogger().log(Level.SEVERE, "Error saving rail networks", e);
@@ -0,0 +1,315 @@
+package com.outsharded.railwaymapper;
+
+import com.outsharded.railwaymapper.MinecartTracker.MinecartData;
+
+import java.util.*;
+
+/**
+ * One world's railways at one moment: its rail lines, stations, which
+ * stations can reach each other, and the latest cart positions.
+ * Immutable; safe to keep and read from any thread. A change produces a
+ * new snapshot with a higher version instead of modifying this one.
+ */
+public final class RailwaySnapshot {
+
+    private final String worldName;
+    private final long version;
+    private final List<Line> lines;
+    private final List<Station> stations;
+    // Per station, an id shared by every station it can reach; null until the route network is built
+    private final int[] stationComponents;
+    private final List<Cart> carts;
+    // The cache's lists these were copied from, so an unchanged world can reuse them
+    final List<RailLine> sourceLines;
+    final List<RailwayDatabase.Station> sourceStations;
+
+    private RailwaySnapshot(String worldName, long version, List<Line> lines, List<RailLine> sourceLines,
+                            List<Station> stations, List<RailwayDatabase.Station> sourceStations,
+                            int[] stationComponents, List<Cart> carts) {
+        this.worldName = worldName;
+        this.version = version;
+        this.lines = lines;
+        this.sourceLines = sourceLines;
+        this.stations = stations;
+        this.sourceStations = sourceStations;
+        this.stationComponents = stationComponents;
+        this.carts = carts;
+    }
+
+    /**
+     * A world with nothing mapped yet
+     */
+    static RailwaySnapshot empty(String worldName) {
+        return new RailwaySnapshot(worldName, 0, Collections.emptyList(), Collections.emptyList(),
+                                   Collections.emptyList(), Collections.emptyList(), null,
+                                   Collections.emptyList());
+    }
+
+    /**
+     * The next version, with the cache's current lines and stations.
+     * Reachability is dropped until a network is built from them.
+     */
+    RailwaySnapshot withLayout(List<RailLine> railLines, List<RailwayDatabase.Station> railStations) {
+        if (railLines == sourceLines && railStations == sourceStations) {
+            return this;
+        }
+        List<Line> copiedLines = lines;
+        if (railLines != sourceLines) {
+            copiedLines = new ArrayList<>(railLines.size());
+            for (RailLine line : railLines) {
+                copiedLines.add(new Line(line));
+            }
+            copiedLines = Collections.unmodifiableList(copiedLines);
+        }
+        List<Station> copiedStations = stations;
+        if (railStations != sourceStations) {
+            copiedStations = new ArrayList<>(railStations.size());
+            for (int i = 0; i < railStations.size(); i++) {
+                copiedStations.add(new Station(railStations.get(i), i));
+            }
+            copiedStations = Collections.unmodifiableList(copiedStations);
+        }
+        return new RailwaySnapshot(worldName, version + 1, copiedLines, railLines, copiedStations, railStations,
+                                   null, carts);
+    }
+
+    /**
+     * The next version, with reachability from a route network built from
+     * exactly these lines and stations; unchanged for any other network
+     */
+    RailwaySnapshot withNetwork(RoutePlanner.Network network) {
+        if (network.lines != sourceLines || network.stations != sourceStations || stationComponents != null) {
+            return this;
+        }
+        int[] components = new int[sourceStations.size()];
+        for (int i = 0; i < components.length; i++) {
+            components[i] = network.componentOf(sourceStations.get(i));
+        }
+        return new RailwaySnapshot(worldName, version + 1, lines, sourceLines, stations, sourceStations,
+                                   components, carts);
+    }
+
+    /**
+     * The next version, with new cart positions
+     */
+    RailwaySnapshot withCarts(List<MinecartData> positions) {
+        List<Cart> copied = new ArrayList<>(positions.size());
+        for (MinecartData data : positions) {
+            copied.add(new Cart(data));
+        }
+        return new RailwaySnapshot(worldName, version + 1, lines, sourceLines, stations, sourceStations,
+                                   stationComponents, Collections.unmodifiableList(copied));
+    }
+
+    /**
+     * Whether these are the positions this snapshot already has
+     */
+    boolean hasCarts(List<MinecartData> positions) {
+        if (positions.size() != carts.size()) {
+            return false;
+        }
+        for (int i = 0; i < positions.size(); i++) {
+            Cart cart = carts.get(i);
+            if (!cart.id.equals(positions.get(i).getId()) || cart.timestamp != positions.get(i).getTimestamp()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public String getWorldName() {
+        return worldName;
+    }
+
+    /**
+     * Increases with every new snapshot of this world
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public List<Line> getLines() {
+        return lines;
+    }
+
+    public List<Station> getStations() {
+        return stations;
+    }
+
+    public List<Cart> getCarts() {
+        return carts;
+    }
+
+    /**
+     * The station with exactly this name (ignoring case), or null
+     */
+    public Station findStation(String name) {
+        for (Station station : stations) {
+            if (station.name.equalsIgnoreCase(name)) {
+                return station;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Whether {@link #canReach} and {@link #getReachableStations} can be
+     * answered yet. A change to the lines or stations publishes a snapshot
+     * straight away; reachability follows once the route network for it is built.
+     */
+    public boolean hasReachability() {
+        return stationComponents != null;
+    }
+
+    /**
+     * Whether a cart could get from one station to the other by rail.
+     * Both must be stations of this snapshot.
+     *
+     * @throws IllegalStateException if {@link #hasReachability()} is false
+     */
+    public boolean canReach(Station from, Station to) {
+        int[] components = reachability();
+        return components[indexOf(from)] == components[indexOf(to)];
+    }
+
+    /**
+     * Every station reachable by rail from this one (including itself)
+     *
+     * @throws IllegalStateException if {@link #hasReachability()} is false
+     */
+    public List<Station> getReachableStations(Station from) {
+        int[] components = reachability();
+        int component = components[indexOf(from)];
+        List<Station> reachable = new ArrayList<>();
+        for (int i = 0; i < stations.size(); i++) {
+            if (components[i] == component) {
+                reachable.add(stations.get(i));
+            }
+        }
+        return reachable;
+    }
+
+    private int[] reachability() {
+        if (stationComponents == null) {
+            throw new IllegalStateException("Reachability is not built for this snapshot yet");
+        }
+        return stationComponents;
+    }
+
+    private int indexOf(Station station) {
+        if (station.index >= stations.size() || stations.get(station.index) != station) {
+            throw new IllegalArgumentException("Station is not part of this snapshot");
+        }
+        return station.index;
+    }
+
+    /**
+     * A named station's block position
+     */
+    public static final class Station {
+        private final int x, y, z;
+        private final String name;
+        // Position in the snapshot's station list
+        private final int index;
+
+        Station(RailwayDatabase.Station station, int index) {
+            this.x = station.x;
+            this.y = station.y;
+            this.z = station.z;
+            this.name = station.name;
+            this.index = index;
+        }
+
+        public int getX() { return x; }
+        public int getY() { return y; }
+        public int getZ() { return z; }
+        public String getName() { return name; }
+    }
+
+    /**
+     * A rail line's geometry: vertices where its direction changes, with
+     * continuous track between consecutive ones
+     */
+    public static final class Line {
+        private final int networkId;
+        private final String color;
+        private final int[] vertices; // x, y, z per vertex
+
+        Line(RailLine line) {
+            this.networkId = line.networkId;
+            this.color = line.color;
+            this.vertices = new int[line.vertices.size() * 3];
+            for (int v = 0; v < line.vertices.size(); v++) {
+                System.arraycopy(line.vertices.get(v), 0, vertices, v * 3, 3);
+            }
+        }
+
+        public int getNetworkId() {
+            return networkId;
+        }
+
+        public String getColor() {
+            return color;
+        }
+
+        public int getVertexCount() {
+            return vertices.length / 3;
+        }
+
+        public int getX(int vertex) {
+            return vertices[vertex * 3];
+        }
+
+        public int getY(int vertex) {
+            return vertices[vertex * 3 + 1];
+        }
+
+        public int getZ(int vertex) {
+            return vertices[vertex * 3 + 2];
+        }
+    }
+
+    /**
+     * A cart's latest tracked position
+     */
+    public static final class Cart {
+        private final UUID id;
+        private final double x, y, z;
+        private final double velocityX, velocityY, velocityZ;
+        private final boolean occupied;
+        private final String passenger;
+        private final long timestamp;
+        private final int lineId;
+        private final double lineOffset;
+
+        Cart(MinecartData data) {
+            this.id = data.getId();
+            this.x = data.getX();
+            this.y = data.getY();
+            this.z = data.getZ();
+            this.velocityX = data.getVelocity().getX();
+            this.velocityY = data.getVelocity().getY();
+            this.velocityZ = data.getVelocity().getZ();
+            this.occupied = data.isOccupied();
+            this.passenger = data.getPassenger();
+            this.timestamp = data.getTimestamp();
+            this.lineId = data.getLineId();
+            this.lineOffset = data.getLineOffset();
+        }
+
+        public UUID getId() { return id; }
+        public double getX() { return x; }
+        public double getY() { return y; }
+        public double getZ() { return z; }
+        public double getVelocityX() { return velocityX; }
+        public double getVelocityY() { return velocityY; }
+        public double getVelocityZ() { return velocityZ; }
+        public boolean isOccupied() { return occupied; }
+        public String getPassenger() { return passenger; }
+        public long getTimestamp() { return timestamp; }
+        /** Network ID of the rail line the cart was matched to, or -1 if off the graph */
+        public int getLineId() { return lineId; }
+        /** Distance in blocks along the matched line */
+        public double getLineOffset() { return lineOffset; }
+    }
+}
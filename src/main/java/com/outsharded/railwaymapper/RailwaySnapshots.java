@@ -0,0 +1,162 @@
+package com.outsharded.railwaymapper;
+
+import com.outsharded.railwaymapper.MinecartTracker.MinecartData;
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+import org.bukkit.scheduler.BukkitRunnable;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+
+/**
+ * The {@link RailwayQueryService} handed to other plugins. Keeps the
+ * latest {@link RailwaySnapshot} per world and swaps in a new one
+ * (copy-on-write) whenever a scan or station change reaches the cache,
+ * whenever the route planner finishes the network for it (adding
+ * reachability), and whenever carts have moved, checked every
+ * {@code api.cart-interval} ticks off the main thread. Readers only ever
+ * do a map lookup.
+ * Register with {@link RailwayCache#addChangeListener} to pick up rescans.
+ */
+public class RailwaySnapshots implements RailwayQueryService, RailwayCache.ChangeListener {
+
+    private final RailwayMapperPlugin plugin;
+    private final RailwayCache cache;
+    private final CartStore store;
+    private final long cartInterval;
+
+    // Updated with compute() so layout, network and cart updates to one world don't lose each other's changes
+    private final Map<String, RailwaySnapshot> snapshots = new ConcurrentHashMap<>();
+    // Latest network per world, for a layout that arrives after the network built from it
+    private final Map<String, RoutePlanner.Network> networks = new ConcurrentHashMap<>();
+    private final Set<String> loading = ConcurrentHashMap.newKeySet();
+    private final Set<String> stale = ConcurrentHashMap.newKeySet();
+    private volatile boolean running = true;
+    private BukkitTask task;
+
+    public RailwaySnapshots(RailwayMapperPlugin plugin, RailwayCache cache, CartStore store) {
+        this.plugin = plugin;
+        this.cache = cache;
+        this.store = store;
+        this.cartInterval = Math.max(1L, plugin.getConfig().getLong("api.cart-interval", 20L));
+    }
+
+    public void start() {
+        for (World world : Bukkit.getWorlds()) {
+            schedule(world.getName());
+        }
+        // The store is safe to read from any thread
+        task = new BukkitRunnable() {
+            @Override
+            public void run() {
+                try {
+                    publishCarts();
+                } catch (RuntimeException e) {
+                    plugin.getLogger().log(Level.WARNING, "Error updating cart snapshots", e);
+                }
+            }
+        }.runTaskTimerAsynchronously(plugin, cartInterval, cartInterval);
+    }
+
+    public void shutdown() {
+        running = false;
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+    }
+
+    @Override
+    public RailwaySnapshot getSnapshot(String worldName) {
+        return snapshots.get(worldName);
+    }
+
+    @Override
+    public Set<String> getWorlds() {
+        return Collections.unmodifiableSet(snapshots.keySet());
+    }
+
+    @Override
+    public void onRailLinesChanged(String worldName) {
+        schedule(worldName);
+    }
+
+    @Override
+    public void onStationsChanged(String worldName) {
+        schedule(worldName);
+    }
+
+    // One cache read per world at a time; changes during a read trigger another pass
+    private void schedule(String worldName) {
+        if (!running) {
+            return;
+        }
+        stale.add(worldName);
+        if (!loading.add(worldName)) {
+            return;
+        }
+        new BukkitRunnable() {
+            @Override
+            public void run() {
+                try {
+                    while (running && stale.remove(worldName)) {
+                        publishLayout(worldName, cache.getRailLines(worldName), cache.getStations(worldName));
+                    }
+                } catch (Exception e) {
+                    plugin.getLogger().log(Level.WARNING, "Error updating railway snapshot for " + worldName, e);
+                } finally {
+                    loading.remove(worldName);
+                    // Marked stale after the loop's last check
+                    if (stale.contains(worldName)) {
+                        schedule(worldName);
+                    }
+                }
+            }
+        }.runTaskAsynchronously(plugin);
+    }
+
+    /**
+     * Swaps in a world's new lines and stations, with reachability if their network is already built
+     */
+    private void publishLayout(String worldName, List<RailLine> lines, List<RailwayDatabase.Station> stations) {
+        snapshots.compute(worldName, (w, current) -> {
+            RailwaySnapshot next = (current != null ? current : RailwaySnapshot.empty(w)).withLayout(lines, stations);
+            RoutePlanner.Network network = networks.get(w);
+            return network != null ? next.withNetwork(network) : next;
+        });
+    }
+
+    /**
+     * Adds reachability to the world's snapshot if it has the lines and stations this network was built from
+     */
+    public void publishNetwork(RoutePlanner.Network network) {
+        networks.put(network.worldName, network);
+        snapshots.computeIfPresent(network.worldName, (worldName, current) -> current.withNetwork(network));
+    }
+
+    /**
+     * Swaps in new cart positions for every world whose carts changed
+     */
+    public void publishCarts() {
+        Map<String, List<MinecartData>> byWorld = new HashMap<>();
+        for (String worldName : snapshots.keySet()) {
+            byWorld.put(worldName, new ArrayList<>());
+        }
+        for (MinecartData data : store.snapshot(null)) {
+            byWorld.computeIfAbsent(data.getWorld(), w -> new ArrayList<>()).add(data);
+        }
+        for (Map.Entry<String, List<MinecartData>> entry : byWorld.entrySet()) {
+            List<MinecartData> carts = entry.getValue();
+            snapshots.compute(entry.getKey(), (worldName, current) -> {
+                if (current == null) {
+                    current = RailwaySnapshot.empty(worldName);
+                } else if (current.hasCarts(carts)) {
+                    return current;
+                }
+                return current.withCarts(carts);
+            });
+        }
+    }
+}
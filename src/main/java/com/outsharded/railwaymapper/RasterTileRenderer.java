@@ -0,0 +1,729 @@
+package com.outsharded.railwaymapper;
+
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+
+import javax.imageio.ImageIO;
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+import java.util.stream.Stream;
+
+/**
+ * Renders rail lines and stations into {@value #TILE_PIXELS}-pixel PNG
+ * tiles, for clients that can't draw the vector map. Tiles use the same
+ * quadtree as {@link MapTiler}: level z splits the world's power-of-two
+ * root square into 2^z by 2^z tiles, and lines are simplified to about a
+ * pixel at each level before drawing.
+ *
+ * Tiles render on a dedicated fork-join pool and are cached on disk as
+ * {@code tiles/<world>/<z>/<x>/<y>.png}, least recently used first out once
+ * the cache passes its size limit. When a world changes, only cached tiles
+ * that an added or removed line or station passes through are re-rendered;
+ * the top levels are then filled in ahead of time and deeper tiles are
+ * rendered when first asked for.
+ */
+public class RasterTileRenderer implements RailwayCache.ChangeListener {
+
+    public static final int TILE_PIXELS = 256;
+    private static final int MAX_LEVELS = 12;
+    private static final float LINE_WIDTH = 4f;
+    private static final double STATION_RADIUS = 4;
+    // Pixels beyond a tile's edge whose lines and stations can still draw into it
+    private static final double MARGIN = 6;
+    // Tiles per fork-join task before it splits
+    private static final int BATCH = 4;
+    private static final long FNV_PRIME = 0x100000001B3L;
+
+    private final RailwayMapperPlugin plugin;
+    private final RailwayCache cache;
+    private final File directory;
+    private final int levels;
+    private final int prerenderLevels;
+    private final DiskCache disk;
+    private final ForkJoinPool pool;
+    private final byte[] emptyTile;
+
+    private final Map<String, WorldRaster> worlds = new ConcurrentHashMap<>();
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    // Requested tiles being rendered, so concurrent requests share one render
+    private final Map<File, CompletableFuture<byte[]>> rendering = new ConcurrentHashMap<>();
+
+    public RasterTileRenderer(RailwayMapperPlugin plugin, RailwayCache cache) {
+        this.plugin = plugin;
+        this.cache = cache;
+        this.directory = new File(plugin.getDataFolder(), "tiles");
+        this.levels = Math.max(1, Math.min(MAX_LEVELS, plugin.getConfig().getInt("raster.levels", 8)));
+        this.prerenderLevels = Math.max(0, Math.min(levels, plugin.getConfig().getInt("raster.prerender-levels", 3)));
+        long maxBytes = Math.max(1L, plugin.getConfig().getLong("raster.max-cache-mb", 256L)) * 1024 * 1024;
+        this.disk = new DiskCache(maxBytes);
+        int threads = plugin.getConfig().getInt("raster.threads", 0);
+        this.pool = new ForkJoinPool(threads > 0 ? threads : Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+        this.emptyTile = encode(new BufferedImage(TILE_PIXELS, TILE_PIXELS, BufferedImage.TYPE_INT_ARGB));
+    }
+
+    /**
+     * Indexes the tiles already on disk, then brings every loaded world up to date
+     */
+    public void start() {
+        List<String> loaded = new ArrayList<>();
+        for (World world : Bukkit.getWorlds()) {
+            loaded.add(world.getName());
+        }
+        pool.execute(() -> {
+            disk.load();
+            loaded.forEach(this::schedule);
+        });
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    @Override
+    public void onRailLinesChanged(String worldName) {
+        schedule(worldName);
+    }
+
+    @Override
+    public void onStationsChanged(String worldName) {
+        schedule(worldName);
+    }
+
+    /**
+     * Queues an update for a world; changes arriving before it runs share it
+     */
+    public void schedule(String worldName) {
+        if (pending.add(worldName) && !pool.isShutdown()) {
+            pool.execute(() -> {
+                pending.remove(worldName);
+                try {
+                    update(worldName);
+                } catch (RuntimeException e) {
+                    plugin.getLogger().log(Level.WARNING, "Error updating raster tiles for " + worldName, e);
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns a tile as PNG, rendering it if it isn't cached. Blocks until
+     * it's ready. Returns null for a tile outside the world's quadtree or a
+     * world with nothing on it.
+     */
+    public byte[] getTile(String worldName, int z, int x, int y) throws IOException {
+        if (z < 0 || z >= levels || x < 0 || y < 0 || x >= 1 << z || y >= 1 << z) {
+            return null;
+        }
+        WorldRaster raster = worlds.get(worldName);
+        if (raster == null) {
+            raster = pool.submit(() -> update(worldName)).join();
+            if (raster == null) {
+                return null;
+            }
+        }
+
+        File file = tileFile(worldName, z, x, y);
+        byte[] cached = disk.read(file);
+        if (cached != null) {
+            return cached;
+        }
+        WorldRaster current = raster;
+        CompletableFuture<byte[]> future = rendering.computeIfAbsent(file,
+            f -> CompletableFuture.supplyAsync(() -> renderAndStore(current, z, x, y), pool));
+        try {
+            return future.join();
+        } finally {
+            rendering.remove(file, future);
+        }
+    }
+
+    // Serialized so a world's state and its tiles on disk move forward one version at a time
+    private synchronized WorldRaster update(String worldName) {
+        List<RailLine> lines = cache.getRailLines(worldName);
+        List<RailwayDatabase.Station> stations = cache.getStations(worldName);
+        WorldRaster previous = worlds.get(worldName);
+        if (previous == null && lines.isEmpty() && stations.isEmpty()) {
+            return null;
+        }
+        WorldRaster raster = new WorldRaster(worldName, lines, stations, levels);
+        File worldDir = worldDirectory(worldName);
+        List<int[]> tiles = new ArrayList<>();
+
+        if (previous != null && previous.sameRoot(raster)) {
+            if (previous.digest == raster.digest) {
+                return previous;
+            }
+            for (int[] tile : touchedTiles(previous, raster)) {
+                if (disk.contains(tileFile(worldName, tile[0], tile[1], tile[2]))) {
+                    tiles.add(tile);
+                }
+            }
+        } else if (previous != null || !raster.state().equals(readState(worldDir))) {
+            // New bounds move every tile; a state file that doesn't match means changes while stopped
+            disk.clear(worldDir);
+        }
+
+        worlds.put(worldName, raster);
+        if (previous != null) {
+            synchronized (previous) {
+                previous.retired = true;
+            }
+        }
+
+        for (int z = 0; z < prerenderLevels; z++) {
+            TileTable lineTiles = raster.level(z).lines;
+            TileTable stationTiles = raster.level(z).stations;
+            Set<Integer> keys = new TreeSet<>();
+            for (int key : lineTiles.keys) keys.add(key);
+            for (int key : stationTiles.keys) keys.add(key);
+            int n = 1 << z;
+            for (int key : keys) {
+                int[] tile = {z, key % n, key / n};
+                if (!disk.contains(tileFile(worldName, z, tile[1], tile[2]))) {
+                    tiles.add(tile);
+                }
+            }
+        }
+        if (!tiles.isEmpty()) {
+            pool.invoke(new RenderBatch(raster, tiles, 0, tiles.size()));
+        }
+        writeState(worldDir, raster);
+        return raster;
+    }
+
+    /**
+     * Every tile, at every level, that a line or station present in only one of the two versions passes through
+     */
+    private List<int[]> touchedTiles(WorldRaster before, WorldRaster after) {
+        List<RailLine> lines = new ArrayList<>();
+        collectChanged(before.lineKeys, before.lines, after.lineKeys, lines);
+        collectChanged(after.lineKeys, after.lines, before.lineKeys, lines);
+        List<RailwayDatabase.Station> stations = new ArrayList<>();
+        collectChanged(before.stationKeys, before.stations, after.stationKeys, stations);
+        collectChanged(after.stationKeys, after.stations, before.stationKeys, stations);
+
+        List<int[]> touched = new ArrayList<>();
+        for (int z = 0; z < levels; z++) {
+            int n = 1 << z;
+            double tileSize = (double) after.size / n;
+            double margin = MARGIN * tileSize / TILE_PIXELS;
+            Set<Integer> keys = new HashSet<>();
+            for (RailLine line : lines) {
+                List<int[]> vertices = line.vertices;
+                for (int k = 0; k + 1 < vertices.size(); k++) {
+                    int[] a = vertices.get(k);
+                    int[] b = vertices.get(k + 1);
+                    addRange(keys, n, tileSize, margin, after,
+                             Math.min(a[0], b[0]), Math.min(a[2], b[2]), Math.max(a[0], b[0]), Math.max(a[2], b[2]));
+                }
+            }
+            for (RailwayDatabase.Station s : stations) {
+                addRange(keys, n, tileSize, margin, after, s.x, s.z, s.x, s.z);
+            }
+            for (int key : keys) {
+                touched.add(new int[]{z, key % n, key / n});
+            }
+        }
+        return touched;
+    }
+
+    private static <T> void collectChanged(long[] keys, List<T> items, long[] otherKeys, List<T> changed) {
+        Set<Long> other = new HashSet<>();
+        for (long key : otherKeys) other.add(key);
+        for (int i = 0; i < keys.length; i++) {
+            if (!other.contains(keys[i])) {
+                changed.add(items.get(i));
+            }
+        }
+    }
+
+    private static void addRange(Set<Integer> keys, int n, double tileSize, double margin, WorldRaster raster,
+                                 double minX, double minZ, double maxX, double maxZ) {
+        int tx0 = tileOf(minX - margin - raster.minX, tileSize, n);
+        int tx1 = tileOf(maxX + margin - raster.minX, tileSize, n);
+        int ty0 = tileOf(minZ - margin - raster.minZ, tileSize, n);
+        int ty1 = tileOf(maxZ + margin - raster.minZ, tileSize, n);
+        for (int ty = ty0; ty <= ty1; ty++) {
+            for (int tx = tx0; tx <= tx1; tx++) {
+                keys.add(ty * n + tx);
+            }
+        }
+    }
+
+    private static int tileOf(double offset, double tileSize, int n) {
+        return (int) Math.max(0, Math.min(n - 1, Math.floor(offset / tileSize)));
+    }
+
+    /**
+     * Renders a list of tiles, splitting it across the pool
+     */
+    private class RenderBatch extends RecursiveAction {
+        private final WorldRaster raster;
+        private final List<int[]> tiles;
+        private final int from;
+        private final int to;
+
+        RenderBatch(WorldRaster raster, List<int[]> tiles, int from, int to) {
+            this.raster = raster;
+            this.tiles = tiles;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > BATCH) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new RenderBatch(raster, tiles, from, mid), new RenderBatch(raster, tiles, mid, to));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                int[] tile = tiles.get(i);
+                try {
+                    renderAndStore(raster, tile[0], tile[1], tile[2]);
+                } catch (RuntimeException e) {
+                    plugin.getLogger().log(Level.WARNING, "Error rendering raster tile " + raster.worldName
+                        + " " + tile[0] + "/" + tile[1] + "/" + tile[2], e);
+                }
+            }
+        }
+    }
+
+    private byte[] renderAndStore(WorldRaster raster, int z, int x, int y) {
+        byte[] png = render(raster, z, x, y);
+        File file = tileFile(raster.worldName, z, x, y);
+        // A render that started before an update finished mustn't overwrite the newer tile
+        synchronized (raster) {
+            if (!raster.retired) {
+                if (png == null) {
+                    disk.remove(file);
+                } else {
+                    disk.write(file, png);
+                }
+            }
+        }
+        return png == null ? emptyTile : png;
+    }
+
+    /**
+     * Draws one tile; null if nothing reaches it
+     */
+    private byte[] render(WorldRaster raster, int z, int x, int y) {
+        LevelIndex index = raster.level(z);
+        int n = 1 << z;
+        int key = y * n + x;
+        int[] lineIds = index.lines.get(key);
+        int[] stationIds = index.stations.get(key);
+        if (lineIds.length == 0 && stationIds.length == 0) {
+            return null;
+        }
+
+        double tileSize = (double) raster.size / n;
+        double scale = TILE_PIXELS / tileSize;
+        double originX = raster.minX + x * tileSize;
+        double originZ = raster.minZ + y * tileSize;
+        double margin = MARGIN / scale;
+        double minX = originX - margin, maxX = originX + tileSize + margin;
+        double minZ = originZ - margin, maxZ = originZ + tileSize + margin;
+
+        BufferedImage image = new BufferedImage(TILE_PIXELS, TILE_PIXELS, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_PURE);
+            g.setStroke(new BasicStroke(LINE_WIDTH, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+            for (int l : lineIds) {
+                // Only the runs of segments near the tile, so long lines cost the same as short ones
+                int[] c = index.coords[l];
+                Path2D.Double path = new Path2D.Double();
+                boolean open = false;
+                for (int i = 0; i + 3 < c.length; i += 2) {
+                    if (Math.max(c[i], c[i + 2]) < minX || Math.min(c[i], c[i + 2]) > maxX
+                            || Math.max(c[i + 1], c[i + 3]) < minZ || Math.min(c[i + 1], c[i + 3]) > maxZ) {
+                        open = false;
+                        continue;
+                    }
+                    if (!open) {
+                        path.moveTo((c[i] - originX) * scale, (c[i + 1] - originZ) * scale);
+                        open = true;
+                    }
+                    path.lineTo((c[i + 2] - originX) * scale, (c[i + 3] - originZ) * scale);
+                }
+                g.setColor(raster.colors[l]);
+                g.draw(path);
+            }
+
+            g.setStroke(new BasicStroke(1.5f));
+            for (int s : stationIds) {
+                RailwayDatabase.Station station = raster.stations.get(s);
+                Ellipse2D.Double dot = new Ellipse2D.Double(
+                    (station.x - originX) * scale - STATION_RADIUS, (station.z - originZ) * scale - STATION_RADIUS,
+                    STATION_RADIUS * 2, STATION_RADIUS * 2);
+                g.setColor(Color.WHITE);
+                g.fill(dot);
+                g.setColor(Color.DARK_GRAY);
+                g.draw(dot);
+            }
+        } finally {
+            g.dispose();
+        }
+        return encode(image);
+    }
+
+    private static byte[] encode(BufferedImage image) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+        try {
+            ImageIO.write(image, "png", out);
+        } catch (IOException e) {
+            // Writing to memory
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    private File worldDirectory(String worldName) {
+        return new File(directory, worldName.replaceAll("[^A-Za-z0-9_.-]", "_"));
+    }
+
+    private File tileFile(String worldName, int z, int x, int y) {
+        return new File(worldDirectory(worldName), z + File.separator + x + File.separator + y + ".png");
+    }
+
+    // What the tiles on disk were rendered from, so they can be kept across restarts
+    private String readState(File worldDir) {
+        try {
+            return Files.readString(new File(worldDir, "state").toPath(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            return "";
+        }
+    }
+
+    private void writeState(File worldDir, WorldRaster raster) {
+        try {
+            Files.createDirectories(worldDir.toPath());
+            Files.writeString(new File(worldDir, "state").toPath(), raster.state(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.WARNING, "Failed to save raster tile state for " + raster.worldName, e);
+        }
+    }
+
+    /**
+     * One version of a world as the renderer sees it: the root square, the
+     * lines and stations with a fingerprint each, and per-level indexes
+     * built the first time a level is drawn
+     */
+    private static class WorldRaster {
+        final String worldName;
+        final List<RailLine> lines;
+        final List<RailwayDatabase.Station> stations;
+        final Color[] colors;
+        final long[] lineKeys;
+        final long[] stationKeys;
+        final long digest;
+        final int minX;
+        final int minZ;
+        final int size;
+        private final AtomicReferenceArray<LevelIndex> levels;
+        boolean retired; // guarded by this
+
+        WorldRaster(String worldName, List<RailLine> lines, List<RailwayDatabase.Station> stations, int levels) {
+            this.worldName = worldName;
+            this.lines = lines;
+            this.stations = stations;
+            this.levels = new AtomicReferenceArray<>(levels);
+
+            int minX = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE;
+            int maxX = Integer.MIN_VALUE, maxZ = Integer.MIN_VALUE;
+            colors = new Color[lines.size()];
+            lineKeys = new long[lines.size()];
+            for (int l = 0; l < lines.size(); l++) {
+                RailLine line = lines.get(l);
+                colors[l] = colorOf(line.color);
+                long h = Objects.hashCode(line.color);
+                for (int[] v : line.vertices) {
+                    minX = Math.min(minX, v[0]); maxX = Math.max(maxX, v[0]);
+                    minZ = Math.min(minZ, v[2]); maxZ = Math.max(maxZ, v[2]);
+                    h = (h ^ v[0]) * FNV_PRIME;
+                    h = (h ^ v[2]) * FNV_PRIME;
+                }
+                lineKeys[l] = h;
+            }
+            stationKeys = new long[stations.size()];
+            for (int i = 0; i < stations.size(); i++) {
+                RailwayDatabase.Station s = stations.get(i);
+                minX = Math.min(minX, s.x); maxX = Math.max(maxX, s.x);
+                minZ = Math.min(minZ, s.z); maxZ = Math.max(maxZ, s.z);
+                stationKeys[i] = ((long) s.x << 32) ^ (s.z & 0xFFFFFFFFL);
+            }
+            if (minX > maxX) {
+                minX = minZ = maxX = maxZ = 0;
+            }
+
+            long extent = Math.max((long) maxX - minX, (long) maxZ - minZ) + 1;
+            int size = TILE_PIXELS;
+            while (size < extent && size < (1 << 30)) {
+                size <<= 1;
+            }
+            this.minX = minX;
+            this.minZ = minZ;
+            this.size = size;
+
+            // Order-independent, since the cache doesn't promise a stable order
+            long[] sortedLines = lineKeys.clone();
+            long[] sortedStations = stationKeys.clone();
+            Arrays.sort(sortedLines);
+            Arrays.sort(sortedStations);
+            long digest = 0xCBF29CE484222325L;
+            for (long key : sortedLines) digest = (digest ^ key) * FNV_PRIME;
+            digest = (digest ^ -1L) * FNV_PRIME;
+            for (long key : sortedStations) digest = (digest ^ key) * FNV_PRIME;
+            this.digest = digest;
+        }
+
+        boolean sameRoot(WorldRaster other) {
+            return other.minX == minX && other.minZ == minZ && other.size == size;
+        }
+
+        String state() {
+            return minX + " " + minZ + " " + size + " " + levels.length() + " " + Long.toHexString(digest);
+        }
+
+        LevelIndex level(int z) {
+            LevelIndex index = levels.get(z);
+            if (index == null) {
+                levels.compareAndSet(z, null, new LevelIndex(this, z));
+                index = levels.get(z);
+            }
+            return index;
+        }
+
+        private static Color colorOf(String color) {
+            try {
+                return Color.decode(color);
+            } catch (NumberFormatException | NullPointerException e) {
+                return Color.GRAY;
+            }
+        }
+    }
+
+    /**
+     * One level's simplified lines and which lines and stations reach each tile
+     */
+    private static class LevelIndex {
+        final int[][] coords; // per line, flat x,z pairs
+        final TileTable lines;
+        final TileTable stations;
+
+        LevelIndex(WorldRaster raster, int z) {
+            int n = 1 << z;
+            double tileSize = (double) raster.size / n;
+            double margin = MARGIN * tileSize / TILE_PIXELS;
+
+            coords = new int[raster.lines.size()][];
+            Set<Integer> keys = new HashSet<>();
+            long[] pairs = new long[64];
+            int pairCount = 0;
+            for (int l = 0; l < raster.lines.size(); l++) {
+                List<int[]> vertices = raster.lines.get(l).vertices;
+                int[] kept = MapTiler.simplify(vertices, tileSize / TILE_PIXELS);
+                int[] c = new int[kept.length * 2];
+                for (int k = 0; k < kept.length; k++) {
+                    c[k * 2] = vertices.get(kept[k])[0];
+                    c[k * 2 + 1] = vertices.get(kept[k])[2];
+                }
+                coords[l] = c;
+
+                keys.clear();
+                for (int i = 0; i + 3 < c.length; i += 2) {
+                    addRange(keys, n, tileSize, margin, raster, Math.min(c[i], c[i + 2]), Math.min(c[i + 1], c[i + 3]),
+                             Math.max(c[i], c[i + 2]), Math.max(c[i + 1], c[i + 3]));
+                }
+                for (int key : keys) {
+                    if (pairCount == pairs.length) pairs = Arrays.copyOf(pairs, pairCount * 2);
+                    pairs[pairCount++] = ((long) key << 32) | l;
+                }
+            }
+            lines = new TileTable(pairs, pairCount);
+
+            pairCount = 0;
+            for (int i = 0; i < raster.stations.size(); i++) {
+                RailwayDatabase.Station s = raster.stations.get(i);
+                keys.clear();
+                addRange(keys, n, tileSize, margin, raster, s.x, s.z, s.x, s.z);
+                for (int key : keys) {
+                    if (pairCount == pairs.length) pairs = Arrays.copyOf(pairs, pairCount * 2);
+                    pairs[pairCount++] = ((long) key << 32) | i;
+                }
+            }
+            stations = new TileTable(pairs, pairCount);
+        }
+    }
+
+    /**
+     * Sorted (tile key, item) pairs grouped by tile, as in {@link MapHitIndex}
+     */
+    private static class TileTable {
+        final int[] keys;
+        final int[] start;
+        final int[] entries;
+
+        TileTable(long[] pairs, int count) {
+            Arrays.sort(pairs, 0, count);
+            int cells = 0;
+            for (int i = 0; i < count; i++) {
+                if (i == 0 || (pairs[i] >>> 32) != (pairs[i - 1] >>> 32)) cells++;
+            }
+            keys = new int[cells];
+            start = new int[cells + 1];
+            entries = new int[count];
+            for (int i = 0, cell = -1; i < count; i++) {
+                if (i == 0 || (pairs[i] >>> 32) != (pairs[i - 1] >>> 32)) {
+                    keys[++cell] = (int) (pairs[i] >>> 32);
+                    start[cell] = i;
+                }
+                entries[i] = (int) pairs[i];
+            }
+            start[cells] = count;
+        }
+
+        int[] get(int key) {
+            int cell = Arrays.binarySearch(keys, key);
+            return cell < 0 ? new int[0] : Arrays.copyOfRange(entries, start[cell], start[cell + 1]);
+        }
+    }
+
+    /**
+     * Tile files on disk, tracked in access order so the least recently
+     * used go first when the total passes the limit
+     */
+    private class DiskCache {
+        private final long maxBytes;
+        private final LinkedHashMap<File, Long> entries = new LinkedHashMap<>(256, 0.75f, true);
+        private long totalBytes;
+
+        DiskCache(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        void load() {
+            if (!directory.isDirectory()) {
+                return;
+            }
+            List<Path> files;
+            try (Stream<Path> walk = Files.walk(directory.toPath())) {
+                files = walk.filter(p -> p.toString().endsWith(".png")).toList();
+            } catch (IOException | UncheckedIOException e) {
+                plugin.getLogger().log(Level.WARNING, "Failed to index raster tile cache", e);
+                return;
+            }
+            // Oldest first, so they're the first evicted
+            List<File> sorted = new ArrayList<>();
+            for (Path path : files) sorted.add(path.toFile());
+            sorted.sort(Comparator.comparingLong(File::lastModified));
+            synchronized (this) {
+                for (File file : sorted) {
+                    if (!entries.containsKey(file)) {
+                        add(file, file.length());
+                    }
+                }
+                evict();
+            }
+        }
+
+        synchronized boolean contains(File file) {
+            return entries.containsKey(file);
+        }
+
+        byte[] read(File file) throws IOException {
+            synchronized (this) {
+                if (entries.get(file) == null) {
+                    return null;
+                }
+            }
+            try {
+                return Files.readAllBytes(file.toPath());
+            } catch (NoSuchFileException e) {
+                // Evicted in the meantime
+                remove(file);
+                return null;
+            }
+        }
+
+        void write(File file, byte[] bytes) {
+            try {
+                Path target = file.toPath();
+                Files.createDirectories(target.getParent());
+                Path temp = Files.createTempFile(target.getParent(), "tile", ".tmp");
+                Files.write(temp, bytes);
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.WARNING, "Failed to cache raster tile " + file, e);
+                return;
+            }
+            synchronized (this) {
+                add(file, bytes.length);
+                evict();
+            }
+        }
+
+        synchronized void remove(File file) {
+            Long size = entries.remove(file);
+            if (size != null) {
+                totalBytes -= size;
+            }
+            file.delete();
+        }
+
+        synchronized void clear(File worldDir) {
+            String prefix = worldDir.getPath() + File.separator;
+            Iterator<Map.Entry<File, Long>> it = entries.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<File, Long> entry = it.next();
+                if (entry.getKey().getPath().startsWith(prefix)) {
+                    totalBytes -= entry.getValue();
+                    entry.getKey().delete();
+                    it.remove();
+                }
+            }
+            new File(worldDir, "state").delete();
+        }
+
+        // Called with the lock held
+        private void add(File file, long size) {
+            Long old = entries.put(file, size);
+            totalBytes += size - (old == null ? 0 : old);
+        }
+
+        // Called with the lock held
+        private void evict() {
+            Iterator<Map.Entry<File, Long>> it = entries.entrySet().iterator();
+            while (totalBytes > maxBytes && it.hasNext()) {
+                Map.Entry<File, Long> entry = it.next();
+                totalBytes -= entry.getValue();
+                entry.getKey().delete();
+                it.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,521 @@
+package com.outsharded.railwaymapper;
+
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+import org.bukkit.scheduler.BukkitRunnable;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+
+/**
+ * Plans station-to-station routes over the rail graph.
+ *
+ * Each world's graph has a node at every line vertex, plus one where each
+ * station, and each line end that touches another line, projects onto a
+ * line. Track is weighted by length, more for stretches with few powered
+ * rails; stations are linked to their projections with a transfer penalty,
+ * so changing lines costs something. The graph is turned into a
+ * {@link ContractionHierarchy} off the main thread whenever a world's
+ * lines or stations change, and the previous one keeps answering until
+ * the new one is ready, so a query never waits on a build.
+ * Register with {@link RailwayCache#addChangeListener} to pick up rescans.
+ */
+public class RoutePlanner implements RailwayCache.ChangeListener {
+
+    private final RailwayMapperPlugin plugin;
+    private final RailwayCache cache;
+    private final RailwayDatabase database;
+    private final RailIndexCache indexes;
+    private final double snapDistance;
+    private final double junctionDistance;
+    private final double transferPenalty;
+    private final double unpoweredPenalty;
+    private final double poweredSpacing;
+
+    private final Map<String, Network> networks = new ConcurrentHashMap<>();
+    private final Set<String> building = ConcurrentHashMap.newKeySet();
+    private final Set<String> stale = ConcurrentHashMap.newKeySet();
+    private volatile boolean running = true;
+    private volatile Consumer<Network> networkListener;
+
+    public RoutePlanner(RailwayMapperPlugin plugin, RailwayCache cache, RailwayDatabase database,
+                        RailIndexCache indexes) {
+        this.plugin = plugin;
+        this.cache = cache;
+        this.database = database;
+        this.indexes = indexes;
+        this.snapDistance = plugin.getConfig().getDouble("route.snap-distance", 16.0);
+        this.junctionDistance = plugin.getConfig().getDouble("route.junction-distance", 1.5);
+        this.transferPenalty = plugin.getConfig().getDouble("route.transfer-penalty", 64.0);
+        this.unpoweredPenalty = plugin.getConfig().getDouble("route.unpowered-penalty", 2.0);
+        this.poweredSpacing = Math.max(1, plugin.getConfig().getDouble("route.powered-spacing", 8.0));
+    }
+
+    /**
+     * Starts building the loaded worlds' graphs
+     */
+    public void start() {
+        for (World world : Bukkit.getWorlds()) {
+            schedule(world.getName());
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        networks.clear();
+    }
+
+    /**
+     * Called off the main thread with each newly built network
+     */
+    public void setNetworkListener(Consumer<Network> listener) {
+        this.networkListener = listener;
+    }
+
+    /**
+     * Returns the world's routable network, or null if it isn't ready yet (scheduling a build
+     * if the world is loaded or has been scanned)
+     */
+    public Network getNetwork(String worldName) {
+        Network network = networks.get(worldName);
+        // Only build loaded or scanned worlds; a network is kept for every world built
+        if (network == null && (Bukkit.getWorld(worldName) != null || cache.getAllWorlds().contains(worldName))) {
+            schedule(worldName);
+        }
+        return network;
+    }
+
+    @Override
+    public void onRailLinesChanged(String worldName) {
+        schedule(worldName);
+    }
+
+    @Override
+    public void onStationsChanged(String worldName) {
+        schedule(worldName);
+    }
+
+    // One build per world at a time; changes during a build trigger another pass
+    private void schedule(String worldName) {
+        if (!running) {
+            return;
+        }
+        stale.add(worldName);
+        if (!building.add(worldName)) {
+            return;
+        }
+        new BukkitRunnable() {
+            @Override
+            public void run() {
+                try {
+                    while (running && stale.remove(worldName)) {
+                        long start = System.nanoTime();
+                        Network network = build(worldName);
+                        networks.put(worldName, network);
+                        Consumer<Network> listener = networkListener;
+                        if (listener != null) {
+                            listener.accept(network);
+                        }
+                        plugin.getLogger().fine("Built route planner for " + worldName + ": " +
+                                                network.nodeCount() + " nodes in " +
+                                                (System.nanoTime() - start) / 1000000 + "ms");
+                    }
+                } catch (Exception e) {
+                    plugin.getLogger().log(Level.WARNING, "Error building route planner for " + worldName, e);
+                } finally {
+                    building.remove(worldName);
+                    // Marked stale after the loop's last check
+                    if (stale.contains(worldName)) {
+                        schedule(worldName);
+                    }
+                }
+            }
+        }.runTaskAsynchronously(plugin);
+    }
+
+    private Network build(String worldName) {
+        List<RailLine> lines = cache.getRailLines(worldName);
+        List<RailwayDatabase.Station> stations = cache.getStations(worldName);
+        Set<Long> powered = new HashSet<>();
+        for (int[] rail : database.getPoweredRails(worldName)) {
+            powered.add(blockKey(rail[0], rail[1], rail[2]));
+        }
+        RailSpatialIndex index = indexes.getIndex(worldName, lines);
+        GraphBuilder graph = new GraphBuilder();
+
+        // Station nodes come first, so station i is node i
+        for (RailwayDatabase.Station s : stations) {
+            graph.addNode(s.x, s.y, s.z, -1);
+        }
+
+        // Where stations and line ends meet lines, by segment
+        Map<Integer, List<Attachment>> attachments = new HashMap<>();
+        for (int i = 0; i < stations.size(); i++) {
+            RailwayDatabase.Station s = stations.get(i);
+            attach(index, lines, s.x, s.y, s.z, snapDistance, -1, -1, i, -1, attachments);
+        }
+        for (int l = 0; l < lines.size(); l++) {
+            int segments = index.segmentCountOf(l);
+            if (segments == 0) continue;
+            int first = index.firstSegmentOf(l);
+            List<int[]> vertices = lines.get(l).vertices;
+            int[] start = vertices.get(0);
+            int[] end = vertices.get(vertices.size() - 1);
+            int networkId = lines.get(l).networkId;
+            attach(index, lines, start[0], start[1], start[2], junctionDistance, first, networkId, -1, 2 * l,
+                   attachments);
+            attach(index, lines, end[0], end[1], end[2], junctionDistance, first + segments - 1, networkId, -1,
+                   2 * l + 1, attachments);
+        }
+
+        // Each line as a chain of nodes, with attachment points inserted into their segments
+        int[] endNodes = new int[2 * lines.size()];
+        for (int l = 0; l < lines.size(); l++) {
+            List<int[]> vertices = lines.get(l).vertices;
+            if (vertices.isEmpty()) continue;
+            int[] v0 = vertices.get(0);
+            int previous = graph.addNode(v0[0], v0[1], v0[2], l);
+            endNodes[2 * l] = previous;
+            int first = index.firstSegmentOf(l);
+            for (int k = 1; k < vertices.size(); k++) {
+                int[] a = vertices.get(k - 1);
+                int[] b = vertices.get(k);
+                double length = distance(a[0], a[1], a[2], b[0], b[1], b[2]);
+                double slowdown = slowdown(a, b, powered);
+                double at = 0;
+                List<Attachment> here = attachments.getOrDefault(first + k - 1, Collections.emptyList());
+                here.sort(Comparator.comparingDouble(attachment -> attachment.t));
+                for (Attachment attachment : here) {
+                    if ((attachment.t - at) * length >= 0.5) {
+                        int node = graph.addNode(attachment.x, attachment.y, attachment.z, l);
+                        graph.addEdge(previous, node, (attachment.t - at) * length * slowdown);
+                        previous = node;
+                        at = attachment.t;
+                    }
+                    attachment.node = previous;
+                }
+                if ((1 - at) * length >= 0.5 || at == 0) {
+                    int node = graph.addNode(b[0], b[1], b[2], l);
+                    graph.addEdge(previous, node, (1 - at) * length * slowdown);
+                    previous = node;
+                }
+            }
+            endNodes[2 * l + 1] = previous;
+        }
+
+        for (List<Attachment> onSegment : attachments.values()) {
+            for (Attachment attachment : onSegment) {
+                if (attachment.station >= 0) {
+                    graph.addEdge(attachment.station, attachment.node, attachment.distance + transferPenalty / 2);
+                } else {
+                    graph.addEdge(endNodes[attachment.lineEnd], attachment.node, Math.max(attachment.distance, 1));
+                }
+            }
+        }
+
+        return new Network(worldName, lines, stations, graph);
+    }
+
+    /**
+     * Records where a point meets each line within reach: the nearest point
+     * on that line. Line ends only join lines of their own network, so
+     * parallel tracks that happen to run close together stay apart.
+     */
+    private void attach(RailSpatialIndex index, List<RailLine> lines, int x, int y, int z, double maxDistance,
+                        int ownSegment, int networkId, int station, int lineEnd,
+                        Map<Integer, List<Attachment>> attachments) {
+        Map<Integer, Integer> nearestByLine = new HashMap<>();
+        for (int seg : index.segmentsWithin(x, y, z, maxDistance)) {
+            if (seg == ownSegment || (networkId >= 0 && index.lineIdOf(seg) != networkId)) continue;
+            Integer best = nearestByLine.get(index.lineOf(seg));
+            if (best == null || index.distanceSquared(seg, x, y, z) < index.distanceSquared(best, x, y, z)) {
+                nearestByLine.put(index.lineOf(seg), seg);
+            }
+        }
+        for (Map.Entry<Integer, Integer> entry : nearestByLine.entrySet()) {
+            int seg = entry.getValue();
+            List<int[]> vertices = lines.get(entry.getKey()).vertices;
+            int[] a = vertices.get(seg - index.firstSegmentOf(entry.getKey()));
+            int[] b = vertices.get(seg - index.firstSegmentOf(entry.getKey()) + 1);
+            double dx = b[0] - a[0], dy = b[1] - a[1], dz = b[2] - a[2];
+            double lengthSquared = dx * dx + dy * dy + dz * dz;
+            double t = lengthSquared == 0 ? 0 :
+                Math.max(0, Math.min(1, ((x - a[0]) * dx + (y - a[1]) * dy + (z - a[2]) * dz) / lengthSquared));
+            Attachment attachment = new Attachment();
+            attachment.t = t;
+            attachment.x = (int) Math.round(a[0] + t * dx);
+            attachment.y = (int) Math.round(a[1] + t * dy);
+            attachment.z = (int) Math.round(a[2] + t * dz);
+            attachment.distance = Math.sqrt(index.distanceSquared(seg, x, y, z));
+            attachment.station = station;
+            attachment.lineEnd = lineEnd;
+            attachments.computeIfAbsent(seg, k -> new ArrayList<>()).add(attachment);
+        }
+    }
+
+    /**
+     * Cost multiplier for a stretch of track: 1 with a powered rail every
+     * powered-spacing blocks or more, up to 1 + unpowered-penalty with none
+     */
+    private double slowdown(int[] a, int[] b, Set<Long> powered) {
+        int dx = b[0] - a[0], dy = b[1] - a[1], dz = b[2] - a[2];
+        int steps = Math.max(Math.abs(dx), Math.max(Math.abs(dy), Math.abs(dz)));
+        int count = 0;
+        for (int i = 0; i <= steps; i++) {
+            double f = steps == 0 ? 0 : (double) i / steps;
+            if (powered.contains(blockKey((int) Math.round(a[0] + f * dx), (int) Math.round(a[1] + f * dy),
+                                          (int) Math.round(a[2] + f * dz)))) {
+                count++;
+            }
+        }
+        double boost = Math.min(1, count * poweredSpacing / (steps + 1));
+        return 1 + unpoweredPenalty * (1 - boost);
+    }
+
+    private static long blockKey(int x, int y, int z) {
+        return ((long) (x & 0x3FFFFFF) << 38) | ((long) (z & 0x3FFFFFF) << 12) | (y & 0xFFF);
+    }
+
+    private static double distance(double x1, double y1, double z1, double x2, double y2, double z2) {
+        double dx = x2 - x1, dy = y2 - y1, dz = z2 - z1;
+        return Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+
+    /**
+     * A point on a segment where a station or line end joins it
+     */
+    private static class Attachment {
+        double t;
+        int x, y, z;
+        double distance;
+        int station;  // station index, or -1
+        int lineEnd;  // 2 * line (+1 for its last vertex), or -1
+        int node;
+    }
+
+    private static class GraphBuilder {
+        final List<int[]> nodes = new ArrayList<>(); // {x, y, z, line or -1 for a station}
+        final List<int[]> edges = new ArrayList<>();
+        final List<Double> weights = new ArrayList<>();
+
+        int addNode(int x, int y, int z, int line) {
+            nodes.add(new int[]{x, y, z, line});
+            return nodes.size() - 1;
+        }
+
+        void addEdge(int a, int b, double weight) {
+            edges.add(new int[]{a, b});
+            weights.add(weight);
+        }
+    }
+
+    /**
+     * One world's graph and its contraction hierarchy. Immutable; safe to query from any thread.
+     */
+    public static class Network {
+        public final String worldName;
+        public final List<RailLine> lines;
+        public final List<RailwayDatabase.Station> stations;
+
+        // Per node; stations are nodes 0 .. stations.size() - 1
+        private final int[] nodeX, nodeY, nodeZ;
+        private final int[] nodeLine;
+        // A station boarding at a node, or -1
+        private final int[] nodeStop;
+        private final Map<RailwayDatabase.Station, Integer> stationNodes = new IdentityHashMap<>();
+        // Per station, the smallest node connected to it
+        private final int[] stationComponents;
+        private final ContractionHierarchy hierarchy;
+
+        private Network(String worldName, List<RailLine> lines, List<RailwayDatabase.Station> stations,
+                        GraphBuilder graph) {
+            this.worldName = worldName;
+            this.lines = lines;
+            this.stations = stations;
+            int n = graph.nodes.size();
+            nodeX = new int[n];
+            nodeY = new int[n];
+            nodeZ = new int[n];
+            nodeLine = new int[n];
+            nodeStop = new int[n];
+            Arrays.fill(nodeStop, -1);
+            for (int i = 0; i < n; i++) {
+                int[] node = graph.nodes.get(i);
+                nodeX[i] = node[0];
+                nodeY[i] = node[1];
+                nodeZ[i] = node[2];
+                nodeLine[i] = node[3];
+            }
+            for (int i = 0; i < stations.size(); i++) {
+                stationNodes.put(stations.get(i), i);
+            }
+
+            int[] from = new int[graph.edges.size()];
+            int[] to = new int[from.length];
+            double[] weight = new double[from.length];
+            for (int e = 0; e < from.length; e++) {
+                from[e] = graph.edges.get(e)[0];
+                to[e] = graph.edges.get(e)[1];
+                weight[e] = graph.weights.get(e);
+                if (from[e] < stations.size() && nodeStop[to[e]] < 0) {
+                    nodeStop[to[e]] = from[e];
+                }
+            }
+            stationComponents = components(n, from, to, stations.size());
+            hierarchy = ContractionHierarchy.build(n, from, to, weight);
+        }
+
+        // Union-find over the edges; every component is labelled by its smallest node
+        private static int[] components(int nodeCount, int[] from, int[] to, int stationCount) {
+            int[] parent = new int[nodeCount];
+            for (int i = 0; i < nodeCount; i++) parent[i] = i;
+            for (int e = 0; e < from.length; e++) {
+                int a = root(parent, from[e]), b = root(parent, to[e]);
+                if (a != b) {
+                    parent[Math.max(a, b)] = Math.min(a, b);
+                }
+            }
+            int[] components = new int[stationCount];
+            for (int i = 0; i < stationCount; i++) {
+                components[i] = root(parent, i);
+            }
+            return components;
+        }
+
+        private static int root(int[] parent, int node) {
+            while (parent[node] != node) {
+                parent[node] = parent[parent[node]];
+                node = parent[node];
+            }
+            return node;
+        }
+
+        public int nodeCount() {
+            return nodeX.length;
+        }
+
+        /**
+         * A number shared by every station reachable from this one, and by no other
+         */
+        public int componentOf(RailwayDatabase.Station station) {
+            Integer node = stationNodes.get(station);
+            if (node == null) {
+                throw new IllegalArgumentException("Station is not part of this network");
+            }
+            return stationComponents[node];
+        }
+
+        /**
+         * Stations matching a name: the exact match (ignoring case) if there
+         * is one, otherwise every station whose name starts with it
+         */
+        public List<RailwayDatabase.Station> findStations(String name) {
+            List<RailwayDatabase.Station> prefixed = new ArrayList<>();
+            String lower = name.toLowerCase(Locale.ROOT);
+            for (RailwayDatabase.Station s : stations) {
+                if (s.name.equalsIgnoreCase(name)) {
+                    return Collections.singletonList(s);
+                }
+                if (s.name.toLowerCase(Locale.ROOT).startsWith(lower)) {
+                    prefixed.add(s);
+                }
+            }
+            return prefixed;
+        }
+
+        /**
+         * Cheapest route between two of this network's stations, or null if they aren't connected
+         */
+        public Route route(RailwayDatabase.Station from, RailwayDatabase.Station to) {
+            Integer source = stationNodes.get(from);
+            Integer target = stationNodes.get(to);
+            if (source == null || target == null) {
+                throw new IllegalArgumentException("Station is not part of this network");
+            }
+            ContractionHierarchy.Path path = hierarchy.query(source, target);
+            return path == null ? null : toRoute(path);
+        }
+
+        // Splits the node path into legs at the stations it passes through;
+        // junctions between lines of one network don't start a new leg
+        private Route toRoute(ContractionHierarchy.Path path) {
+            List<Leg> legs = new ArrayList<>();
+            List<int[]> positions = new ArrayList<>();
+            String boardAt = null;
+            int networkId = -1;
+            double length = 0;
+            Set<String> stops = new HashSet<>();
+            int previous = -1;
+            for (int node : path.nodes) {
+                if (nodeLine[node] < 0) {
+                    String station = stations.get(node).name;
+                    if (previous >= 0) {
+                        stops.remove(boardAt);
+                        stops.remove(station);
+                        legs.add(new Leg(networkId, lines.get(nodeLine[previous]).color, boardAt, station,
+                                         stops.size(), length));
+                    }
+                    boardAt = station;
+                    previous = -1;
+                    continue;
+                }
+                positions.add(new int[]{nodeX[node], nodeY[node], nodeZ[node]});
+                if (previous < 0) {
+                    networkId = lines.get(nodeLine[node]).networkId;
+                    length = 0;
+                    stops.clear();
+                } else {
+                    length += distance(nodeX[previous], nodeY[previous], nodeZ[previous],
+                                       nodeX[node], nodeY[node], nodeZ[node]);
+                }
+                if (nodeStop[node] >= 0) {
+                    stops.add(stations.get(nodeStop[node]).name);
+                }
+                previous = node;
+            }
+            return new Route(path.cost, legs, positions);
+        }
+    }
+
+    /**
+     * A planned route: its weighted cost, the legs ridden, and the block positions passed through
+     */
+    public static class Route {
+        public final double cost;
+        public final double length;
+        public final List<Leg> legs;
+        public final List<int[]> path;
+
+        Route(double cost, List<Leg> legs, List<int[]> path) {
+            this.cost = cost;
+            this.legs = Collections.unmodifiableList(legs);
+            this.path = Collections.unmodifiableList(path);
+            double total = 0;
+            for (Leg leg : legs) total += leg.length;
+            this.length = total;
+        }
+    }
+
+    /**
+     * A ride on one network between two stations, passing {@code stops} others
+     */
+    public static class Leg {
+        public final int networkId;
+        public final String color;
+        public final String from;
+        public final String to;
+        public final int stops;
+        public final double length;
+
+        Leg(int networkId, String color, String from, String to, int stops, double length) {
+            this.networkId = networkId;
+            this.color = color;
+            this.from = from;
+            this.to = to;
+            this.stops = stops;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,425 @@
+package com.outsharded.railwaymapper;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Schematic (tube-map style) layout of a world's rail network: stops
+ * evenly spaced and every line drawn at a multiple of 45 degrees.
+ *
+ * The graph has a node per station and per line end, and an edge between
+ * consecutive stops along each line; a station within
+ * {@code schematic.station-distance} blocks of a line is a stop on it, so
+ * an interchange joins the lines it serves. Each connected component is
+ * laid out on its own. Every edge wants to be one spacing long in the
+ * octilinear direction nearest its real one, and every node is weakly
+ * pulled towards its real position (shrunk around the component's centre
+ * to the same scale). A Gauss-Seidel relaxation runs until the layout
+ * settles or the time budget is spent, then nodes are snapped to a grid
+ * and each edge is routed with at most one bend.
+ *
+ * Layouts are cached per component under a fingerprint of its nodes and
+ * edges, so a change only re-lays out the components it touches. Nodes
+ * that survive a change start from where they were, keeping the diagram
+ * stable.
+ *
+ * Published as JSON, in the same coordinate space as the geographic map:
+ * <pre>
+ *   {"spacing":s,
+ *    "lines":[{"l":lineIndex,"c":[x,z,x,z,...]}],
+ *    "stations":[{"x":x,"z":z,"name":"..."}]}
+ * </pre>
+ */
+public class SchematicLayout {
+
+    private static final double ANCHOR_WEIGHT = 0.1;
+    private static final int MIN_ITERATIONS = 5;
+    private static final int MAX_ITERATIONS = 2000;
+    // Stop relaxing once no node moves more than this fraction of the spacing
+    private static final double SETTLED = 0.005;
+
+    private final RailIndexCache indexes;
+    private final boolean enabled;
+    private final int spacing;
+    private final double stationDistance;
+    private final long budgetNanos;
+
+    // Per world, the last layout of each component by fingerprint
+    private final Map<String, Map<Long, Map<String, int[]>>> layouts = new ConcurrentHashMap<>();
+
+    public SchematicLayout(RailwayMapperPlugin plugin, RailIndexCache indexes) {
+        this.indexes = indexes;
+        this.enabled = plugin.getConfig().getBoolean("schematic.enabled", true);
+        this.spacing = Math.max(8, plugin.getConfig().getInt("schematic.spacing", 64)) & ~1;
+        this.stationDistance = Math.max(1.0, plugin.getConfig().getDouble("schematic.station-distance", 8.0));
+        this.budgetNanos = Math.max(10L, plugin.getConfig().getLong("schematic.time-budget-ms", 500L)) * 1_000_000L;
+    }
+
+    /**
+     * Lays out a world and publishes the diagram; returns its file name, or
+     * null if schematic layout is disabled. Call from one thread at a time.
+     */
+    public String publish(MapPublisher publisher, String worldName, List<RailLine> lines,
+                          List<RailwayDatabase.Station> stations) throws IOException {
+        if (!enabled) {
+            return null;
+        }
+        long deadline = System.nanoTime() + budgetNanos;
+        Graph graph = new Graph(lines, indexes.getIndex(worldName, lines), stations, stationDistance);
+
+        Map<Long, Map<String, int[]>> previous = layouts.getOrDefault(worldName, Map.of());
+        Map<String, int[]> placed = new HashMap<>();
+        for (Map<String, int[]> component : previous.values()) {
+            placed.putAll(component);
+        }
+
+        // Smallest first, so a huge component can't starve the rest of the budget
+        List<Component> components = graph.components();
+        components.sort(Comparator.comparingInt(c -> c.nodes.length));
+        Map<Long, Map<String, int[]>> next = new HashMap<>();
+        Map<String, int[]> positions = new HashMap<>();
+        for (Component component : components) {
+            long fingerprint = graph.fingerprint(component);
+            Map<String, int[]> layout = previous.get(fingerprint);
+            if (layout == null) {
+                layout = layoutComponent(graph, component, placed, deadline);
+            }
+            next.put(fingerprint, layout);
+            positions.putAll(layout);
+        }
+        layouts.put(worldName, next);
+
+        return publisher.publishUnlisted(worldName + "_schematic.json", out -> write(out, graph, positions));
+    }
+
+    private Map<String, int[]> layoutComponent(Graph graph, Component component, Map<String, int[]> placed,
+                                               long deadline) {
+        int[] nodes = component.nodes;
+        int n = nodes.length;
+        Map<Integer, Integer> local = new HashMap<>();
+        for (int i = 0; i < n; i++) local.put(nodes[i], i);
+
+        // Shrink the real layout around its centre so a typical edge is one spacing long
+        double cx = 0, cz = 0;
+        for (int node : nodes) {
+            cx += graph.x.get(node);
+            cz += graph.z.get(node);
+        }
+        cx /= n;
+        cz /= n;
+        List<int[]> edges = component.edges;
+        List<Double> lengths = new ArrayList<>();
+        for (int[] edge : edges) {
+            lengths.add(Math.hypot(graph.x.get(edge[1]) - graph.x.get(edge[0]),
+                                   graph.z.get(edge[1]) - graph.z.get(edge[0])));
+        }
+        Collections.sort(lengths);
+        double median = lengths.isEmpty() ? 0 : lengths.get(lengths.size() / 2);
+        double shrink = median > 0 ? spacing / median : 1;
+
+        double[] ax = new double[n], az = new double[n], px = new double[n], pz = new double[n];
+        for (int i = 0; i < n; i++) {
+            int node = nodes[i];
+            ax[i] = cx + (graph.x.get(node) - cx) * shrink;
+            az[i] = cz + (graph.z.get(node) - cz) * shrink;
+            int[] old = placed.get(graph.keys.get(node));
+            px[i] = old != null ? old[0] : ax[i];
+            pz[i] = old != null ? old[1] : az[i];
+        }
+
+        // Per node: neighbour, then the offset it wants to that neighbour
+        List<List<int[]>> adjacent = new ArrayList<>();
+        for (int i = 0; i < n; i++) adjacent.add(new ArrayList<>());
+        for (int[] edge : edges) {
+            int[] dir = graph.direction(edge[0], edge[1]);
+            int a = local.get(edge[0]), b = local.get(edge[1]);
+            adjacent.get(a).add(new int[]{b, dir[0] * spacing, dir[1] * spacing});
+            adjacent.get(b).add(new int[]{a, -dir[0] * spacing, -dir[1] * spacing});
+        }
+
+        for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++) {
+            double moved = 0;
+            for (int i = 0; i < n; i++) {
+                double sx = ANCHOR_WEIGHT * ax[i], sz = ANCHOR_WEIGHT * az[i], weight = ANCHOR_WEIGHT;
+                for (int[] neighbour : adjacent.get(i)) {
+                    sx += px[neighbour[0]] - neighbour[1];
+                    sz += pz[neighbour[0]] - neighbour[2];
+                    weight++;
+                }
+                double x = sx / weight, z = sz / weight;
+                moved = Math.max(moved, Math.max(Math.abs(x - px[i]), Math.abs(z - pz[i])));
+                px[i] = x;
+                pz[i] = z;
+            }
+            if (iteration + 1 >= MIN_ITERATIONS && (moved < SETTLED * spacing || System.nanoTime() > deadline)) {
+                break;
+            }
+        }
+
+        // Busiest nodes pick their grid points first; the rest take the nearest free one
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) order[i] = i;
+        Arrays.sort(order, Comparator.comparingInt(i -> -adjacent.get(i).size()));
+        int grid = spacing / 2;
+        Set<Long> taken = new HashSet<>();
+        Map<String, int[]> layout = new HashMap<>();
+        for (int i : order) {
+            int[] cell = nearestFree(taken, px[i] / grid, pz[i] / grid);
+            layout.put(graph.keys.get(nodes[i]), new int[]{cell[0] * grid, cell[1] * grid});
+        }
+        return layout;
+    }
+
+    // Searches rings of grid cells outwards from the rounded position
+    private static int[] nearestFree(Set<Long> taken, double x, double z) {
+        int gx = (int) Math.round(x), gz = (int) Math.round(z);
+        for (int r = 0; ; r++) {
+            int[] best = null;
+            double bestDist = Double.MAX_VALUE;
+            for (int dx = -r; dx <= r; dx++) {
+                for (int dz = -r; dz <= r; dz++) {
+                    if (Math.max(Math.abs(dx), Math.abs(dz)) != r) continue;
+                    if (taken.contains(cellKey(gx + dx, gz + dz))) continue;
+                    double d = (gx + dx - x) * (gx + dx - x) + (gz + dz - z) * (gz + dz - z);
+                    if (d < bestDist) {
+                        bestDist = d;
+                        best = new int[]{gx + dx, gz + dz};
+                    }
+                }
+            }
+            if (best != null) {
+                taken.add(cellKey(best[0], best[1]));
+                return best;
+            }
+        }
+    }
+
+    private static long cellKey(int x, int z) {
+        return ((long) x << 32) | (z & 0xFFFFFFFFL);
+    }
+
+    private void write(WritableByteChannel out, Graph graph, Map<String, int[]> positions) throws IOException {
+        try (JsonStreamWriter json = new JsonStreamWriter(out)) {
+            json.beginObject();
+            json.name("spacing").value(spacing);
+            json.name("lines").beginArray();
+            for (int l = 0; l < graph.stops.size(); l++) {
+                int[] stops = graph.stops.get(l);
+                if (stops.length < 2) continue;
+                json.beginObject();
+                json.name("l").value(l);
+                json.name("c").beginArray();
+                int[] a = positions.get(graph.keys.get(stops[0]));
+                json.value(a[0]).value(a[1]);
+                for (int k = 1; k < stops.length; k++) {
+                    int[] b = positions.get(graph.keys.get(stops[k]));
+                    int[] bend = bend(a, b, graph.direction(stops[k - 1], stops[k]));
+                    if (bend != null) {
+                        json.value(bend[0]).value(bend[1]);
+                    }
+                    json.value(b[0]).value(b[1]);
+                    a = b;
+                }
+                json.endArray();
+                json.endObject();
+            }
+            json.endArray();
+
+            json.name("stations").beginArray();
+            for (int node = 0; node < graph.keys.size(); node++) {
+                String name = graph.names.get(node);
+                if (name == null) continue;
+                int[] p = positions.get(graph.keys.get(node));
+                json.beginObject();
+                json.name("x").value(p[0]);
+                json.name("z").value(p[1]);
+                json.name("name").value(name);
+                json.endObject();
+            }
+            json.endArray();
+            json.endObject();
+        }
+    }
+
+    /**
+     * Corner that splits a to b into a diagonal and a straight part, or null
+     * if it's octilinear already. The part matching the edge's real
+     * direction comes first.
+     */
+    private static int[] bend(int[] a, int[] b, int[] direction) {
+        int dx = b[0] - a[0], dz = b[1] - a[1];
+        int diagonal = Math.min(Math.abs(dx), Math.abs(dz));
+        if (diagonal == 0 || Math.abs(dx) == Math.abs(dz)) {
+            return null;
+        }
+        int ddx = Integer.signum(dx) * diagonal, ddz = Integer.signum(dz) * diagonal;
+        boolean diagonalFirst = direction[0] != 0 && direction[1] != 0;
+        return diagonalFirst ? new int[]{a[0] + ddx, a[1] + ddz} : new int[]{b[0] - ddx, b[1] - ddz};
+    }
+
+    /**
+     * Stops along every line: stations near it in order, plus its ends
+     * where no station is
+     */
+    private static class Graph {
+        final List<String> keys = new ArrayList<>();
+        final List<String> names = new ArrayList<>(); // null for line ends
+        final List<Integer> x = new ArrayList<>();
+        final List<Integer> z = new ArrayList<>();
+        final List<int[]> edges = new ArrayList<>();
+        final List<int[]> stops = new ArrayList<>(); // per line, node ids in order
+        private final Map<String, Integer> ids = new HashMap<>();
+
+        Graph(List<RailLine> lines, RailSpatialIndex index, List<RailwayDatabase.Station> stations,
+              double stationDistance) {
+            List<List<double[]>> found = new ArrayList<>();
+            for (int l = 0; l < lines.size(); l++) found.add(new ArrayList<>());
+
+            for (RailwayDatabase.Station s : stations) {
+                int node = node("S" + s.x + "," + s.y + "," + s.z, s.name, s.x, s.z);
+                // The closest segment of each line in reach
+                Map<Integer, Integer> nearest = new HashMap<>();
+                for (int seg : index.segmentsWithin(s.x, s.y, s.z, stationDistance)) {
+                    nearest.merge(index.lineOf(seg), seg, (a, b) ->
+                        index.distanceSquared(a, s.x, s.y, s.z) <= index.distanceSquared(b, s.x, s.y, s.z) ? a : b);
+                }
+                for (Map.Entry<Integer, Integer> entry : nearest.entrySet()) {
+                    found.get(entry.getKey()).add(
+                        new double[]{index.offsetAlongLine(entry.getValue(), s.x, s.y, s.z), node});
+                }
+            }
+
+            Set<Long> seen = new HashSet<>();
+            for (int l = 0; l < lines.size(); l++) {
+                List<int[]> vertices = lines.get(l).vertices;
+                List<double[]> along = found.get(l);
+                if (vertices.size() < 2) {
+                    stops.add(new int[0]);
+                    continue;
+                }
+                along.sort(Comparator.comparingDouble(stop -> stop[0]));
+                double length = 0;
+                for (int v = 1; v < vertices.size(); v++) {
+                    int[] a = vertices.get(v - 1), b = vertices.get(v);
+                    length += Math.sqrt(Math.pow(b[0] - a[0], 2) + Math.pow(b[1] - a[1], 2) + Math.pow(b[2] - a[2], 2));
+                }
+                if (along.isEmpty() || along.get(0)[0] > stationDistance) {
+                    along.add(0, new double[]{0, end(vertices.get(0))});
+                }
+                if (along.get(along.size() - 1)[0] < length - stationDistance) {
+                    along.add(new double[]{length, end(vertices.get(vertices.size() - 1))});
+                }
+
+                int[] sequence = new int[along.size()];
+                int count = 0;
+                for (double[] stop : along) {
+                    int node = (int) stop[1];
+                    if (count > 0 && sequence[count - 1] == node) continue;
+                    if (count > 0) {
+                        int a = Math.min(sequence[count - 1], node), b = Math.max(sequence[count - 1], node);
+                        if (seen.add(((long) a << 32) | b)) {
+                            edges.add(new int[]{a, b});
+                        }
+                    }
+                    sequence[count++] = node;
+                }
+                stops.add(Arrays.copyOf(sequence, count));
+            }
+        }
+
+        private int end(int[] vertex) {
+            return node("E" + vertex[0] + "," + vertex[1] + "," + vertex[2], null, vertex[0], vertex[2]);
+        }
+
+        private int node(String key, String name, int nx, int nz) {
+            Integer id = ids.get(key);
+            if (id == null) {
+                id = keys.size();
+                ids.put(key, id);
+                keys.add(key);
+                names.add(name);
+                x.add(nx);
+                z.add(nz);
+            }
+            return id;
+        }
+
+        /**
+         * Real direction from a to b rounded to the nearest of the eight, as x,z steps of -1, 0 or 1
+         */
+        int[] direction(int a, int b) {
+            double dx = x.get(b) - x.get(a), dz = z.get(b) - z.get(a);
+            if (dx == 0 && dz == 0) {
+                return new int[]{1, 0};
+            }
+            int octant = (int) Math.round(Math.atan2(dz, dx) / (Math.PI / 4));
+            double angle = octant * Math.PI / 4;
+            return new int[]{(int) Math.round(Math.cos(angle)), (int) Math.round(Math.sin(angle))};
+        }
+
+        List<Component> components() {
+            int[] parent = new int[keys.size()];
+            for (int i = 0; i < parent.length; i++) parent[i] = i;
+            for (int[] edge : edges) {
+                parent[find(parent, edge[0])] = find(parent, edge[1]);
+            }
+            Map<Integer, List<Integer>> groups = new LinkedHashMap<>();
+            for (int i = 0; i < parent.length; i++) {
+                groups.computeIfAbsent(find(parent, i), k -> new ArrayList<>()).add(i);
+            }
+            Map<Integer, Component> byRoot = new HashMap<>();
+            for (Map.Entry<Integer, List<Integer>> group : groups.entrySet()) {
+                byRoot.put(group.getKey(), new Component(group.getValue().stream().mapToInt(Integer::intValue).toArray()));
+            }
+            for (int[] edge : edges) {
+                byRoot.get(find(parent, edge[0])).edges.add(edge);
+            }
+            return new ArrayList<>(byRoot.values());
+        }
+
+        private static int find(int[] parent, int i) {
+            while (parent[i] != i) {
+                parent[i] = parent[parent[i]];
+                i = parent[i];
+            }
+            return i;
+        }
+
+        /**
+         * Hash of a component's node keys and edges, independent of their order
+         */
+        long fingerprint(Component component) {
+            List<String> parts = new ArrayList<>();
+            for (int node : component.nodes) {
+                parts.add(keys.get(node));
+            }
+            for (int[] edge : component.edges) {
+                String a = keys.get(edge[0]), b = keys.get(edge[1]);
+                parts.add(a.compareTo(b) < 0 ? a + "-" + b : b + "-" + a);
+            }
+            Collections.sort(parts);
+            long h = 0xCBF29CE484222325L;
+            for (String part : parts) {
+                for (int i = 0; i < part.length(); i++) {
+                    h = (h ^ part.charAt(i)) * 0x100000001B3L;
+                }
+                h = (h ^ '|') * 0x100000001B3L;
+            }
+            return h;
+        }
+    }
+
+    /**
+     * Connected nodes and the edges between them
+     */
+    private static class Component {
+        final int[] nodes;
+        final List<int[]> edges = new ArrayList<>();
+
+        Component(int[] nodes) {
+            this.nodes = nodes;
+        }
+    }
+}
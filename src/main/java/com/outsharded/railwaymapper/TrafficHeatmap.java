@@ -0,0 +1,140 @@
+package com.outsharded.railwaymapper;
+
+import org.bukkit.scheduler.BukkitRunnable;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Per-segment rail traffic.
+ * The tracker bumps a {@link LongAdder} each time a cart enters a segment,
+ * so recording never takes a lock. A background job periodically drains
+ * the counters into exponentially decayed heat values, published as a new
+ * array so readers never see a half-updated one.
+ * Segment numbers come from the world's {@link RailSpatialIndex}; heat is
+ * reset when the rail lines are rescanned and the index is rebuilt.
+ */
+public class TrafficHeatmap implements RailwayCache.ChangeListener {
+
+    private final RailwayMapperPlugin plugin;
+    private final long decayInterval;
+    private final double decayFactor;
+
+    private final Map<String, WorldHeat> worlds = new ConcurrentHashMap<>();
+    private volatile Consumer<String> trafficListener;
+    private BukkitTask decayTask;
+
+    public TrafficHeatmap(RailwayMapperPlugin plugin) {
+        this.plugin = plugin;
+        this.decayInterval = Math.max(20L, plugin.getConfig().getLong("heatmap.decay-interval", 200L));
+        double halfLifeSeconds = Math.max(1.0, plugin.getConfig().getDouble("heatmap.half-life-seconds", 1800.0));
+        this.decayFactor = Math.pow(0.5, (decayInterval / 20.0) / halfLifeSeconds);
+    }
+
+    public void start() {
+        decayTask = new BukkitRunnable() {
+            @Override
+            public void run() {
+                decay();
+            }
+        }.runTaskTimerAsynchronously(plugin, decayInterval, decayInterval);
+    }
+
+    /**
+     * Counts one cart entering a segment. Main thread; lock-free.
+     */
+    public void record(String worldName, RailSpatialIndex index, int segment) {
+        WorldHeat heat = worlds.get(worldName);
+        if (heat == null || heat.index != index) {
+            // First traffic since the index was (re)built
+            heat = new WorldHeat(index);
+            worlds.put(worldName, heat);
+        }
+        heat.counts[segment].increment();
+    }
+
+    /**
+     * Called from the decay job with each world that saw new traffic since
+     * the previous run. Pure decay scales every segment equally, so it
+     * doesn't change the relative heat and isn't reported.
+     */
+    public void setTrafficListener(Consumer<String> listener) {
+        this.trafficListener = listener;
+    }
+
+    /**
+     * Folds the counters gathered since the last run into the decayed heat
+     */
+    public void decay() {
+        Consumer<String> listener = trafficListener;
+        for (Map.Entry<String, WorldHeat> entry : worlds.entrySet()) {
+            WorldHeat heat = entry.getValue();
+            double[] previous = heat.heat;
+            double[] next = new double[previous.length];
+            boolean traffic = false;
+            for (int seg = 0; seg < next.length; seg++) {
+                long count = heat.counts[seg].sumThenReset();
+                traffic |= count > 0;
+                next[seg] = previous[seg] * decayFactor + count;
+            }
+            heat.heat = next;
+            if (traffic && listener != null) {
+                listener.accept(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Current heat for a world, or null if no traffic has been seen since
+     * its index was last built
+     */
+    public Snapshot getHeat(String worldName) {
+        WorldHeat heat = worlds.get(worldName);
+        return heat == null ? null : new Snapshot(heat.index, heat.heat);
+    }
+
+    @Override
+    public void onRailLinesChanged(String worldName) {
+        // Segment numbers are about to change
+        worlds.remove(worldName);
+    }
+
+    public void shutdown() {
+        if (decayTask != null) {
+            decayTask.cancel();
+            decayTask = null;
+        }
+        worlds.clear();
+    }
+
+    /**
+     * Heat per segment of {@code index}, in decayed segment entries
+     */
+    public static class Snapshot {
+        public final RailSpatialIndex index;
+        public final double[] heat;
+
+        Snapshot(RailSpatialIndex index, double[] heat) {
+            this.index = index;
+            this.heat = heat;
+        }
+    }
+
+    private static class WorldHeat {
+        final RailSpatialIndex index;
+        final LongAdder[] counts;
+        volatile double[] heat;
+
+        WorldHeat(RailSpatialIndex index) {
+            this.index = index;
+            this.counts = new LongAdder[index.getSegmentCount()];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = new LongAdder();
+            }
+            this.heat = new double[counts.length];
+        }
+    }
+}
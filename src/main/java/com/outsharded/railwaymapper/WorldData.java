@@ -0,0 +1,272 @@
+package com.outsharded.railwaymapper;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * The contents of one version of a world's published data file: line
+ * table, tile index, stations and heat. Kept after publishing
+ * so the next version can also go out as a patch against this one.
+ *
+ * A patch lists only the sections that changed:
+ * <pre>
+ *   {"from":v0,"to":v1,
+ *    "lines":{"length":n,"set":{"i":{...}}},          entries replaced or added by index
+ *    "tiling":{...},                                  replaced outright
+ *    "schematic":"file" or null,
+ *    "tiles":{"set":{"z/x/y":"file"},"remove":[...]},
+ *    "stations":{"add":[{...}],"remove":[[x,y,z]]},   stations are keyed by position
+ *    "heat":{"length":n,"set":{"i":[...]}} or null, "heatMax":m}
+ * </pre>
+ */
+public class WorldData {
+
+    public final long version;
+    final String worldName;
+    final List<RailLine> lines;
+    final MapTiler.Tiling tiling;
+    // Null if schematic layout is off
+    final String schematicFile;
+    // In k-d tree order, as published
+    final List<RailwayDatabase.Station> stations;
+    // Per line, per segment; null if there's no current heat for these lines
+    final double[][] heat;
+    final double heatMax;
+
+    WorldData(long version, String worldName, List<RailLine> lines, MapTiler.Tiling tiling,
+              String schematicFile, List<RailwayDatabase.Station> stations, double[][] heat) {
+        this.version = version;
+        this.worldName = worldName;
+        this.lines = lines;
+        this.tiling = tiling;
+        this.schematicFile = schematicFile;
+        this.stations = stations;
+        this.heat = heat;
+        double max = 0;
+        if (heat != null) {
+            for (double[] line : heat) {
+                for (double h : line) max = Math.max(max, h);
+            }
+        }
+        this.heatMax = max;
+    }
+
+    /**
+     * Whether the published content would be identical (ignoring the version)
+     */
+    public boolean sameContent(WorldData other) {
+        return other != null
+            && sameLines(other)
+            && sameTiling(other)
+            && other.tiling.tiles.equals(tiling.tiles)
+            && Objects.equals(other.schematicFile, schematicFile)
+            && stationKeys(other.stations).equals(stationKeys(stations))
+            && Arrays.deepEquals(other.heat, heat);
+    }
+
+    /**
+     * Writes the full data file
+     */
+    public void writeFull(JsonStreamWriter json) throws IOException {
+        json.beginObject();
+        json.name("world").value(worldName);
+        json.name("version").value(version);
+
+        json.name("lines").beginArray();
+        for (RailLine line : lines) {
+            writeLine(json, line);
+        }
+        json.endArray();
+
+        json.name("tiling");
+        writeTiling(json);
+        json.name("tiles").beginObject();
+        for (Map.Entry<String, String> tile : tiling.tiles.entrySet()) {
+            json.name(tile.getKey()).value(tile.getValue());
+        }
+        json.endObject();
+        if (schematicFile != null) {
+            json.name("schematic").value(schematicFile);
+        }
+
+        json.name("stations").beginArray();
+        for (RailwayDatabase.Station s : stations) {
+            writeStation(json, s);
+        }
+        json.endArray();
+
+        if (heat != null) {
+            json.name("heat").beginArray();
+            for (double[] line : heat) {
+                writeHeatLine(json, line);
+            }
+            json.endArray();
+            json.name("heatMax").value(heatMax);
+        }
+        json.endObject();
+    }
+
+    /**
+     * Writes the patch that turns {@code previous} into this version
+     */
+    public void writePatch(JsonStreamWriter json, WorldData previous) throws IOException {
+        json.beginObject();
+        json.name("from").value(previous.version);
+        json.name("to").value(version);
+
+        if (!sameLines(previous)) {
+            json.name("lines").beginObject();
+            json.name("length").value(lines.size());
+            json.name("set").beginObject();
+            for (int i = 0; i < lines.size(); i++) {
+                RailLine line = lines.get(i);
+                if (i >= previous.lines.size() || !sameLine(previous.lines.get(i), line)) {
+                    json.name(Integer.toString(i));
+                    writeLine(json, line);
+                }
+            }
+            json.endObject();
+            json.endObject();
+        }
+
+        if (!sameTiling(previous)) {
+            json.name("tiling");
+            writeTiling(json);
+        }
+        if (!previous.tiling.tiles.equals(tiling.tiles)) {
+            json.name("tiles").beginObject();
+            json.name("set").beginObject();
+            for (Map.Entry<String, String> tile : tiling.tiles.entrySet()) {
+                if (!tile.getValue().equals(previous.tiling.tiles.get(tile.getKey()))) {
+                    json.name(tile.getKey()).value(tile.getValue());
+                }
+            }
+            json.endObject();
+            json.name("remove").beginArray();
+            for (String key : previous.tiling.tiles.keySet()) {
+                if (!tiling.tiles.containsKey(key)) {
+                    json.value(key);
+                }
+            }
+            json.endArray();
+            json.endObject();
+        }
+        if (!Objects.equals(previous.schematicFile, schematicFile)) {
+            json.name("schematic");
+            if (schematicFile == null) {
+                json.nullValue();
+            } else {
+                json.value(schematicFile);
+            }
+        }
+
+        Map<String, RailwayDatabase.Station> before = stationKeys(previous.stations);
+        Map<String, RailwayDatabase.Station> after = stationKeys(stations);
+        if (!before.equals(after)) {
+            json.name("stations").beginObject();
+            json.name("add").beginArray();
+            for (Map.Entry<String, RailwayDatabase.Station> entry : after.entrySet()) {
+                if (!before.containsKey(entry.getKey())) {
+                    writeStation(json, entry.getValue());
+                }
+            }
+            json.endArray();
+            json.name("remove").beginArray();
+            for (Map.Entry<String, RailwayDatabase.Station> entry : before.entrySet()) {
+                if (!after.containsKey(entry.getKey())) {
+                    RailwayDatabase.Station s = entry.getValue();
+                    json.beginArray().value(s.x).value(s.y).value(s.z).endArray();
+                }
+            }
+            json.endArray();
+            json.endObject();
+        }
+
+        if (!Arrays.deepEquals(previous.heat, heat)) {
+            json.name("heat");
+            if (heat == null) {
+                json.nullValue();
+            } else {
+                json.beginObject();
+                json.name("length").value(heat.length);
+                json.name("set").beginObject();
+                for (int i = 0; i < heat.length; i++) {
+                    if (previous.heat == null || i >= previous.heat.length || !Arrays.equals(previous.heat[i], heat[i])) {
+                        json.name(Integer.toString(i));
+                        writeHeatLine(json, heat[i]);
+                    }
+                }
+                json.endObject();
+                json.endObject();
+                json.name("heatMax").value(heatMax);
+            }
+        }
+        json.endObject();
+    }
+
+    private boolean sameLines(WorldData other) {
+        if (other.lines.size() != lines.size()) {
+            return false;
+        }
+        for (int i = 0; i < lines.size(); i++) {
+            if (!sameLine(other.lines.get(i), lines.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Only what the data file carries; geometry is in the tiles
+    private static boolean sameLine(RailLine a, RailLine b) {
+        return a.networkId == b.networkId && Objects.equals(a.color, b.color);
+    }
+
+    private boolean sameTiling(WorldData other) {
+        MapTiler.Tiling a = other.tiling;
+        return a.minX == tiling.minX && a.minZ == tiling.minZ && a.size == tiling.size
+            && a.levels == tiling.levels && a.tilePixels == tiling.tilePixels;
+    }
+
+    // Stations by position (and name, so a rename is a removal plus an addition)
+    private static Map<String, RailwayDatabase.Station> stationKeys(List<RailwayDatabase.Station> stations) {
+        Map<String, RailwayDatabase.Station> keys = new LinkedHashMap<>();
+        for (RailwayDatabase.Station s : stations) {
+            keys.put(s.x + "," + s.y + "," + s.z + "," + s.name, s);
+        }
+        return keys;
+    }
+
+    private static void writeLine(JsonStreamWriter json, RailLine line) throws IOException {
+        json.beginObject();
+        json.name("networkId").value(line.networkId);
+        json.name("color").value(line.color);
+        json.endObject();
+    }
+
+    private void writeTiling(JsonStreamWriter json) throws IOException {
+        json.beginObject();
+        json.name("minX").value(tiling.minX);
+        json.name("minZ").value(tiling.minZ);
+        json.name("size").value(tiling.size);
+        json.name("levels").value(tiling.levels);
+        json.name("tilePixels").value(tiling.tilePixels);
+        json.endObject();
+    }
+
+    private static void writeStation(JsonStreamWriter json, RailwayDatabase.Station s) throws IOException {
+        json.beginObject();
+        json.name("x").value(s.x);
+        json.name("y").value(s.y);
+        json.name("z").value(s.z);
+        json.name("name").value(s.name);
+        json.endObject();
+    }
+
+    private static void writeHeatLine(JsonStreamWriter json, double[] line) throws IOException {
+        json.beginArray();
+        for (double h : line) {
+            json.value(h);
+        }
+        json.endArray();
+    }
+}